@@ -0,0 +1,215 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#include "stdafx.h"
+#include "JNIAsync.h"
+
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+
+namespace JNI {
+
+    class AsyncState
+    {
+    public:
+        void Complete(jobject result, jthrowable error)
+        {
+            std::function<void()> continuation;
+            {
+                std::lock_guard<std::mutex> lock(m_Lock);
+                m_Result = result;
+                m_Error = error;
+                m_Completed = true;
+                continuation.swap(m_Continuation);
+            }
+            m_Done.notify_all();
+            if (continuation)
+                continuation();
+        }
+
+        bool IsReady()
+        {
+            std::lock_guard<std::mutex> lock(m_Lock);
+            return m_Completed;
+        }
+
+        jobject Wait()
+        {
+            std::unique_lock<std::mutex> lock(m_Lock);
+            m_Done.wait(lock, [this]() { return m_Completed; });
+            if (m_Error.Object() != nullptr)
+            {
+                GetEnv().Throw(static_cast<jthrowable>(m_Error.Object()));
+                return nullptr;
+            }
+            return m_Result;
+        }
+
+        bool Suspend(std::function<void()> continuation)
+        {
+            std::lock_guard<std::mutex> lock(m_Lock);
+            if (m_Completed)
+                return false;
+            m_Continuation = std::move(continuation);
+            return true;
+        }
+
+    private:
+        std::mutex m_Lock;
+        std::condition_variable m_Done;
+        bool m_Completed = false;
+        JObject m_Result;
+        JObject m_Error;
+        std::function<void()> m_Continuation;
+    };
+
+
+    // The handle passed through Java owns a reference to the state until
+    // complete is called.
+    typedef std::shared_ptr<AsyncState> AsyncHandle;
+
+    static void JNICALL AsyncComplete(JNIEnv*, jclass, jlong handle, jobject result, jthrowable error)
+    {
+        AsyncHandle* state = reinterpret_cast<AsyncHandle*>(static_cast<intptr_t>(handle));
+        (*state)->Complete(result, error);
+        delete state;
+    }
+
+    struct AsyncBridge
+    {
+        AsyncBridge()
+            : Class("com/jni/runtime/AsyncBridge")
+        {
+            JNIEnv& env = GetEnv();
+            Submit = env.GetStaticMethodID(Class, "submit", "(JLjava/lang/reflect/Method;Ljava/lang/Object;[Ljava/lang/Object;)V");
+
+            JNINativeMethod complete = { const_cast<char*>("complete"), const_cast<char*>("(JLjava/lang/Object;Ljava/lang/Throwable;)V"), reinterpret_cast<void*>(&AsyncComplete) };
+            env.RegisterNatives(Class, &complete, 1);
+        }
+
+        JClass Class;
+        jmethodID Submit;
+    };
+
+    static const AsyncBridge& GetBridge()
+    {
+        static AsyncBridge bridge;
+        return bridge;
+    }
+
+
+    JObject GetReflectedMethod(jclass clazz, const char* name, const char* signature, bool isStatic)
+    {
+        JNIEnv& env = GetEnv();
+        jmethodID methodID = isStatic ? env.GetStaticMethodID(clazz, name, signature) : env.GetMethodID(clazz, name, signature);
+        return JObject(env.ToReflectedMethod(clazz, methodID, isStatic), /*releaseLocalRef:*/ true);
+    }
+
+
+    bool AsyncBase::IsReady() const
+    {
+        return m_State->IsReady();
+    }
+
+    jobject AsyncBase::Wait() const
+    {
+        return m_State->Wait();
+    }
+
+    bool AsyncBase::Suspend(std::function<void()> continuation) const
+    {
+        return m_State->Suspend(std::move(continuation));
+    }
+
+    std::shared_ptr<AsyncState> AsyncBase::Submit(jobject method, jobject target, jobjectArray args)
+    {
+        JNIEnv& env = GetEnv();
+        const AsyncBridge& bridge = GetBridge();
+
+        std::shared_ptr<AsyncState> state = std::make_shared<AsyncState>();
+        AsyncHandle* handle = new AsyncHandle(state);
+        env.CallStaticVoidMethod(bridge.Class, bridge.Submit, static_cast<jlong>(reinterpret_cast<intptr_t>(handle)), method, target, args);
+        if (env.ExceptionCheck())
+        {
+            // Not submitted, so Java will never complete it
+            LocalRef<jthrowable> error(env.ExceptionOccurred());
+            env.ExceptionClear();
+            state->Complete(nullptr, error.Get());
+            delete handle;
+        }
+        return state;
+    }
+
+    jobjectArray AsyncBase::NewArgs(jsize count)
+    {
+        static JClass objectClass("java/lang/Object");
+        return GetEnv().NewObjectArray(count, objectClass, nullptr);
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jobject value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, value);
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jboolean value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jbyte value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jchar value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jshort value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jint value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jlong value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jfloat value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+    void AsyncBase::SetArg(jobjectArray args, jsize index, jdouble value)
+    {
+        GetEnv().SetObjectArrayElement(args, index, Box(value).Get());
+    }
+
+} // namespace JNI
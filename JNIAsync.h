@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#pragma once
+
+#include "JNIManagedPeer.h"
+
+#include <functional>
+#include <memory>
+#include <type_traits>
+
+#if defined(__cpp_impl_coroutine) && defined(__has_include)
+#if __has_include(<coroutine>)
+#include <coroutine>
+#define JNI_HAS_COROUTINES 1
+#endif
+#endif
+
+namespace JNI {
+
+    // Returns the java.lang.reflect.Method for a method of clazz.
+    JObject GetReflectedMethod(jclass clazz, const char* name, const char* signature, bool isStatic);
+
+
+    // Converts the result object of an asynchronous call into the type the
+    // synchronous method returns: a peer, a LocalRef, an unboxed primitive or
+    // a JNIEnum.
+    template <typename T, bool Primitive = std::is_arithmetic<T>::value, bool Enum = std::is_enum<T>::value>
+    struct AsyncResult
+    {
+        static T From(jobject object)
+        {
+            if (object == nullptr)
+                return T();
+            return T(LocalRef<jobject>(GetEnv().NewLocalRef(object)));
+        }
+    };
+
+    template <typename T>
+    struct AsyncResult<T, true, false>
+    {
+        static T From(jobject object)
+        {
+            return object == nullptr ? T() : Unbox<T>(object);
+        }
+    };
+
+    template <typename T>
+    struct AsyncResult<T, false, true>
+    {
+        static T From(jobject object)
+        {
+            return EnumPeer<T>::FromJava(object);
+        }
+    };
+
+    template <typename U>
+    struct AsyncResult<LocalRef<U>, false, false>
+    {
+        static LocalRef<U> From(jobject object)
+        {
+            return LocalRef<U>(static_cast<U>(object == nullptr ? nullptr : GetEnv().NewLocalRef(object)));
+        }
+    };
+
+    template <>
+    struct AsyncResult<void, false, false>
+    {
+        static void From(jobject)
+        {
+        }
+    };
+
+
+    // The part of Async which does not depend on the result type.  The state
+    // is shared with com.jni.runtime.AsyncBridge, which completes it from the
+    // Java thread that ran the call.
+    class AsyncState;
+
+    class AsyncBase
+    {
+    public:
+        // Whether the call has finished.
+        bool IsReady() const;
+
+        // Blocks until the call has finished.  Returns the result, or null
+        // with the exception of the Java method thrown on this thread.
+        jobject Wait() const;
+
+        // Has continuation called once the call has finished, on the thread
+        // that finishes it; returns false (and does not call it) when the call
+        // has already finished.
+        bool Suspend(std::function<void()> continuation) const;
+
+    protected:
+        explicit AsyncBase(std::shared_ptr<AsyncState> state) : m_State(std::move(state)) { }
+
+        static std::shared_ptr<AsyncState> Submit(jobject method, jobject target, jobjectArray args);
+
+        template <typename... Args>
+        static LocalRef<jobjectArray> MakeArgs(const Args&... args)
+        {
+            LocalRef<jobjectArray> array(NewArgs(static_cast<jsize>(sizeof...(Args))));
+            jsize index = 0;
+            int expand[] = { 0, (SetArg(array.Get(), index++, args), 0)... };
+            (void) expand;
+            (void) index;
+            return array;
+        }
+
+    private:
+        static jobjectArray NewArgs(jsize count);
+        static void SetArg(jobjectArray args, jsize index, jobject value);
+        static void SetArg(jobjectArray args, jsize index, jboolean value);
+        static void SetArg(jobjectArray args, jsize index, jbyte value);
+        static void SetArg(jobjectArray args, jsize index, jchar value);
+        static void SetArg(jobjectArray args, jsize index, jshort value);
+        static void SetArg(jobjectArray args, jsize index, jint value);
+        static void SetArg(jobjectArray args, jsize index, jlong value);
+        static void SetArg(jobjectArray args, jsize index, jfloat value);
+        static void SetArg(jobjectArray args, jsize index, jdouble value);
+
+        std::shared_ptr<AsyncState> m_State;
+    };
+
+
+    // The pending result of a Java method running on a Java virtual thread, as
+    // returned by the generated nameAsync methods.  Get() blocks the calling
+    // thread; co_await suspends the coroutine instead and resumes it on the
+    // Java thread that finished the call, attached to the JVM.
+    template <typename T>
+    class Async : public AsyncBase
+    {
+    public:
+        template <typename... Args>
+        static Async Submit(jobject method, jobject target, const Args&... args)
+        {
+            LocalRef<jobjectArray> array(MakeArgs(args...));
+            return Async(AsyncBase::Submit(method, target, array.Get()));
+        }
+
+        T Get() const
+        {
+            return AsyncResult<T>::From(Wait());
+        }
+
+#ifdef JNI_HAS_COROUTINES
+        bool await_ready() const { return IsReady(); }
+        bool await_suspend(std::coroutine_handle<> handle) const { return Suspend([handle]() { handle.resume(); }); }
+        T await_resume() const { return Get(); }
+#endif
+
+    private:
+        explicit Async(std::shared_ptr<AsyncState> state) : AsyncBase(std::move(state)) { }
+    };
+
+} // namespace JNI
@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#include "stdafx.h"
+#include "JNIChannel.h"
+
+#include <algorithm>
+#include <chrono>
+#include <thread>
+
+#if defined(_M_IX86) || defined(_M_X64)
+#include <intrin.h>
+#define JNI_CPU_PAUSE() _mm_pause()
+#elif defined(__i386__) || defined(__x86_64__)
+#define JNI_CPU_PAUSE() __builtin_ia32_pause()
+#else
+#define JNI_CPU_PAUSE()
+#endif
+
+namespace JNI {
+
+    // The indexes are shared with Java as plain 64 bit memory.  (C++11 has
+    // ATOMIC_LLONG_LOCK_FREE; is_always_lock_free only came with C++17.)
+    static_assert(ATOMIC_LLONG_LOCK_FREE == 2 && sizeof(long long) == sizeof(int64_t), "lock free 64 bit atomics");
+    static_assert(sizeof(std::atomic<int64_t>) == sizeof(int64_t), "plain 64 bit atomics");
+
+    static const size_t WriteIndex = 0;
+    static const size_t ReadIndex = 64;
+
+
+    void Idle(WaitStrategy wait, int count)
+    {
+        switch (wait)
+        {
+        case WaitStrategy::BusySpin:
+            JNI_CPU_PAUSE();
+            break;
+        case WaitStrategy::Yield:
+            std::this_thread::yield();
+            break;
+        case WaitStrategy::Park:
+            std::this_thread::sleep_for(std::chrono::microseconds(1 << std::min(count, 10)));
+            break;
+        }
+    }
+
+
+    RingProducer::RingProducer(void* memory, size_t size, WaitStrategy wait)
+        : m_Write(reinterpret_cast<std::atomic<int64_t>*>(static_cast<uint8_t*>(memory) + WriteIndex))
+        , m_Read(reinterpret_cast<std::atomic<int64_t>*>(static_cast<uint8_t*>(memory) + ReadIndex))
+        , m_Records(static_cast<uint8_t*>(memory) + HeaderSize)
+        , m_Mask(size - HeaderSize - 1)
+        , m_Wait(wait)
+    {
+        // A producer may take over from an earlier one
+        m_Position = m_Write->load(std::memory_order_relaxed);
+        m_ReadCache = m_Read->load(std::memory_order_acquire);
+    }
+
+    RingProducer::RingProducer(jobject buffer, WaitStrategy wait)
+        : RingProducer(GetEnv().GetDirectBufferAddress(buffer), static_cast<size_t>(GetEnv().GetDirectBufferCapacity(buffer)), wait)
+    {
+    }
+
+    uint8_t* RingProducer::TryClaim(jint type, size_t size)
+    {
+        size_t length = RecordSize(size);
+        size_t offset = static_cast<size_t>(m_Position) & m_Mask;
+
+        // A record does not wrap around: the end is skipped with a padding
+        // record, claimed on its own (and published with the next record)
+        if (offset + length > Capacity())
+        {
+            size_t padding = Capacity() - offset;
+            if (!HasRoom(padding))
+                return nullptr;
+            Put(m_Records, offset, static_cast<jint>(padding));
+            Put(m_Records, offset + 4, Padding);
+            m_Position += padding;
+            offset = 0;
+        }
+
+        if (!HasRoom(length))
+            return nullptr;
+
+        uint8_t* record = m_Records + offset;
+        Put(record, 0, static_cast<jint>(length));
+        Put(record, 4, type);
+        m_Position += length;
+        return record + RecordHeaderSize;
+    }
+
+    bool RingProducer::HasRoom(size_t length)
+    {
+        int64_t end = m_Position + static_cast<int64_t>(length);
+        if (end - m_ReadCache <= static_cast<int64_t>(Capacity()))
+            return true;
+        m_ReadCache = m_Read->load(std::memory_order_acquire);
+        return end - m_ReadCache <= static_cast<int64_t>(Capacity());
+    }
+
+    uint8_t* RingProducer::Claim(jint type, size_t size)
+    {
+        if (RecordSize(size) > Capacity())
+            return nullptr;
+
+        uint8_t* payload;
+        for (int count = 0; (payload = TryClaim(type, size)) == nullptr; count++)
+            Idle(m_Wait, count);
+        return payload;
+    }
+
+} // namespace JNI
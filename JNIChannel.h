@@ -0,0 +1,99 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#pragma once
+
+#include "JNIManagedPeer.h"
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+
+namespace JNI {
+
+    // How an end of a ring buffer waits for the other end, the counterpart of
+    // com.jni.runtime.WaitStrategy.
+    enum class WaitStrategy
+    {
+        BusySpin,   // keeps the core busy: the lowest latency
+        Yield,      // lets other threads run between checks
+        Park,       // sleeps between checks, backing off up to a millisecond
+    };
+
+    // Called in a loop while waiting; count is the number of calls so far.
+    void Idle(WaitStrategy wait, int count);
+
+
+    // Producer end of a single producer, single consumer ring buffer whose
+    // consumer end is a com.jni.runtime.Ring (which describes the layout).
+    // Messages are written straight into the shared memory: no JNI call is
+    // made after construction.  One thread produces at a time.
+    class RingProducer
+    {
+    public:
+        static const size_t HeaderSize = 128;
+
+        // The memory of a Ring, such as the same file mapped by this process.
+        RingProducer(void* memory, size_t size, WaitStrategy wait = WaitStrategy::Yield);
+
+        // The direct buffer of a Ring.  The Ring must outlive the producer.
+        explicit RingProducer(jobject buffer, WaitStrategy wait = WaitStrategy::Yield);
+
+        RingProducer(const RingProducer&) = delete;
+        RingProducer& operator=(const RingProducer&) = delete;
+
+        // Reserves a record of the given type and payload size, and returns
+        // the payload to write into; null when the ring is full.
+        uint8_t* TryClaim(jint type, size_t size);
+
+        // Like TryClaim, but waits for the consumer to make room; null only
+        // when the record would not fit in the ring at all.
+        uint8_t* Claim(jint type, size_t size);
+
+        // Makes the records claimed so far visible to the consumer.
+        void Publish() { m_Write->store(m_Position, std::memory_order_release); }
+
+        size_t Capacity() const { return m_Mask + 1; }
+
+        template <typename T>
+        static void Put(uint8_t* payload, size_t offset, T value) { std::memcpy(payload + offset, &value, sizeof(T)); }
+
+    private:
+        static size_t RecordSize(size_t size) { return (RecordHeaderSize + size + 7) & ~size_t(7); }
+        bool HasRoom(size_t length);
+
+        static const size_t RecordHeaderSize = 8;
+        static const jint Padding = -1;
+
+        std::atomic<int64_t>* m_Write;
+        std::atomic<int64_t>* m_Read;
+        uint8_t* m_Records;
+        size_t m_Mask;
+        WaitStrategy m_Wait;
+
+        int64_t m_Position;     // claimed so far
+        int64_t m_ReadCache;    // last read index seen
+    };
+
+} // namespace JNI
@@ -0,0 +1,251 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#include "stdafx.h"
+#include "JNIHost.h"
+
+#include <chrono>
+#include <cstdlib>
+#include <fstream>
+#include <iterator>
+#include <sstream>
+
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <dlfcn.h>
+#include <unistd.h>
+#endif
+
+namespace JNI {
+
+    typedef jint (JNICALL *CreateJavaVMFunction)(JavaVM** jvm, void** env, void* args);
+    typedef std::chrono::steady_clock Clock;
+
+    // Where the JVM library is in a JDK (or JRE), newest layout first
+#ifdef _WIN32
+    static const char PathSeparator = ';';
+    static const char* const LibraryPaths[] = { "\\bin\\server\\jvm.dll", "\\jre\\bin\\server\\jvm.dll", "\\bin\\client\\jvm.dll" };
+#elif defined(__APPLE__)
+    static const char PathSeparator = ':';
+    static const char* const LibraryPaths[] = { "/lib/server/libjvm.dylib", "/jre/lib/server/libjvm.dylib" };
+#else
+    static const char PathSeparator = ':';
+    static const char* const LibraryPaths[] = { "/lib/server/libjvm.so", "/jre/lib/amd64/server/libjvm.so", "/jre/lib/server/libjvm.so" };
+#endif
+
+    static CreateJavaVMFunction LoadJVM(const std::string& home, std::string& error)
+    {
+        for (const char* path : LibraryPaths)
+        {
+            std::string library = home + path;
+            CreateJavaVMFunction createJavaVM = nullptr;
+#ifdef _WIN32
+            HMODULE module = LoadLibraryA(library.c_str());
+            if (module == nullptr)
+                continue;
+            createJavaVM = reinterpret_cast<CreateJavaVMFunction>(GetProcAddress(module, "JNI_CreateJavaVM"));
+#else
+            void* module = dlopen(library.c_str(), RTLD_NOW | RTLD_GLOBAL);
+            if (module == nullptr)
+                continue;
+            createJavaVM = reinterpret_cast<CreateJavaVMFunction>(dlsym(module, "JNI_CreateJavaVM"));
+#endif
+            if (createJavaVM == nullptr)
+                error = "no JNI_CreateJavaVM in " + library;
+            return createJavaVM;
+        }
+        error = "no JVM library in " + home;
+        return nullptr;
+    }
+
+    // Milliseconds since the process started, or -1 when unknown
+    static double ProcessAge()
+    {
+#ifdef _WIN32
+        FILETIME creation, exit, kernel, user, now;
+        if (!GetProcessTimes(GetCurrentProcess(), &creation, &exit, &kernel, &user))
+            return -1;
+        GetSystemTimeAsFileTime(&now);
+        ULARGE_INTEGER start, current;
+        start.LowPart = creation.dwLowDateTime;
+        start.HighPart = creation.dwHighDateTime;
+        current.LowPart = now.dwLowDateTime;
+        current.HighPart = now.dwHighDateTime;
+        return (current.QuadPart - start.QuadPart) / 1e4;
+#elif defined(__linux__)
+        // The start time is the 22nd field, in clock ticks since boot; the
+        // command (the 2nd) may hold spaces, so fields are counted after it
+        std::ifstream stat("/proc/self/stat");
+        std::string text((std::istreambuf_iterator<char>(stat)), std::istreambuf_iterator<char>());
+        size_t end = text.rfind(')');
+        if (end == std::string::npos)
+            return -1;
+        std::istringstream fields(text.substr(end + 1));
+        std::string field;
+        for (int i = 3; i < 22; i++)
+            fields >> field;
+        double ticks = 0, uptime = 0;
+        if (!(fields >> ticks) || !(std::ifstream("/proc/uptime") >> uptime))
+            return -1;
+        return (uptime - ticks / sysconf(_SC_CLK_TCK)) * 1000;
+#else
+        return -1;
+#endif
+    }
+
+    static double Milliseconds(Clock::time_point from, Clock::time_point to)
+    {
+        return std::chrono::duration<double, std::milli>(to - from).count();
+    }
+
+    static bool FileExists(const std::string& path)
+    {
+        return std::ifstream(path).good();
+    }
+
+    // The message of the pending exception, which is cleared
+    static std::string TakeException(JNIEnv* env)
+    {
+        jthrowable exception = env->ExceptionOccurred();
+        env->ExceptionClear();
+        if (exception == nullptr)
+            return "no exception";
+        JClass object("java/lang/Object");
+        jmethodID toString = env->GetMethodID(object, "toString", "()Ljava/lang/String;");
+        JString message(static_cast<jstring>(env->CallObjectMethod(exception, toString)), /*removeLocalRef:*/ true);
+        env->ExceptionClear();
+        env->DeleteLocalRef(exception);
+        return (message.String() != nullptr ? message.GetUTFString() : "exception");
+    }
+
+
+    JvmHost::JvmHost(const JvmConfig& config)
+        : m_Config(config)
+    {
+    }
+
+    JvmHost::~JvmHost()
+    {
+        Destroy();
+    }
+
+    bool JvmHost::Start()
+    {
+        // The JVM cannot be created again, so a failed binding stays failed
+        if (m_JVM != nullptr)
+            return m_Error.empty();
+        m_Error.clear();
+        m_Startup = JvmStartup();
+        m_Startup.Process = ProcessAge();
+        Clock::time_point start = Clock::now();
+
+        std::string home = m_Config.JavaHome;
+        if (home.empty() && std::getenv("JAVA_HOME") != nullptr)
+            home = std::getenv("JAVA_HOME");
+        if (home.empty())
+        {
+            m_Error = "neither JavaHome nor JAVA_HOME is set";
+            return false;
+        }
+        CreateJavaVMFunction createJavaVM = LoadJVM(home, m_Error);
+        if (createJavaVM == nullptr)
+            return false;
+        Clock::time_point loaded = Clock::now();
+        m_Startup.Load = Milliseconds(start, loaded);
+
+        m_Options.clear();
+        if (!m_Config.ClassPath.empty())
+        {
+            std::string classPath = "-Djava.class.path=";
+            for (size_t i = 0; i < m_Config.ClassPath.size(); i++)
+                classPath += (i > 0 ? std::string(1, PathSeparator) : std::string()) + m_Config.ClassPath[i];
+            m_Options.push_back(classPath);
+        }
+        if (!m_Config.InitialHeap.empty())
+            m_Options.push_back("-Xms" + m_Config.InitialHeap);
+        if (!m_Config.MaxHeap.empty())
+            m_Options.push_back("-Xmx" + m_Config.MaxHeap);
+        if (!m_Config.GC.empty())
+            m_Options.push_back("-XX:+Use" + m_Config.GC + "GC");
+        if (!m_Config.SharedArchive.empty())
+        {
+            if (FileExists(m_Config.SharedArchive))
+                m_Options.push_back("-XX:SharedArchiveFile=" + m_Config.SharedArchive);
+            else if (m_Config.DumpArchive)
+                m_Options.push_back("-XX:ArchiveClassesAtExit=" + m_Config.SharedArchive);
+        }
+        if (m_Config.QuickStart)
+        {
+            m_Options.push_back("-XX:TieredStopAtLevel=1");
+            m_Options.push_back("-XX:-UsePerfData");
+        }
+        m_Options.insert(m_Options.end(), m_Config.Options.begin(), m_Config.Options.end());
+
+        std::vector<JavaVMOption> options(m_Options.size());
+        for (size_t i = 0; i < m_Options.size(); i++)
+        {
+            options[i].optionString = const_cast<char*>(m_Options[i].c_str());
+            options[i].extraInfo = nullptr;
+        }
+        JavaVMInitArgs args;
+        args.version = JNI_VERSION_1_8;
+        args.nOptions = static_cast<jint>(options.size());
+        args.options = options.data();
+        args.ignoreUnrecognized = JNI_FALSE;
+
+        JNIEnv* env = nullptr;
+        jint result = createJavaVM(&m_JVM, reinterpret_cast<void**>(&env), &args);
+        if (result != JNI_OK)
+        {
+            m_JVM = nullptr;
+            m_Error = "JNI_CreateJavaVM failed with " + std::to_string(result);
+            return false;
+        }
+        SetJVM(m_JVM);
+        Clock::time_point created = Clock::now();
+        m_Startup.Create = Milliseconds(loaded, created);
+
+        for (jclass (*getClass)() : m_Config.Bindings)
+        {
+            if (getClass() == nullptr && m_Error.empty())
+                m_Error = "binding not initialized: " + TakeException(env);
+            env->ExceptionClear();
+        }
+        m_Startup.Bind = Milliseconds(created, Clock::now());
+        return m_Error.empty();
+    }
+
+    void JvmHost::Destroy()
+    {
+        if (m_JVM == nullptr)
+            return;
+        m_JVM->DestroyJavaVM();
+
+        // Peers released from now on, such as static ones at exit, find no JVM
+        if (JNI::GetJVM() == m_JVM)
+            SetJVM(nullptr);
+        m_JVM = nullptr;
+    }
+
+} // namespace JNI
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+#pragma once
+
+#include "JNIManagedPeer.h"
+
+#include <string>
+#include <vector>
+
+namespace JNI {
+
+    // How a JvmHost creates its JVM.
+    struct JvmConfig
+    {
+        // The JDK (or JRE) whose JVM library is loaded; JAVA_HOME when empty.
+        std::string JavaHome;
+
+        // -Djava.class.path, joined with the platform's separator.
+        std::vector<std::string> ClassPath;
+
+        // -Xms and -Xmx, such as "64m" or "2g"; the JVM's defaults when empty.
+        std::string InitialHeap;
+        std::string MaxHeap;
+
+        // The garbage collector, -XX:+Use<GC>GC: "Serial", "Parallel", "G1", "Z".
+        std::string GC;
+
+        // A class data sharing archive of the application's classes, mapped
+        // at startup when it exists (-XX:SharedArchiveFile).  When it does not
+        // and DumpArchive is set, the classes loaded until the JVM is
+        // destroyed are archived into it (-XX:ArchiveClassesAtExit, Java 13):
+        // the first run is the training run of the following ones.  The
+        // JVM only archives classes of JAR files: a class path directory
+        // makes it fail.
+        std::string SharedArchive;
+        bool DumpArchive = false;
+
+        // Trades peak performance for startup, for short lived processes:
+        // C1 only (-XX:TieredStopAtLevel=1) and no hsperfdata file
+        // (-XX:-UsePerfData).
+        bool QuickStart = false;
+
+        // Any other JVM options, passed last.
+        std::vector<std::string> Options;
+
+        // The GetClass functions of the peers to initialize once the JVM is
+        // created, so that their classes are loaded at startup rather than
+        // on their first call.
+        std::vector<jclass (*)()> Bindings;
+    };
+
+    // How long each phase of JvmHost::Start took, in milliseconds.
+    struct JvmStartup
+    {
+        double Process = -1;    // from the start of the process to Start, -1 when unknown
+        double Load = 0;        // loading the JVM library
+        double Create = 0;      // JNI_CreateJavaVM
+        double Bind = 0;        // initializing the bindings
+
+        double Total() const { return Load + Create + Bind; }
+    };
+
+    // A JVM embedded in a native process, for applications which start the
+    // JVM themselves rather than being loaded by one (JNI_OnLoad).  Start
+    // loads the JVM library, creates the JVM on the calling thread, which
+    // stays attached, makes it the JVM of the runtime (SetJVM) and
+    // initializes the bindings.  A process creates a single JVM, once: it
+    // cannot be created again after it is destroyed.
+    class JvmHost
+    {
+    public:
+        explicit JvmHost(const JvmConfig& config);
+
+        // Destroys the JVM, like Destroy.
+        ~JvmHost();
+
+        JvmHost(const JvmHost&) = delete;
+        JvmHost& operator=(const JvmHost&) = delete;
+
+        // Whether the JVM is up with its bindings; otherwise Error tells what
+        // failed.  The JVM is up (GetJVM) when only a binding failed, and
+        // Start keeps returning false since the JVM cannot be created again.
+        bool Start();
+
+        // Destroys the JVM, after waiting for its non-daemon threads, native
+        // threads still attached included.  The dynamic archive
+        // (DumpArchive) is written at this point.
+        void Destroy();
+
+        JavaVM* GetJVM() const { return m_JVM; }
+        const JvmStartup& Startup() const { return m_Startup; }
+        const std::string& Error() const { return m_Error; }
+
+        // The JVM options Start passes, for logging.
+        const std::vector<std::string>& Options() const { return m_Options; }
+
+    private:
+        JvmConfig m_Config;
+        std::vector<std::string> m_Options;
+        JavaVM* m_JVM = nullptr;
+        JvmStartup m_Startup;
+        std::string m_Error;
+    };
+
+} // namespace JNI
@@ -24,6 +24,16 @@
 #include "stdafx.h"
 #include "JNIManagedPeer.h"
 
+#include <atomic>
+#include <cstdint>
+#include <exception>
+#include <string>
+
+#ifdef JNI_HAS_STRING_VIEW
+#include <list>
+#include <unordered_map>
+#endif
+
 namespace JNI {
 
     static JavaVM* s_JVM = nullptr;
@@ -38,11 +48,61 @@ namespace JNI {
         return s_JVM;
     }
 
+    static struct Counters
+    {
+        std::atomic<int64_t> GlobalRefs{0};
+        std::atomic<int64_t> StringChars{0};
+        std::atomic<int64_t> AttachedThreads{0};
+        std::atomic<int64_t> ThreadsAttached{0};
+    } s_Counters;
+
+    Stats STDMETHODCALLTYPE GetStats()
+    {
+        Stats stats;
+        stats.GlobalRefs = s_Counters.GlobalRefs.load(std::memory_order_relaxed);
+        stats.StringChars = s_Counters.StringChars.load(std::memory_order_relaxed);
+        stats.AttachedThreads = s_Counters.AttachedThreads.load(std::memory_order_relaxed);
+        stats.ThreadsAttached = s_Counters.ThreadsAttached.load(std::memory_order_relaxed);
+        return stats;
+    }
+
+    // Detaches the thread at exit, should the runtime have attached it: an
+    // attached thread which exits stays a live java.lang.Thread of the JVM.
+    // It is created when the thread is attached, so the thread local caches
+    // created later on are destroyed before it, while they can still delete
+    // their global references.
+    struct ThreadAttachment
+    {
+        ~ThreadAttachment()
+        {
+            JNIEnv* env = nullptr;
+            if (Attached && s_JVM != nullptr && s_JVM->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_OK)
+            {
+                s_JVM->DetachCurrentThread();
+                s_Counters.AttachedThreads.fetch_sub(1, std::memory_order_relaxed);
+            }
+        }
+
+        bool Attached = false;
+    };
+
     static JNIEnv* GetEnvironment()
     {
         JNIEnv* env = nullptr;
-        if (s_JVM != nullptr)
-            s_JVM->AttachCurrentThread(reinterpret_cast<void**>(&env), nullptr);
+        if (s_JVM == nullptr)
+            return nullptr;
+        if (s_JVM->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_OK)
+            return env;
+
+        if (s_JVM->AttachCurrentThread(reinterpret_cast<void**>(&env), nullptr) != JNI_OK)
+            return nullptr;
+        thread_local ThreadAttachment attachment;
+        if (!attachment.Attached)
+        {
+            attachment.Attached = true;
+            s_Counters.AttachedThreads.fetch_add(1, std::memory_order_relaxed);
+        }
+        s_Counters.ThreadsAttached.fetch_add(1, std::memory_order_relaxed);
         return env;
     }
 
@@ -51,6 +111,21 @@ namespace JNI {
         return *GetEnvironment();
     }
 
+    // The global references of the runtime, counted for GetStats
+    static jobject NewGlobalRef(JNIEnv* env, jobject object)
+    {
+        jobject global = env->NewGlobalRef(object);
+        if (global != nullptr)
+            s_Counters.GlobalRefs.fetch_add(1, std::memory_order_relaxed);
+        return global;
+    }
+
+    static void DeleteGlobalRef(JNIEnv* env, jobject global)
+    {
+        env->DeleteGlobalRef(global);
+        s_Counters.GlobalRefs.fetch_sub(1, std::memory_order_relaxed);
+    }
+
 
     JObject::JObject()
     {
@@ -116,15 +191,16 @@ namespace JNI {
     {
         if (object != nullptr)
         {
-            m_Object = env->NewGlobalRef(object);    
+            m_Object = NewGlobalRef(env, object);    
         }
     }
     
     void JObject::ReleaseObject(JNIEnv* env)
     {
-        if (m_Object != nullptr)
+        // Static peers and classes are destroyed at exit, after the JVM is gone
+        if (m_Object != nullptr && env != nullptr)
         {
-            env->DeleteGlobalRef(m_Object);
+            DeleteGlobalRef(env, m_Object);
             m_Object = nullptr;
         }
     }
@@ -133,7 +209,7 @@ namespace JNI {
     {
         if (object != nullptr)
         {
-            m_Object = env->NewGlobalRef(object);
+            m_Object = NewGlobalRef(env, object);
             env->DeleteLocalRef(object);
         }
     }
@@ -166,17 +242,42 @@ namespace JNI {
         AttachLocalObject(env, env->NewString((const jchar *)content, wcslen(content)));
     }
 
+    JString::JString(JString&& string)
+        : JObject(std::move(string))
+        , m_pString(string.m_pString)
+        , m_pWString(string.m_pWString)
+    {
+        string.m_pString = nullptr;
+        string.m_pWString = nullptr;
+    }
+
     JString::~JString()
     {
         Clear();
     }
 
+    JString& JString::operator=(JString&& string)
+    {
+        if (this != &string)
+        {
+            Clear();
+            JObject::operator=(std::move(string));
+            m_pString = string.m_pString;
+            m_pWString = string.m_pWString;
+            string.m_pString = nullptr;
+            string.m_pWString = nullptr;
+        }
+        return *this;
+    }
+
     const char* JString::GetUTFString() const
     {
         if (m_pString == nullptr)
         {
             // Logically, this method doesn't change the JString
             const_cast<JString*>(this)->m_pString = GetEnvironment()->GetStringUTFChars(String(), nullptr);
+            if (m_pString != nullptr)
+                s_Counters.StringChars.fetch_add(1, std::memory_order_relaxed);
         }
 
         return m_pString;
@@ -193,6 +294,8 @@ namespace JNI {
         {
             // Logically, this method doesn't change the JString
             const_cast<JString*>(this)->m_pWString = (const wchar_t*)GetEnvironment()->GetStringChars(String(), nullptr);
+            if (m_pWString != nullptr)
+                s_Counters.StringChars.fetch_add(1, std::memory_order_relaxed);
         }
 
         return m_pWString;
@@ -208,17 +311,237 @@ namespace JNI {
         if (m_pString != nullptr && String() != nullptr)
         {
             GetEnvironment()->ReleaseStringUTFChars(String(), m_pString);
+            s_Counters.StringChars.fetch_sub(1, std::memory_order_relaxed);
             m_pString = nullptr;
         }
 
         if (m_pWString != nullptr && String() != nullptr)
         {
             GetEnvironment()->ReleaseStringChars(String(), (const jchar*)m_pWString);
+            s_Counters.StringChars.fetch_sub(1, std::memory_order_relaxed);
             m_pWString = nullptr;
         }
     }
 
 
+    EnumConstants::EnumConstants(const char* className, std::initializer_list<const char*> names)
+        : m_Class(className)
+    {
+        // The class is not found: the exception is left to the caller
+        if (m_Class.Object() == nullptr)
+            return;
+
+        JNIEnv* env = GetEnvironment();
+        std::string signature = std::string("L") + className + ";";
+
+        m_Constants.reserve(names.size());
+        for (const char* name : names)
+        {
+            jfieldID fieldID = env->GetStaticFieldID(m_Class, name, signature.c_str());
+            if (fieldID == nullptr)
+            {
+                // A constant removed since the C++ enum was generated
+                env->ExceptionClear();
+                m_Constants.emplace_back();
+                continue;
+            }
+            m_Constants.emplace_back(env->GetStaticObjectField(m_Class, fieldID), /*releaseLocalRef:*/ true);
+        }
+
+        JClass enumClass("java/lang/Enum");
+        m_Ordinal = env->GetFieldID(enumClass, "ordinal", "I");
+        if (m_Ordinal == nullptr)
+            env->ExceptionClear();
+        for (size_t i = 0; m_Ordinal != nullptr && i < m_Constants.size(); i++)
+        {
+            if (m_Constants[i].Object() == nullptr || env->GetIntField(m_Constants[i], m_Ordinal) != static_cast<jint>(i))
+                m_Ordinal = nullptr;
+        }
+    }
+
+    jobject EnumConstants::Get(jint ordinal) const
+    {
+        if (ordinal < 0 || static_cast<size_t>(ordinal) >= m_Constants.size())
+            return nullptr;
+        return m_Constants[ordinal];
+    }
+
+    jint EnumConstants::Ordinal(jobject constant) const
+    {
+        if (constant == nullptr)
+            return -1;
+
+        JNIEnv* env = GetEnvironment();
+        if (m_Ordinal != nullptr)
+            return env->GetIntField(constant, m_Ordinal);
+
+        for (size_t i = 0; i < m_Constants.size(); i++)
+        {
+            if (env->IsSameObject(constant, m_Constants[i]))
+                return static_cast<jint>(i);
+        }
+        return -1;
+    }
+
+
+#ifdef JNI_HAS_STRING_VIEW
+    static std::atomic<size_t> s_StringCacheCapacity(0);
+
+    void SetStringCacheCapacity(size_t capacity)
+    {
+        s_StringCacheCapacity = capacity;
+    }
+
+    // Decodes UTF-8 into UTF-16, replacing malformed sequences with U+FFFD.
+    static void DecodeUTF8(std::string_view text, std::u16string& result)
+    {
+        result.clear();
+        size_t i = 0;
+        while (i < text.size())
+        {
+            unsigned char c = static_cast<unsigned char>(text[i]);
+            if (c < 0x80)
+            {
+                result.push_back(c);
+                i++;
+                continue;
+            }
+
+            size_t length = (c >= 0xF0 && c < 0xF5) ? 4 : (c >= 0xE0) && (c < 0xF0) ? 3 : (c >= 0xC2 && c < 0xE0) ? 2 : 0;
+            char32_t code = (length == 4) ? (c & 0x07) : (length == 3) ? (c & 0x0F) : (c & 0x1F);
+            size_t n = 1;
+            for (; length != 0 && n < length && i + n < text.size(); n++)
+            {
+                unsigned char next = static_cast<unsigned char>(text[i + n]);
+                if ((next & 0xC0) != 0x80)
+                    break;
+                code = (code << 6) | (next & 0x3F);
+            }
+
+            bool valid = (length != 0 && n == length)
+                && !(length == 3 && (code < 0x800 || (code >= 0xD800 && code < 0xE000)))
+                && !(length == 4 && (code < 0x10000 || code > 0x10FFFF));
+            if (!valid)
+            {
+                result.push_back(u'\uFFFD');
+                i += (n > 1 ? n : 1);
+                continue;
+            }
+
+            if (code >= 0x10000)
+            {
+                code -= 0x10000;
+                result.push_back(static_cast<char16_t>(0xD800 + (code >> 10)));
+                result.push_back(static_cast<char16_t>(0xDC00 + (code & 0x3FF)));
+            }
+            else
+            {
+                result.push_back(static_cast<char16_t>(code));
+            }
+            i += length;
+        }
+    }
+
+    static jstring NewLocalString(JNIEnv* env, std::u16string_view text)
+    {
+        return env->NewString(reinterpret_cast<const jchar*>(text.data()), static_cast<jsize>(text.size()));
+    }
+
+    // The global jstrings of the thread, most recently used first.  A key
+    // of the index views the text held by its entry.
+    template <typename Char>
+    class StringCache
+    {
+    public:
+        StringCache() { }
+
+        ~StringCache()
+        {
+            JNIEnv* env = nullptr;
+            if (s_JVM == nullptr || s_JVM->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
+                return;
+            for (auto& entry : m_Entries)
+                DeleteGlobalRef(env, entry.second);
+        }
+
+        jstring Find(std::basic_string_view<Char> text)
+        {
+            auto found = m_Index.find(text);
+            if (found == m_Index.end())
+                return nullptr;
+            m_Entries.splice(m_Entries.begin(), m_Entries, found->second);
+            return found->second->second;
+        }
+
+        jstring Add(JNIEnv* env, std::basic_string_view<Char> text, jstring local, size_t capacity)
+        {
+            while (!m_Entries.empty() && m_Entries.size() >= capacity)
+            {
+                m_Index.erase(m_Entries.back().first);
+                DeleteGlobalRef(env, m_Entries.back().second);
+                m_Entries.pop_back();
+            }
+
+            jstring global = static_cast<jstring>(NewGlobalRef(env, local));
+            m_Entries.emplace_front(std::basic_string<Char>(text), global);
+            m_Index.emplace(m_Entries.front().first, m_Entries.begin());
+            return global;
+        }
+
+    private:
+        typedef std::list<std::pair<std::basic_string<Char>, jstring>> Entries;
+
+        Entries m_Entries;
+        std::unordered_map<std::basic_string_view<Char>, typename Entries::iterator> m_Index;
+    };
+
+    template <typename Char>
+    static jstring GetString(std::basic_string_view<Char> text, jstring (*create)(JNIEnv* env, std::basic_string_view<Char> text), bool& local)
+    {
+        JNIEnv* env = GetEnvironment();
+        size_t capacity = s_StringCacheCapacity.load(std::memory_order_relaxed);
+        local = (capacity == 0);
+        if (local)
+            return create(env, text);
+
+        thread_local StringCache<Char> cache;
+        jstring string = cache.Find(text);
+        if (string != nullptr)
+            return string;
+
+        jstring created = create(env, text);
+        if (created == nullptr)
+            return nullptr;
+        string = cache.Add(env, text, created, capacity);
+        env->DeleteLocalRef(created);
+        return string;
+    }
+
+    static jstring NewUTF8String(JNIEnv* env, std::string_view text)
+    {
+        thread_local std::u16string buffer;
+        DecodeUTF8(text, buffer);
+        return NewLocalString(env, buffer);
+    }
+
+    StringArg::StringArg(std::string_view text)
+        : m_String(GetString<char>(text, &NewUTF8String, m_Local))
+    {
+    }
+
+    StringArg::StringArg(std::u16string_view text)
+        : m_String(GetString<char16_t>(text, &NewLocalString, m_Local))
+    {
+    }
+
+    StringArg::~StringArg()
+    {
+        if (m_Local && m_String != nullptr)
+            GetEnvironment()->DeleteLocalRef(m_String);
+    }
+#endif
+
+
     ManagedPeer::ManagedPeer()
         : m_Object(nullptr)
     {
@@ -229,6 +552,22 @@ namespace JNI {
     {
     }
 
+    ManagedPeer::ManagedPeer(LocalRef<jobject>&& object)
+        : m_Local(std::move(object))
+    {
+    }
+
+    ManagedPeer::ManagedPeer(const ManagedPeer& peer)
+        : m_Object(peer.Object())
+    {
+    }
+
+    ManagedPeer::ManagedPeer(ManagedPeer&& peer)
+        : m_Object(std::move(peer.m_Object))
+        , m_Local(std::move(peer.m_Local))
+    {
+    }
+
     ManagedPeer::~ManagedPeer()
     {
     }
@@ -236,12 +575,553 @@ namespace JNI {
     ManagedPeer& ManagedPeer::operator=(jobject obj)
     {
         m_Object = obj;
+        m_Local.Reset();
         return *this;
     }
 
+    ManagedPeer& ManagedPeer::operator=(const ManagedPeer& peer)
+    {
+        if (this != &peer)
+        {
+            m_Object = peer.Object();
+            m_Local.Reset();
+        }
+        return *this;
+    }
+
+    ManagedPeer& ManagedPeer::operator=(ManagedPeer&& peer)
+    {
+        if (this != &peer)
+        {
+            m_Object = std::move(peer.m_Object);
+            m_Local = std::move(peer.m_Local);
+        }
+        return *this;
+    }
+
+    void ManagedPeer::MakeGlobal()
+    {
+        if (m_Local)
+        {
+            m_Object = m_Local.Get();
+            m_Local.Reset();
+        }
+    }
+
     JNIEnv& ManagedPeer::Env()
     {
         return *GetEnvironment();
     }
 
+
+    // The wrapper class of a primitive type with its valueOf and xxxValue
+    // methods, and its value field, read without a call into Java.
+    struct Boxing
+    {
+        Boxing(const char* className, const char* valueOfSignature, const char* valueName, const char* valueSignature)
+            : Class(className)
+        {
+            JNIEnv* env = GetEnvironment();
+            ValueOf = env->GetStaticMethodID(Class, "valueOf", valueOfSignature);
+            Value = env->GetMethodID(Class, valueName, valueSignature);
+
+            // The field is private: should a JDK name it otherwise, xxxValue is called
+            Field = env->GetFieldID(Class, "value", valueSignature + 2);
+            if (Field == nullptr)
+                env->ExceptionClear();
+        }
+
+        JClass Class;
+        jmethodID ValueOf;
+        jmethodID Value;
+        jfieldID Field;
+    };
+
+    // The wrappers valueOf returns for the values from first to last, which
+    // the JDK caches, as global references.
+    struct BoxCache
+    {
+        template <typename T>
+        BoxCache(const Boxing& boxing, T first, T last)
+            : First(first)
+        {
+            JNIEnv* env = GetEnvironment();
+            Values.reserve(static_cast<size_t>(last - first + 1));
+            for (jlong value = first; value <= last; value++)
+                Values.push_back(JObject(env->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, static_cast<T>(value)), /*releaseLocalRef:*/ true));
+        }
+
+        // The cached wrapper of value, or null
+        jobject Get(jlong value) const
+        {
+            jlong index = value - First;
+            return (index >= 0 && index < static_cast<jlong>(Values.size()) ? Values[static_cast<size_t>(index)].Object() : nullptr);
+        }
+
+        jlong First;
+        std::vector<JObject> Values;
+    };
+
+    static const Boxing& BooleanBoxing()
+    {
+        static Boxing boxing("java/lang/Boolean", "(Z)Ljava/lang/Boolean;", "booleanValue", "()Z");
+        return boxing;
+    }
+
+    static const Boxing& ByteBoxing()
+    {
+        static Boxing boxing("java/lang/Byte", "(B)Ljava/lang/Byte;", "byteValue", "()B");
+        return boxing;
+    }
+
+    static const Boxing& CharacterBoxing()
+    {
+        static Boxing boxing("java/lang/Character", "(C)Ljava/lang/Character;", "charValue", "()C");
+        return boxing;
+    }
+
+    static const Boxing& ShortBoxing()
+    {
+        static Boxing boxing("java/lang/Short", "(S)Ljava/lang/Short;", "shortValue", "()S");
+        return boxing;
+    }
+
+    static const Boxing& IntegerBoxing()
+    {
+        static Boxing boxing("java/lang/Integer", "(I)Ljava/lang/Integer;", "intValue", "()I");
+        return boxing;
+    }
+
+    static const Boxing& LongBoxing()
+    {
+        static Boxing boxing("java/lang/Long", "(J)Ljava/lang/Long;", "longValue", "()J");
+        return boxing;
+    }
+
+    static const Boxing& FloatBoxing()
+    {
+        static Boxing boxing("java/lang/Float", "(F)Ljava/lang/Float;", "floatValue", "()F");
+        return boxing;
+    }
+
+    static const Boxing& DoubleBoxing()
+    {
+        static Boxing boxing("java/lang/Double", "(D)Ljava/lang/Double;", "doubleValue", "()D");
+        return boxing;
+    }
+
+    LocalRef<jobject> Box(jboolean value)
+    {
+        const Boxing& boxing = BooleanBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jbyte value)
+    {
+        const Boxing& boxing = ByteBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jchar value)
+    {
+        const Boxing& boxing = CharacterBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jshort value)
+    {
+        const Boxing& boxing = ShortBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jint value)
+    {
+        const Boxing& boxing = IntegerBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jlong value)
+    {
+        const Boxing& boxing = LongBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jfloat value)
+    {
+        const Boxing& boxing = FloatBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    LocalRef<jobject> Box(jdouble value)
+    {
+        const Boxing& boxing = DoubleBoxing();
+        return LocalRef<jobject>(GetEnvironment()->CallStaticObjectMethod(boxing.Class, boxing.ValueOf, value));
+    }
+
+    BoxArg::BoxArg(jboolean value)
+    {
+        static BoxCache cache(BooleanBoxing(), static_cast<jboolean>(JNI_FALSE), static_cast<jboolean>(JNI_TRUE));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jbyte value)
+    {
+        static BoxCache cache(ByteBoxing(), static_cast<jbyte>(-128), static_cast<jbyte>(127));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jchar value)
+    {
+        static BoxCache cache(CharacterBoxing(), static_cast<jchar>(0), static_cast<jchar>(127));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jshort value)
+    {
+        static BoxCache cache(ShortBoxing(), static_cast<jshort>(-128), static_cast<jshort>(127));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jint value)
+    {
+        static BoxCache cache(IntegerBoxing(), static_cast<jint>(-128), static_cast<jint>(127));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jlong value)
+    {
+        static BoxCache cache(LongBoxing(), static_cast<jlong>(-128), static_cast<jlong>(127));
+        m_Object = cache.Get(value);
+        if (m_Object == nullptr)
+            m_Local = Box(value);
+    }
+
+    BoxArg::BoxArg(jfloat value)
+        : m_Local(Box(value))
+    {
+    }
+
+    BoxArg::BoxArg(jdouble value)
+        : m_Local(Box(value))
+    {
+    }
+
+    template <> jboolean Unbox<jboolean>(jobject object)
+    {
+        const Boxing& boxing = BooleanBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetBooleanField(object, boxing.Field) : env->CallBooleanMethod(object, boxing.Value));
+    }
+
+    template <> jbyte Unbox<jbyte>(jobject object)
+    {
+        const Boxing& boxing = ByteBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetByteField(object, boxing.Field) : env->CallByteMethod(object, boxing.Value));
+    }
+
+    template <> jchar Unbox<jchar>(jobject object)
+    {
+        const Boxing& boxing = CharacterBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetCharField(object, boxing.Field) : env->CallCharMethod(object, boxing.Value));
+    }
+
+    template <> jshort Unbox<jshort>(jobject object)
+    {
+        const Boxing& boxing = ShortBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetShortField(object, boxing.Field) : env->CallShortMethod(object, boxing.Value));
+    }
+
+    template <> jint Unbox<jint>(jobject object)
+    {
+        const Boxing& boxing = IntegerBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetIntField(object, boxing.Field) : env->CallIntMethod(object, boxing.Value));
+    }
+
+    template <> jlong Unbox<jlong>(jobject object)
+    {
+        const Boxing& boxing = LongBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetLongField(object, boxing.Field) : env->CallLongMethod(object, boxing.Value));
+    }
+
+    template <> jfloat Unbox<jfloat>(jobject object)
+    {
+        const Boxing& boxing = FloatBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetFloatField(object, boxing.Field) : env->CallFloatMethod(object, boxing.Value));
+    }
+
+    template <> jdouble Unbox<jdouble>(jobject object)
+    {
+        const Boxing& boxing = DoubleBoxing();
+        JNIEnv* env = GetEnvironment();
+        if (object == nullptr)
+            return 0;
+        return (boxing.Field != nullptr ? env->GetDoubleField(object, boxing.Field) : env->CallDoubleMethod(object, boxing.Value));
+    }
+
+
+    jobject NewThreadBuffer(void* address, jlong capacity)
+    {
+        JNIEnv* env = GetEnvironment();
+        jobject buffer = env->NewDirectByteBuffer(address, capacity);
+        jobject global = NewGlobalRef(env, buffer);
+        env->DeleteLocalRef(buffer);
+        return global;
+    }
+
+    void DeleteThreadBuffer(jobject buffer)
+    {
+        // Thread local storage is destroyed at thread exit, possibly after the
+        // thread was detached (or the JVM destroyed): attaching again then
+        // would never be undone.
+        JNIEnv* env = nullptr;
+        if (s_JVM != nullptr && s_JVM->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) == JNI_OK)
+            DeleteGlobalRef(env, buffer);
+    }
+
+
+    ThreadArrays::~ThreadArrays()
+    {
+        // As for the struct buffers, the thread may be detached by now
+        JNIEnv* env = nullptr;
+        if (s_JVM == nullptr || s_JVM->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK)
+            return;
+        for (int i = 0; i < m_Count; i++)
+            DeleteGlobalRef(env, m_Arrays[i]);
+    }
+
+    jarray ThreadArrays::Get(jsize length, jarray (*create)(JNIEnv& env, jsize length))
+    {
+        for (int i = 0; i < m_Count; i++)
+        {
+            if (m_Lengths[i] == length)
+                return m_Arrays[i];
+        }
+
+        JNIEnv* env = GetEnvironment();
+        jarray local = create(*env, length);
+        if (local == nullptr)
+            return nullptr;
+        jarray array = static_cast<jarray>(NewGlobalRef(env, local));
+        env->DeleteLocalRef(local);
+
+        int index = m_Count;
+        if (m_Count < Capacity)
+        {
+            m_Count++;
+        }
+        else
+        {
+            index = m_Next;
+            m_Next = (m_Next + 1) % Capacity;
+            DeleteGlobalRef(env, m_Arrays[index]);
+        }
+        m_Lengths[index] = length;
+        m_Arrays[index] = array;
+        return array;
+    }
+
+
+    struct ChunksClass
+    {
+        ChunksClass()
+            : Class("com/jni/runtime/Chunks")
+            , ObjectClass("java/lang/Object")
+        {
+            JNIEnv* env = GetEnvironment();
+            if (Class.Object() == nullptr)
+                return;
+            Iterator = env->GetStaticMethodID(Class, "iterator", "(Ljava/lang/Object;)Ljava/util/Iterator;");
+            Fill = env->GetStaticMethodID(Class, "fill", "(Ljava/util/Iterator;[Ljava/lang/Object;)I");
+        }
+
+        JClass Class;
+        JClass ObjectClass;
+        jmethodID Iterator = nullptr;
+        jmethodID Fill = nullptr;
+    };
+
+    static const ChunksClass& GetChunks()
+    {
+        static ChunksClass chunks;
+        return chunks;
+    }
+
+    ChunkReader::ChunkReader(jobject source, jsize chunkSize)
+        : m_ChunkSize(chunkSize > 0 ? chunkSize : 1)
+    {
+        JNIEnv* env = GetEnvironment();
+        const ChunksClass& chunks = GetChunks();
+        if (source == nullptr || chunks.Iterator == nullptr)
+            return;
+
+        m_Iterator = JObject(env->CallStaticObjectMethod(chunks.Class, chunks.Iterator, source), /*releaseLocalRef:*/ true);
+        if (m_Iterator.Object() != nullptr)
+            m_Chunk = JObject(env->NewObjectArray(m_ChunkSize, chunks.ObjectClass, nullptr), /*releaseLocalRef:*/ true);
+    }
+
+    ChunkReader::ChunkReader(ChunkReader&& reader)
+        : m_Iterator(std::move(reader.m_Iterator))
+        , m_Chunk(std::move(reader.m_Chunk))
+        , m_ChunkSize(reader.m_ChunkSize)
+        , m_Count(reader.m_Count)
+        , m_Index(reader.m_Index)
+        , m_Current(reader.m_Current)
+        , m_Framed(reader.m_Framed)
+    {
+        reader.m_Count = reader.m_Index = 0;
+        reader.m_Current = nullptr;
+        reader.m_Framed = false;
+    }
+
+    ChunkReader::~ChunkReader()
+    {
+        PopFrame();
+    }
+
+    bool ChunkReader::Next()
+    {
+        JNIEnv* env = GetEnvironment();
+        jobjectArray chunk = static_cast<jobjectArray>(m_Chunk.Object());
+        if (m_Index + 1 < m_Count)
+        {
+            m_Current = env->GetObjectArrayElement(chunk, ++m_Index);
+            return true;
+        }
+
+        // A short chunk was the last one
+        bool more = (chunk != nullptr && (!m_Framed || m_Count == m_ChunkSize));
+        PopFrame();
+        if (!more || env->PushLocalFrame(m_ChunkSize + 16) != JNI_OK)
+            return false;
+        m_Framed = true;
+
+        const ChunksClass& chunks = GetChunks();
+        m_Count = env->CallStaticIntMethod(chunks.Class, chunks.Fill, m_Iterator.Object(), chunk);
+        m_Index = 0;
+        if (env->ExceptionCheck() || m_Count <= 0)
+        {
+            m_Count = 0;
+            PopFrame();
+            return false;
+        }
+        m_Current = env->GetObjectArrayElement(chunk, 0);
+        return true;
+    }
+
+    void ChunkReader::PopFrame()
+    {
+        if (m_Framed)
+        {
+            GetEnvironment()->PopLocalFrame(nullptr);
+            m_Framed = false;
+        }
+        m_Current = nullptr;
+    }
+
+
+    void* const* GetUpcallTable(const char* className)
+    {
+        JNIEnv* env = GetEnvironment();
+        jclass clazz = env->FindClass(className);
+        jmethodID methodID = (clazz != nullptr ? env->GetStaticMethodID(clazz, "table", "()J") : nullptr);
+        jlong table = (methodID != nullptr ? env->CallStaticLongMethod(clazz, methodID) : 0);
+
+        // Without java.lang.foreign (or native access) the peer falls back
+        // to JNI calls, so the failure is not the caller's exception.
+        if (env->ExceptionCheck())
+        {
+            env->ExceptionClear();
+            table = 0;
+        }
+        if (clazz != nullptr)
+            env->DeleteLocalRef(clazz);
+        return reinterpret_cast<void* const*>(static_cast<intptr_t>(table));
+    }
+
+    void ThrowUpcallException()
+    {
+        static JClass clazz("com/jni/runtime/Upcalls");
+        static jmethodID methodID(GetEnvironment()->GetStaticMethodID(clazz, "rethrow", "()V"));
+        GetEnvironment()->CallStaticVoidMethod(clazz, methodID);
+    }
+
+
+    static void JNICALL ReleaseCallback(JNIEnv*, jclass, jlong handle)
+    {
+        delete Callback::FromHandle(handle);
+    }
+
+    void Callback::ThrowJava(JNIEnv* env)
+    {
+        static JClass clazz("java/lang/RuntimeException");
+        try
+        {
+            throw;
+        }
+        catch (const std::exception& e)
+        {
+            env->ThrowNew(clazz, e.what());
+        }
+        catch (...)
+        {
+            env->ThrowNew(clazz, "C++ exception");
+        }
+    }
+
+    bool Callback::RegisterTrampoline(jclass trampoline, const JNINativeMethod* methods, jint count)
+    {
+        JNIEnv* env = GetEnvironment();
+        JNINativeMethod release = { const_cast<char*>("releaseCallback"), const_cast<char*>("(J)V"), reinterpret_cast<void*>(&ReleaseCallback) };
+        return trampoline != nullptr
+            && env->RegisterNatives(trampoline, methods, count) == JNI_OK
+            && env->RegisterNatives(trampoline, &release, 1) == JNI_OK;
+    }
+
+    LocalRef<jobject> Callback::NewTrampoline(jclass trampoline, Callback* callback, bool owned)
+    {
+        JNIEnv* env = GetEnvironment();
+        jmethodID constructor = (trampoline != nullptr ? env->GetMethodID(trampoline, "<init>", "(JZ)V") : nullptr);
+        if (constructor == nullptr)
+        {
+            if (owned)
+                delete callback;
+            return LocalRef<jobject>();
+        }
+        jlong handle = static_cast<jlong>(reinterpret_cast<intptr_t>(callback));
+        jobject object = env->NewObject(trampoline, constructor, handle, static_cast<jboolean>(owned));
+        if (object == nullptr && owned)
+            delete callback;
+        return LocalRef<jobject>(object);
+    }
+
 } // namespace JNI
@@ -24,9 +24,26 @@
 #pragma once
 
 #include <jni.h>
+#include <cstddef>
+#include <cstdint>
+#include <initializer_list>
+#include <limits>
+#include <memory>
+#include <type_traits>
+#include <utility>
+#include <vector>
+
+#if defined(__has_include)
+#if __has_include(<string_view>) && (__cplusplus >= 201703L || (defined(_MSVC_LANG) && _MSVC_LANG >= 201703L))
+#include <string_view>
+#define JNI_HAS_STRING_VIEW 1
+#endif
+#endif
 
 namespace JNI {
 
+    JNIEnv& STDMETHODCALLTYPE GetEnv();
+
     // Stores an auto ref-counted (global reference) jobject
     struct JObject
     {
@@ -60,7 +77,7 @@ namespace JNI {
         explicit JClass(const char* className);
         JClass(jclass clazz) : JObject(clazz) { }
         JClass(const JClass& clazz) : JObject(clazz) { }
-        JClass(JClass&& clazz) : JObject(clazz) { }
+        JClass(JClass&& clazz) : JObject(std::move(clazz)) { }
         ~JClass();
 
         JClass& operator=(jclass clazz)
@@ -77,7 +94,7 @@ namespace JNI {
 
         JClass& operator=(JClass&& clazz)
         {
-            JObject::operator=(clazz);
+            JObject::operator=(std::move(clazz));
             return *this;
         }
 
@@ -92,7 +109,7 @@ namespace JNI {
     public:
         JString(jstring string, bool removeLocalRef = false);
         JString(const JString& string) : JObject(string) { }
-        JString(JString&& string) : JObject(string) { }
+        JString(JString&& string);
         JString(const char* content);
         JString(const wchar_t* content);
         ~JString();
@@ -111,12 +128,7 @@ namespace JNI {
             return *this;
         }
 
-        JString& operator=(JString&& string)
-        {
-            Clear();
-            JObject::operator=(string);
-            return *this;
-        }
+        JString& operator=(JString&& string);
 
         const char* GetUTFString() const;
         int GetUTFLength() const;
@@ -135,6 +147,118 @@ namespace JNI {
     };
 
 
+    // Owns a JNI local reference, as returned by Java methods, and deletes it
+    // when it goes out of scope.  Move-only: a local reference has a single
+    // owner.  It only converts to T as a named value, so that the reference
+    // cannot be taken out of a temporary which is about to delete it.
+    template <typename T>
+    class LocalRef
+    {
+    public:
+        LocalRef() { }
+        explicit LocalRef(T object) : m_Object(object) { }
+        LocalRef(LocalRef&& ref) : m_Object(ref.Release()) { }
+        LocalRef(const LocalRef&) = delete;
+        ~LocalRef() { Reset(); }
+
+        LocalRef& operator=(LocalRef&& ref)
+        {
+            if (this != &ref)
+            {
+                Reset();
+                m_Object = ref.Release();
+            }
+            return *this;
+        }
+
+        LocalRef& operator=(const LocalRef&) = delete;
+
+        T Get() const { return m_Object; }
+        operator T() const & { return m_Object; }
+        operator T() const && = delete;
+        explicit operator bool() const { return m_Object != nullptr; }
+
+        // Gives up ownership; the caller becomes responsible for the reference.
+        T Release()
+        {
+            T object = m_Object;
+            m_Object = nullptr;
+            return object;
+        }
+
+        void Reset()
+        {
+            if (m_Object != nullptr)
+            {
+                GetEnv().DeleteLocalRef(m_Object);
+                m_Object = nullptr;
+            }
+        }
+
+    private:
+        T m_Object = nullptr;
+    };
+
+
+    // The constants of a Java enum as global references, in the order of
+    // the names given (the ordinals of the generated enum class).
+    class EnumConstants
+    {
+    public:
+        EnumConstants(const char* className, std::initializer_list<const char*> names);
+
+        jclass GetClass() const { return m_Class; }
+
+        // The constant of an ordinal, or null when out of range.
+        jobject Get(jint ordinal) const;
+
+        // The ordinal of a constant, or -1 for null.  It reads the ordinal
+        // field, unless the Java enum no longer matches the names given, in
+        // which case it compares the references.
+        jint Ordinal(jobject constant) const;
+
+    private:
+        JClass m_Class;
+        std::vector<JObject> m_Constants;
+        jfieldID m_Ordinal = nullptr;
+    };
+
+    // Specialized by the generated header of each JNIEnum E, with
+    //   static jobject ToJava(E value);    a global reference, not to delete
+    //   static E FromJava(jobject object); E(-1) for null
+    template <typename E> struct EnumPeer;
+
+
+#ifdef JNI_HAS_STRING_VIEW
+    // A jstring for a single call, which the generated string_view overloads
+    // pass in place of a JString: a local reference deleted after the call,
+    // rather than a global one.  UTF-8 is standard (not modified) UTF-8.
+    // With a string cache (SetStringCacheCapacity), it is the cached global
+    // reference of the text instead.
+    class StringArg
+    {
+    public:
+        explicit StringArg(std::string_view text);
+        explicit StringArg(std::u16string_view text);
+        ~StringArg();
+
+        StringArg(const StringArg&) = delete;
+        StringArg& operator=(const StringArg&) = delete;
+
+        jstring Get() const { return m_String; }
+
+    private:
+        bool m_Local = false;   // set by the initializer of m_String
+        jstring m_String = nullptr;
+    };
+
+    // Keeps global jstrings for up to capacity texts per thread, least
+    // recently used first out, for keys passed over and over.  Off (0) by
+    // default.
+    void SetStringCacheCapacity(size_t capacity);
+#endif
+
+
     // Base class for all auto-generated "managed peer" classes.
     class ManagedPeer
     {
@@ -142,24 +266,367 @@ namespace JNI {
         // Constructor with a Java object to be able to invoke instance methods.
         ManagedPeer();
         explicit ManagedPeer(jobject object);
+
+        // Takes over a local reference, typically the result of a Java method,
+        // without creating a global reference.  Such a peer belongs to the
+        // thread and native frame that got the reference; copying it (or
+        // MakeGlobal) gives a peer holding a global reference.
+        explicit ManagedPeer(LocalRef<jobject>&& object);
+
+        ManagedPeer(const ManagedPeer& peer);
+        ManagedPeer(ManagedPeer&& peer);
         ~ManagedPeer();
 
         ManagedPeer& operator=(jobject obj);
+        ManagedPeer& operator=(const ManagedPeer& peer);
+        ManagedPeer& operator=(ManagedPeer&& peer);
 
-        operator jobject () const { return m_Object; }
-        jobject Object() const { return m_Object; }
+        operator jobject () const { return Object(); }
+        jobject Object() const { return m_Local ? m_Local.Get() : m_Object.Object(); }
+
+        // Whether the peer only holds a local reference.
+        bool IsLocal() const { return static_cast<bool>(m_Local); }
+
+        // Replaces a local reference with a global one, before keeping the
+        // peer beyond the current native frame or passing it to another thread.
+        void MakeGlobal();
 
         // Helper to get the JNI environment for invoking Java methods
         static JNIEnv& Env();
 
     private:
         JObject m_Object;
+        LocalRef<jobject> m_Local;
+    };
+
+
+    // Boxes a primitive into its java.lang wrapper (valueOf), and back.
+    // Unboxing reads the value field of the wrapper, and gives 0 for null.
+    LocalRef<jobject> Box(jboolean value);
+    LocalRef<jobject> Box(jbyte value);
+    LocalRef<jobject> Box(jchar value);
+    LocalRef<jobject> Box(jshort value);
+    LocalRef<jobject> Box(jint value);
+    LocalRef<jobject> Box(jlong value);
+    LocalRef<jobject> Box(jfloat value);
+    LocalRef<jobject> Box(jdouble value);
+
+    template <typename T> T Unbox(jobject object);
+    template <> jboolean Unbox<jboolean>(jobject object);
+    template <> jbyte Unbox<jbyte>(jobject object);
+    template <> jchar Unbox<jchar>(jobject object);
+    template <> jshort Unbox<jshort>(jobject object);
+    template <> jint Unbox<jint>(jobject object);
+    template <> jlong Unbox<jlong>(jobject object);
+    template <> jfloat Unbox<jfloat>(jobject object);
+    template <> jdouble Unbox<jdouble>(jobject object);
+
+    // A boxed primitive for a single call, which the generated boxing
+    // overloads pass in place of a wrapper.  The wrappers the JDK caches
+    // (booleans, and integers from -128 to 127, characters up to 127) are
+    // held by the runtime as global references, so passing them takes no
+    // call into Java; other values are boxed with valueOf into a local
+    // reference deleted after the call.
+    class BoxArg
+    {
+    public:
+        explicit BoxArg(jboolean value);
+        explicit BoxArg(jbyte value);
+        explicit BoxArg(jchar value);
+        explicit BoxArg(jshort value);
+        explicit BoxArg(jint value);
+        explicit BoxArg(jlong value);
+        explicit BoxArg(jfloat value);
+        explicit BoxArg(jdouble value);
+
+        BoxArg(const BoxArg&) = delete;
+        BoxArg& operator=(const BoxArg&) = delete;
+
+        jobject Get() const { return m_Local ? m_Local.Get() : m_Object; }
+
+    private:
+        LocalRef<jobject> m_Local;
+        jobject m_Object = nullptr;
+    };
+
+
+    // Global reference to a direct java.nio.ByteBuffer over memory of the
+    // calling thread, and its release.  The release is skipped (the reference
+    // leaks) when the thread is no longer attached to the JVM.
+    jobject NewThreadBuffer(void* address, jlong capacity);
+    void DeleteThreadBuffer(jobject buffer);
+
+    // The per thread direct ByteBuffer through which a JNIStruct crosses to
+    // Java (see the generated <Name>Codec) in a single call, without
+    // allocating anything after the first call.  Slot keeps apart the buffers
+    // of several T passed in the same call.
+    template <typename T, int Slot = 0>
+    class StructBuffer
+    {
+    public:
+        StructBuffer() { }
+        explicit StructBuffer(const T& value) { GetStorage().Value = value; }
+
+        StructBuffer(const StructBuffer&) = delete;
+        StructBuffer& operator=(const StructBuffer&) = delete;
+
+        jobject Buffer() const { return GetStorage().Buffer; }
+        const T& Get() const { return GetStorage().Value; }
+
+    private:
+        struct Storage
+        {
+            Storage() : Buffer(NewThreadBuffer(&Value, sizeof(T))) { }
+            ~Storage() { DeleteThreadBuffer(Buffer); }
+
+            T Value = T();
+            jobject Buffer;
+        };
+
+        static Storage& GetStorage()
+        {
+            thread_local Storage storage;
+            return storage;
+        }
+    };
+
+
+    // A contiguous run of T, such as a std::vector, std::array or C array,
+    // which the generated peers take in place of a Java primitive array (T is
+    // const) or fill from one.  It does not own the elements.
+    template <typename T>
+    class ArrayRef
+    {
+    public:
+        ArrayRef() { }
+        ArrayRef(T* data, size_t size) : m_Data(data), m_Size(size) { }
+
+        template <size_t N>
+        ArrayRef(T (&data)[N]) : m_Data(data), m_Size(N) { }
+
+        template <typename Container, typename = typename std::enable_if<
+            std::is_convertible<decltype(std::declval<Container&>().data()), T*>::value>::type>
+        ArrayRef(Container&& container) : m_Data(container.data()), m_Size(container.size()) { }
+
+        T* Data() const { return m_Data; }
+        size_t Size() const { return m_Size; }
+
+    private:
+        T* m_Data = nullptr;
+        size_t m_Size = 0;
+    };
+
+    // The JNI array functions of each primitive element type.
+    template <typename T> struct ArrayTraits;
+
+#define JNI_ARRAY_TRAITS(Type, Name) \
+    template <> struct ArrayTraits<Type> \
+    { \
+        typedef Type##Array ArrayType; \
+        static jarray New(JNIEnv& env, jsize length) { return env.New##Name##Array(length); } \
+        static void Set(JNIEnv& env, ArrayType array, jsize length, const Type* data) { env.Set##Name##ArrayRegion(array, 0, length, data); } \
+        static void Get(JNIEnv& env, ArrayType array, jsize length, Type* data) { env.Get##Name##ArrayRegion(array, 0, length, data); } \
+    };
+
+    JNI_ARRAY_TRAITS(jboolean, Boolean)
+    JNI_ARRAY_TRAITS(jbyte, Byte)
+    JNI_ARRAY_TRAITS(jchar, Char)
+    JNI_ARRAY_TRAITS(jshort, Short)
+    JNI_ARRAY_TRAITS(jint, Int)
+    JNI_ARRAY_TRAITS(jlong, Long)
+    JNI_ARRAY_TRAITS(jfloat, Float)
+    JNI_ARRAY_TRAITS(jdouble, Double)
+
+#undef JNI_ARRAY_TRAITS
+
+    // The Java arrays kept by a thread between calls, one per length for the
+    // last few lengths used, as global references released at thread exit.
+    class ThreadArrays
+    {
+    public:
+        ThreadArrays() { }
+        ~ThreadArrays();
+
+        ThreadArrays(const ThreadArrays&) = delete;
+        ThreadArrays& operator=(const ThreadArrays&) = delete;
+
+        jarray Get(jsize length, jarray (*create)(JNIEnv& env, jsize length));
+
+    private:
+        static const int Capacity = 8;
+
+        jsize m_Lengths[Capacity];
+        jarray m_Arrays[Capacity];
+        int m_Count = 0;
+        int m_Next = 0;     // replaced next once full
+    };
+
+    // Copies values into a Java array of their length, kept for the calling
+    // thread: a call made with an ArrayRef allocates nothing after the first
+    // call of that length.  Slot keeps apart the arrays of several
+    // parameters of the same call.  The Java method must not keep the array.
+    template <int Slot, typename T>
+    typename ArrayTraits<T>::ArrayType CopyToThreadArray(ArrayRef<const T> values)
+    {
+        // The thread is attached first, so that it is detached after the
+        // arrays are deleted
+        JNIEnv& env = GetEnv();
+        thread_local ThreadArrays arrays;
+        jsize length = static_cast<jsize>(values.Size());
+        auto array = static_cast<typename ArrayTraits<T>::ArrayType>(arrays.Get(length, &ArrayTraits<T>::New));
+        if (array != nullptr)
+            ArrayTraits<T>::Set(env, array, length, values.Data());
+        return array;
+    }
+
+    // Copies a returned Java array into result, as far as it fits, and returns
+    // the length of the Java array, or -1 when it is null.
+    template <typename T>
+    jsize CopyFromArray(const LocalRef<typename ArrayTraits<T>::ArrayType>& array, ArrayRef<T> result)
+    {
+        if (!array)
+            return -1;
+        JNIEnv& env = GetEnv();
+        jsize length = env.GetArrayLength(array.Get());
+        jsize count = (static_cast<size_t>(length) < result.Size() ? length : static_cast<jsize>(result.Size()));
+        ArrayTraits<T>::Get(env, array.Get(), count, result.Data());
+        return length;
+    }
+
+
+    // Reads the elements of a Java Iterable (such as a Collection), Iterator,
+    // Stream or object array in chunks: com.jni.runtime.Chunks copies up to
+    // chunkSize elements into a Java array per call, so a scan makes one call
+    // per chunk rather than two per element.  Each chunk has a local frame of
+    // its own, which also holds the local references made while handling its
+    // elements; it is popped when the reader moves on, so an element kept
+    // longer needs a global reference.  The frames nest with the caller's:
+    // use a reader within a single native frame, as a range-for does.
+    class ChunkReader
+    {
+    public:
+        explicit ChunkReader(jobject source, jsize chunkSize = 256);
+        ChunkReader(ChunkReader&& reader);
+        ~ChunkReader();
+
+        ChunkReader(const ChunkReader&) = delete;
+        ChunkReader& operator=(const ChunkReader&) = delete;
+
+        // Moves to the next element, reading the next chunk as needed; false
+        // at the end, or when reading fails with a pending exception.
+        bool Next();
+        jobject Current() const { return m_Current; }
+
+    private:
+        void PopFrame();
+
+        JObject m_Iterator;
+        JObject m_Chunk;
+        jsize m_ChunkSize;
+        jsize m_Count = 0;
+        jsize m_Index = 0;
+        jobject m_Current = nullptr;
+        bool m_Framed = false;
+    };
+
+    // A single pass range over a ChunkReader, its elements cast to T (such as
+    // jstring):  for (jstring name : JNI::JavaRange<jstring>(names)) ...
+    template <typename T = jobject>
+    class JavaRange
+    {
+    public:
+        explicit JavaRange(jobject source, jsize chunkSize = 256) : m_Reader(source, chunkSize) { }
+
+        class iterator
+        {
+        public:
+            iterator() { }
+            explicit iterator(ChunkReader* reader) : m_Reader(reader) { }
+
+            T operator*() const { return static_cast<T>(m_Reader->Current()); }
+            iterator& operator++()
+            {
+                if (!m_Reader->Next())
+                    m_Reader = nullptr;
+                return *this;
+            }
+
+            bool operator==(const iterator& other) const { return m_Reader == other.m_Reader; }
+            bool operator!=(const iterator& other) const { return m_Reader != other.m_Reader; }
+
+        private:
+            ChunkReader* m_Reader = nullptr;
+        };
+
+        iterator begin() { return iterator(m_Reader.Next() ? &m_Reader : nullptr); }
+        iterator end() { return iterator(); }
+
+    private:
+        ChunkReader m_Reader;
+    };
+
+
+    // The function pointers of the FFM upcall stubs of the peers generated
+    // with -backend ffm: the table returned by the static table() method of
+    // the named <Name>Upcalls class (see com.jni.runtime.Upcalls), or null
+    // when it cannot be created, in which case the peer makes JNI calls.
+    void* const* GetUpcallTable(const char* className);
+
+    // Makes the exception thrown by the last failed upcall of the calling
+    // thread pending, as if it was thrown by a JNI call.
+    void ThrowUpcallException();
+
+
+    // The base of the C++ implementations of JNICallback interfaces (see the
+    // generated <Name>Callback).  The Java <Name>Trampoline holds the address
+    // of this base as its handle, and its static native methods call the
+    // virtual functions of the callback through it.
+    class Callback
+    {
+    public:
+        Callback() { }
+        virtual ~Callback() { }
+
+        Callback(const Callback&) = delete;
+        Callback& operator=(const Callback&) = delete;
+
+        static Callback* FromHandle(jlong handle) { return reinterpret_cast<Callback*>(static_cast<intptr_t>(handle)); }
+
+        // Makes the C++ exception being handled pending as a Java
+        // RuntimeException, so it does not unwind through the JVM.  Only
+        // called from a catch block.
+        static void ThrowJava(JNIEnv* env);
+
+    protected:
+        // Registers the native methods of a trampoline class, along with the
+        // release method deleting its owned callbacks.
+        static bool RegisterTrampoline(jclass trampoline, const JNINativeMethod* methods, jint count);
+
+        // A new trampoline calling callback.  An owned callback is deleted
+        // once the trampoline is collected; otherwise it must outlive the
+        // trampoline.
+        static LocalRef<jobject> NewTrampoline(jclass trampoline, Callback* callback, bool owned);
     };
 
 
     // Store the Java virtual machine for general use.  Should be set in JNI_OnLoad.
+    // A native thread which is not attached is attached on its first use of
+    // the runtime, and detached again when it exits.
     void STDMETHODCALLTYPE SetJVM(JavaVM* jvm);
     JavaVM* STDMETHODCALLTYPE GetJVM();
     JNIEnv& STDMETHODCALLTYPE GetEnv();
 
+
+    // The JNI resources the runtime holds, for finding leaks: what it still
+    // holds should not grow with the number of calls.
+    struct Stats
+    {
+        int64_t GlobalRefs;         // global references created and not deleted yet
+        int64_t StringChars;        // JString contents got and not released yet
+        int64_t AttachedThreads;    // threads attached by the runtime, not exited yet
+        int64_t ThreadsAttached;    // threads ever attached by the runtime
+    };
+
+    Stats STDMETHODCALLTYPE GetStats();
+
 } // namespace JNI
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.jni.annotation.JNIMethod;
+import com.jni.tools.javah.Mangle;
+import com.jni.tools.javah.TypeSignature;
+import com.jni.tools.javah.Util;
+
+/**
+ * Throughput benchmark of the generator over a synthetic corpus: thousands
+ * of JNIClass classes with many methods, nested JNIClass classes and deep
+ * signatures (arrays of arrays, generics, peers and nested peers of other
+ * classes, boxes, overloads and names which need escaping).
+ *
+ * The corpus is written and compiled once.  Then JNITask runs end to end
+ * over it, into an empty directory and again over its own (up to date)
+ * output, and the hot paths of the generator are timed on their own over
+ * the same classes: TypeSignature, Mangle, jniType, emitting the header and
+ * cpp into memory, and writeIfChanged creating and comparing the files.
+ * Each is run a few times to warm up, then measured; the time and the bytes
+ * allocated (by this thread, where the JVM can tell) are reported per run
+ * and per generated class.
+ *
+ * It is a timed harness rather than JMH so that it runs from the tool's
+ * classes alone, and since a run takes seconds, not microseconds.  Compile
+ * it against the tool's classes and run with them (and tools.jar before
+ * Java 9) on the class path:
+ *
+ *   java com.jni.tools.JNIBenchmark [options]
+ *
+ *   -classes n     top level classes in the corpus (2000)
+ *   -methods n     JNIMethod methods of a top level class (16)
+ *   -depth n       nested JNIClass classes in each class (2)
+ *   -params n      most parameters of a method (8)
+ *   -warmup n      unmeasured runs of each phase (2)
+ *   -iterations n  measured runs of each phase (5)
+ *   -classfile     run JNITask with the -classfile front end
+ *   -dir dir       where to put the corpus (a new temporary directory)
+ */
+public class JNIBenchmark {
+	private static final String PACKAGE = "bench";
+	private static final int PACKAGES = 16;
+
+	/* the parameter types, some of them filled in with other classes of the corpus */
+	private static final String PEER = "<peer>";
+	private static final String NESTED = "<nested>";
+	private static final String[] PARAMETER_TYPES = {
+		"int", "long", "double", "boolean", "byte", "char", "short", "float",
+		"int[]", "double[][]", "byte[]", "long[][][]", "String", "String[]", "Object",
+		"java.util.List<String>", "java.util.Map<String, java.util.List<Integer>>",
+		"java.util.Collection<? extends Number>", "Integer", "Long",
+		PEER, NESTED, PEER + "[]",
+	};
+	private static final String[] RETURN_TYPES = {
+		"void", "void", "int", "long", "double", "boolean", "String", "int[]",
+		"String[][]", "Integer", "java.util.List<String>", PEER, NESTED,
+	};
+
+	private int classes = 2000;
+	private int methods = 16;
+	private int depth = 2;
+	private int params = 8;
+	private int warmup = 2;
+	private int iterations = 5;
+	private boolean classFile = false;
+	private File dir;
+
+	private final PrintWriter out = new PrintWriter(System.out, true);
+	private int generated;
+	private long sink;
+
+	public static void main(String[] args) throws Exception {
+		JNIBenchmark benchmark = new JNIBenchmark();
+		if (!benchmark.parse(args)) {
+			System.err.println("usage: JNIBenchmark [-classes n] [-methods n] [-depth n] [-params n] [-warmup n] [-iterations n] [-classfile] [-dir dir]");
+			System.exit(2);
+		}
+		System.exit(benchmark.run() ? 0 : 1);
+	}
+
+	private boolean parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-classfile")) {
+				classFile = true;
+				continue;
+			}
+			if (i + 1 == args.length)
+				return false;
+			String value = args[++i];
+			if (arg.equals("-dir")) {
+				dir = new File(value);
+				continue;
+			}
+			int n;
+			try {
+				n = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (arg.equals("-classes") && n > 0)
+				classes = n;
+			else if (arg.equals("-methods") && n > 0)
+				methods = n;
+			else if (arg.equals("-depth") && n >= 0)
+				depth = n;
+			else if (arg.equals("-params") && n > 0)
+				params = n;
+			else if (arg.equals("-warmup") && n >= 0)
+				warmup = n;
+			else if (arg.equals("-iterations") && n > 0)
+				iterations = n;
+			else
+				return false;
+		}
+		return true;
+	}
+
+	private boolean run() throws Exception {
+		if (dir == null)
+			dir = Files.createTempDirectory("jnibench").toFile();
+		File src = new File(dir, "src");
+		File bin = new File(dir, "classes");
+		String classPath = bin + File.pathSeparator + System.getProperty("java.class.path");
+
+		long start = System.nanoTime();
+		List<File> files = writeCorpus(src);
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null);
+		bin.mkdirs();
+		List<String> opts = Arrays.asList("-d", bin.getPath(), "-cp", classPath, "-proc:none", "-nowarn");
+		if (!compiler.getTask(null, fm, null, opts, null, fm.getJavaFileObjectsFromFiles(files)).call())
+			return false;
+		out.println("corpus: " + classes + " classes, " + generated + " with the nested ones, in " + dir
+				+ " (" + (System.nanoTime() - start) / 1000000 + " ms to write and compile)");
+		out.println(String.format("%-24s %10s %10s %10s %12s", "phase", "best ms", "mean ms", "us/class", "bytes/class"));
+
+		final List<String> names = new ArrayList<String>();
+		for (int i = 0; i < classes; i++)
+			names.add(className(i));
+
+		/* The phases on their own, in a javac task over the compiled corpus */
+		PhaseProcessor processor = new PhaseProcessor(new File(dir, "write"));
+		opts = Arrays.asList("-proc:only", "-cp", classPath);
+		CompilationTask task = compiler.getTask(null, fm, null, opts, names, null);
+		task.setProcessors(Collections.singleton(processor));
+		if (!task.call() || processor.failure != null) {
+			if (processor.failure != null)
+				processor.failure.printStackTrace();
+			return false;
+		}
+
+		/* JNITask end to end, from the command line in */
+		final List<String> args = new ArrayList<String>(Arrays.asList("-classpath", classPath));
+		if (classFile)
+			args.add("-classfile");
+		final File gen = new File(dir, "gen");
+		measure(new Phase("JNITask (new)") {
+			void run(int iteration) throws Exception {
+				check(generate(new File(gen, "run" + iteration), args, names));
+			}
+		});
+		measure(new Phase("JNITask (up to date)") {
+			void run(int iteration) throws Exception {
+				check(generate(new File(gen, "run0"), args, names));
+			}
+		});
+		fm.close();
+		return true;
+	}
+
+	private static boolean generate(File odir, List<String> args, List<String> classNames) {
+		List<String> list = new ArrayList<String>(Arrays.asList("-d", odir.getPath()));
+		list.addAll(args);
+		list.addAll(classNames);
+		JNITask task = new JNITask();
+		task.setLog(new PrintWriter(System.err, true));
+		return task.run(list.toArray(new String[list.size()])) == 0;
+	}
+
+	private static void check(boolean ok) {
+		if (!ok)
+			throw new IllegalStateException("the generator failed");
+	}
+
+	/*
+	 * One run of a phase over the whole corpus.
+	 */
+	private static abstract class Phase {
+		Phase(String name) {
+			this.name = name;
+		}
+
+		abstract void run(int iteration) throws Exception;
+
+		final String name;
+	}
+
+	private void measure(Phase phase) throws Exception {
+		long best = Long.MAX_VALUE;
+		long time = 0;
+		long bytes = 0;
+		for (int i = 0; i < warmup + iterations; i++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			phase.run(i);
+			long elapsed = System.nanoTime() - start;
+			if (i < warmup)
+				continue;
+			best = Math.min(best, elapsed);
+			time += elapsed;
+			bytes = (allocated < 0 || bytes < 0) ? -1 : bytes + allocatedBytes() - allocated;
+		}
+		time /= iterations;
+		out.println(String.format("%-24s %10.1f %10.1f %10.2f %12s", phase.name, best / 1e6, time / 1e6, time / 1e3 / generated,
+				bytes < 0 ? "n/a" : Long.toString(bytes / iterations / generated)));
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/*
+	 * Runs the phases in the first round, while javac's elements are valid.
+	 */
+	@SupportedAnnotationTypes("*")
+	private class PhaseProcessor extends AbstractProcessor {
+		PhaseProcessor(File write) {
+			this.write = write;
+		}
+
+		@Override
+		public SourceVersion getSupportedSourceVersion() {
+			return SourceVersion.latest();
+		}
+
+		public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+			if (roundEnv.processingOver() || failure != null || done)
+				return false;
+			done = true;
+			try {
+				runPhases(new LinkedHashSet<TypeElement>(ElementFilter.typesIn(roundEnv.getRootElements())));
+			} catch (Exception e) {
+				failure = e;
+			} catch (Util.Exit e) {
+				failure = e;
+			}
+			return false;
+		}
+
+		private void runPhases(Set<TypeElement> roots) throws Exception {
+			Util util = new Util(new PrintWriter(System.err, true), new DiagnosticListener<JavaFileObject>() {
+				public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+					System.err.println(diagnostic.getMessage(null));
+				}
+			});
+			final Probe probe = new Probe(util);
+			final StandardJavaFileManager fm = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+			probe.setFileManager(fm);
+			probe.setProcessingEnvironment(processingEnv);
+			probe.setClasses(JNIProcessor.getAllJNIClasses(roots));
+			probe.collect();
+			if (probe.methods.size() != generated)
+				throw new IllegalStateException(probe.methods.size() + " classes found, " + generated + " written");
+
+			measure(new Phase("TypeSignature") {
+				void run(int iteration) throws Exception {
+					probe.typeSignatures();
+				}
+			});
+			measure(new Phase("Mangle") {
+				void run(int iteration) throws Exception {
+					probe.mangle();
+				}
+			});
+			measure(new Phase("jniType") {
+				void run(int iteration) throws Exception {
+					probe.jniTypes();
+				}
+			});
+			measure(new Phase("emit (in memory)") {
+				void run(int iteration) throws Exception {
+					probe.emit();
+				}
+			});
+			measure(new Phase("writeIfChanged (new)") {
+				void run(int iteration) throws Exception {
+					File odir = new File(write, "run" + iteration);
+					odir.mkdirs();
+					fm.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(odir));
+					probe.write();
+				}
+			});
+			measure(new Phase("writeIfChanged (same)") {
+				void run(int iteration) throws Exception {
+					fm.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(new File(write, "run0")));
+					probe.write();
+				}
+			});
+			fm.close();
+		}
+
+		private final File write;
+		private boolean done;
+		Throwable failure;
+	}
+
+	/*
+	 * The generator, with its phases taken apart.
+	 */
+	private class Probe extends JNIGenerator {
+		Probe(Util util) {
+			super(util);
+		}
+
+		/* The JNIMethod methods of every class, outside of the timed phases */
+		void collect() {
+			for (TypeElement clazz : classes) {
+				List<ExecutableElement> list = new ArrayList<ExecutableElement>();
+				for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+					if (method.getAnnotation(JNIMethod.class) != null)
+						list.add(method);
+				}
+				methods.put(clazz, list);
+			}
+		}
+
+		void typeSignatures() throws TypeSignature.SignatureException {
+			TypeSignature typeSignature = new TypeSignature(elems);
+			for (Map.Entry<TypeElement, List<ExecutableElement>> entry : methods.entrySet()) {
+				sink += typeSignature.getTypeSignature(entry.getKey()).length();
+				for (ExecutableElement method : entry.getValue())
+					sink += typeSignature.getTypeSignature(signature(method), types.erasure(method.getReturnType())).length();
+			}
+		}
+
+		void mangle() throws TypeSignature.SignatureException {
+			for (Map.Entry<TypeElement, List<ExecutableElement>> entry : methods.entrySet()) {
+				TypeElement clazz = entry.getKey();
+				sink += mangler.mangle(clazz.getSimpleName(), Mangle.Type.CLASS).length();
+				for (ExecutableElement method : entry.getValue()) {
+					sink += mangler.mangle(method.getSimpleName(), Mangle.Type.FIELDSTUB).length();
+					sink += mangler.mangleMethod(method, clazz, Mangle.Type.METHOD_JNI_LONG).length();
+				}
+			}
+		}
+
+		void jniTypes() throws Util.Exit {
+			for (List<ExecutableElement> list : methods.values()) {
+				for (ExecutableElement method : list) {
+					if (method.getReturnType().getKind() != TypeKind.VOID)
+						sink += jniType(types.erasure(method.getReturnType())).length();
+					for (VariableElement param : method.getParameters())
+						sink += jniType(types.erasure(param.asType())).length();
+				}
+			}
+		}
+
+		void emit() throws Util.Exit {
+			contents.clear();
+			for (TypeElement clazz : methods.keySet()) {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+				writeDeclaration(bout, clazz);
+				contents.put(baseFileName(clazz) + ".h", bout.toByteArray());
+				if (hasDefinition(clazz)) {
+					bout = new ByteArrayOutputStream(8192);
+					writeDefinition(bout, clazz);
+					contents.put(baseFileName(clazz) + ".cpp", bout.toByteArray());
+				}
+			}
+		}
+
+		void write() throws IOException {
+			for (Map.Entry<String, byte[]> entry : contents.entrySet())
+				writeIfChanged(entry.getKey(), entry.getValue());
+		}
+
+		final Map<TypeElement, List<ExecutableElement>> methods = new LinkedHashMap<TypeElement, List<ExecutableElement>>();
+		final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+	}
+
+	/*
+	 * The corpus.  It only depends on the options, so runs with the same
+	 * options measure the same classes.
+	 */
+	private List<File> writeCorpus(File src) throws IOException {
+		List<File> files = new ArrayList<File>();
+		generated = 0;
+		for (int i = 0; i < classes; i++) {
+			StringBuilder sb = new StringBuilder();
+			String pkg = PACKAGE + ".p" + (i % PACKAGES);
+			sb.append("package " + pkg + ";\n\n");
+			sb.append("import com.jni.annotation.JNIClass;\n");
+			sb.append("import com.jni.annotation.JNIMethod;\n\n");
+			writeClass(sb, i, 0, "", "public class " + simpleName(i), methods);
+			Path dir = src.toPath().resolve(pkg.replace('.', File.separatorChar));
+			Files.createDirectories(dir);
+			Path file = dir.resolve(simpleName(i) + ".java");
+			Files.write(file, sb.toString().getBytes(Charset.forName("UTF-8")));
+			files.add(file.toFile());
+		}
+		return files;
+	}
+
+	private void writeClass(StringBuilder sb, int index, int level, String indent, String declaration, int count) {
+		generated++;
+		sb.append(indent + "@JNIClass(\"" + PACKAGE + "::p" + (index % PACKAGES) + "\")\n");
+		sb.append(indent + declaration + " {\n");
+		Random random = new Random(index * 31 + level);
+		String name = null;
+		int arity = 0;
+		for (int m = 0; m < count; m++) {
+			/* every fourth method overloads the one before it, some names need escaping */
+			if (name == null || m % 4 != 1)
+				name = (m % 3 == 0) ? "get_value" + m : (m % 5 == 0) ? "m$" + m : "method" + m;
+			arity = (m % 4 == 1) ? (arity + 1) % (params + 1) : random.nextInt(params + 1);
+			sb.append(indent + "\t@JNIMethod public " + (m % 5 == 4 ? "static " : ""));
+			sb.append(type(RETURN_TYPES[random.nextInt(RETURN_TYPES.length)], random) + " " + name + "(");
+			for (int p = 0; p < arity; p++)
+				sb.append((p > 0 ? ", " : "") + type(PARAMETER_TYPES[random.nextInt(PARAMETER_TYPES.length)], random) + " a" + p);
+			sb.append(") { throw new UnsupportedOperationException(); }\n");
+		}
+		if (level < depth) {
+			sb.append("\n");
+			writeClass(sb, index, level + 1, indent + "\t", "public static class " + nestedName(index, level + 1), Math.max(1, count / 2));
+		}
+		sb.append(indent + "}\n");
+	}
+
+	/* The other classes of the corpus taken and returned, nested as deep as they go */
+	private String type(String type, Random random) {
+		if (type.startsWith(PEER))
+			return className(random.nextInt(classes)) + type.substring(PEER.length());
+		if (type.equals(NESTED)) {
+			int index = random.nextInt(classes);
+			StringBuilder sb = new StringBuilder(className(index));
+			for (int level = 1; level <= depth; level++)
+				sb.append('.').append(nestedName(index, level));
+			return sb.toString();
+		}
+		return type;
+	}
+
+	private static String simpleName(int index) {
+		return "Type" + index;
+	}
+
+	private static String className(int index) {
+		return PACKAGE + ".p" + (index % PACKAGES) + "." + simpleName(index);
+	}
+
+	/* unique, since the files of nested classes are named after them alone */
+	private static String nestedName(int index, int level) {
+		return simpleName(index) + "_Level" + level;
+	}
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+// Soak test of the runtime and the generated peers.  It embeds a JVM and
+// calls the soak.Service and soak.Item peers from many threads, a random mix
+// of every kind of call, for as long as it is told, and samples what the
+// process holds on to: the global references and string contents of the
+// runtime (JNI::GetStats), the threads it attached, the live threads of the
+// JVM, its heap after a full collection, and the resident memory of the
+// process.  It fails when one of them keeps growing, or when threads stay
+// attached after their exit.
+//
+//   soak [-duration time] [-threads n] [-interval time] [JVM options]
+//
+//   -duration time   how long to run, in seconds or with an s, m or h suffix (1h)
+//   -threads n       worker threads calling the peers (8)
+//   -interval time   time between samples (10s)
+//
+// The other arguments are the options of the JVM, which needs the soak and
+// com.jni.runtime classes: -Djava.class.path=...  The JVM is the one of
+// JAVA_HOME.  See build.sh.
+
+#include "ServiceManagedPeer.h"
+#include "ItemManagedPeer.h"
+#include "TransformCallback.h"
+#include "ListenerCallback.h"
+
+#include <JNIHost.h>
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <random>
+#include <string>
+#include <thread>
+#include <vector>
+
+#ifndef JNI_HAS_STRING_VIEW
+#error The soak test calls the string_view overloads: compile it as C++17
+#endif
+
+// Constants named like the macros of <cmath> and <cstdio> are renamed
+static_assert(soak::ServiceManagedPeer::NAN_ != soak::ServiceManagedPeer::NAN_, "NAN is not a NaN");
+static_assert(soak::ServiceManagedPeer::EOF_ == EOF, "EOF is not EOF");
+
+#ifdef _WIN32
+#define NOMINMAX
+#include <windows.h>
+#include <psapi.h>
+#else
+#include <unistd.h>
+#endif
+
+namespace {
+
+    struct Sample
+    {
+        double Seconds;
+        int64_t GlobalRefs;
+        int64_t StringChars;
+        int64_t AttachedThreads;
+        int64_t JavaThreads;
+        int64_t Heap;
+        int64_t Rss;
+        uint64_t Calls;
+    };
+
+    std::atomic<bool> s_Stop(false);
+    std::atomic<uint64_t> s_Calls(0);
+    std::atomic<uint64_t> s_Errors(0);
+
+    // Resident memory of the process in bytes, or 0 where it is not known
+    int64_t ResidentBytes()
+    {
+#ifdef _WIN32
+        PROCESS_MEMORY_COUNTERS counters;
+        if (GetProcessMemoryInfo(GetCurrentProcess(), &counters, sizeof(counters)))
+            return static_cast<int64_t>(counters.WorkingSetSize);
+        return 0;
+#else
+        long pages = 0, resident = 0;
+        FILE* statm = std::fopen("/proc/self/statm", "r");
+        if (statm == nullptr)
+            return 0;
+        if (std::fscanf(statm, "%ld %ld", &pages, &resident) != 2)
+            resident = 0;
+        std::fclose(statm);
+        return static_cast<int64_t>(resident) * sysconf(_SC_PAGESIZE);
+#endif
+    }
+
+    // A pending Java exception is an error, unless the call was meant to throw
+    void CheckException(JNIEnv& env, bool expected)
+    {
+        if (env.ExceptionCheck() != expected)
+            s_Errors++;
+        env.ExceptionClear();
+    }
+
+    // One call (or a few related ones) picked at random
+    void Call(const soak::ServiceManagedPeer& service, std::mt19937& random)
+    {
+        JNIEnv& env = JNI::GetEnv();
+        int id = static_cast<int>(random() % 1000);
+        switch (random() % 12)
+        {
+        case 0:
+        {
+            // JString, with both of its buffers
+            JNI::JString text("soak");
+            JNI::JString echo(service.echo(text).Get());
+            if (echo.GetUTFString() == nullptr || echo.GetStringChars() == nullptr)
+                s_Errors++;
+            JNI::JString moved(std::move(echo));
+            JNI::JString copy(moved);
+            copy = std::move(moved);
+            break;
+        }
+        case 1:
+        {
+            // String arguments through the string cache, with more texts than it keeps
+            std::string text = "key" + std::to_string(id % 100);
+            if (service.length(text) != static_cast<jint>(text.size()))
+                s_Errors++;
+            break;
+        }
+        case 2:
+        {
+            // Peers: local, copied, moved and made global
+            soak::ItemManagedPeer item = service.item(id);
+            soak::ItemManagedPeer next = item.next();
+            soak::ItemManagedPeer copy(next);
+            soak::ItemManagedPeer moved(std::move(copy));
+            next.MakeGlobal();
+            JNI::JObject held(next.Object());
+            JNI::JObject assigned;
+            assigned = held;
+            assigned = std::move(held);
+            if (moved.id() != id + 1 || !next.label())
+                s_Errors++;
+            break;
+        }
+        case 3:
+        {
+            std::vector<jint> values(random() % 300);
+            for (size_t i = 0; i < values.size(); i++)
+                values[i] = static_cast<jint>(i);
+            if (service.sum(values) != static_cast<jlong>(values.size()) * (static_cast<jlong>(values.size()) - 1) / 2)
+                s_Errors++;
+            break;
+        }
+        case 4:
+        {
+            std::vector<jint> values(256);
+            if (service.fill(id % 300, values) != id % 300)
+                s_Errors++;
+            break;
+        }
+        case 5:
+            if (service.twiceValue(id) != 2 * id)
+                s_Errors++;
+            break;
+        case 6:
+        {
+            int count = 0;
+            for (jobject word : service.wordsRange(id % 600))
+            {
+                (void) word;
+                count++;
+            }
+            if (count != id % 600)
+                s_Errors++;
+            break;
+        }
+        case 7:
+            service.fail("expected");
+            CheckException(env, true);
+            return;
+        case 8:
+        {
+            // A short lived thread, attached by the runtime and detached at its exit
+            soak::ServiceManagedPeer shared(service);
+            std::thread thread([shared, id]()
+            {
+                if (shared.item(id).id() != id)
+                    s_Errors++;
+                CheckException(JNI::GetEnv(), false);
+            });
+            thread.join();
+            break;
+        }
+        case 9:
+            // A callback owned by its trampoline, deleted once that is collected
+            if (service.transform(soak::TransformCallback::FromFunction([id](jint value) { return value + id; }).Get(), 1) != id + 1)
+                s_Errors++;
+            break;
+        case 10:
+        {
+            // A callback outliving its trampoline
+            struct Counter : public soak::ListenerCallback
+            {
+                void onEvent(jint code, jstring text) override { Length = JNI::GetEnv().GetStringLength(text) == code ? code : -1; }
+                jint Length = 0;
+            } counter;
+            service.announce(counter.ToJava().Get(), "event");
+            if (counter.Length != 5)
+                s_Errors++;
+            break;
+        }
+        default:
+        {
+            JNI::LocalRef<jstring> echo = service.echo(std::u16string(u"été"));
+            if (!echo)
+                s_Errors++;
+            break;
+        }
+        }
+        CheckException(env, false);
+        s_Calls.fetch_add(1, std::memory_order_relaxed);
+    }
+
+    void Work(int index)
+    {
+        std::mt19937 random(static_cast<unsigned>(index) * 7919u + 1u);
+        soak::ServiceManagedPeer service = soak::ServiceManagedPeer::create("worker" + std::to_string(index));
+        service.MakeGlobal();
+        while (!s_Stop.load(std::memory_order_relaxed))
+            Call(service, random);
+    }
+
+    Sample TakeSample(JNIEnv& env, std::chrono::steady_clock::time_point start)
+    {
+        Sample sample;
+        JNI::Stats stats = JNI::GetStats();
+        sample.Seconds = std::chrono::duration<double>(std::chrono::steady_clock::now() - start).count();
+        sample.Heap = soak::ServiceManagedPeer::heapUsed();
+        sample.JavaThreads = soak::ServiceManagedPeer::threadCount();
+        CheckException(env, false);
+        sample.GlobalRefs = stats.GlobalRefs;
+        sample.StringChars = stats.StringChars;
+        sample.AttachedThreads = stats.AttachedThreads;
+        sample.Rss = ResidentBytes();
+        sample.Calls = s_Calls.load(std::memory_order_relaxed);
+        std::printf("%8.0fs  calls %12llu  global refs %6lld  strings %4lld  attached %3lld  java threads %4lld  heap %8lld KB  rss %8lld KB\n",
+            sample.Seconds, static_cast<unsigned long long>(sample.Calls), static_cast<long long>(sample.GlobalRefs),
+            static_cast<long long>(sample.StringChars), static_cast<long long>(sample.AttachedThreads),
+            static_cast<long long>(sample.JavaThreads), static_cast<long long>(sample.Heap / 1024), static_cast<long long>(sample.Rss / 1024));
+        std::fflush(stdout);
+        return sample;
+    }
+
+    // Whether a value keeps growing: the lowest of the last quarter of the
+    // samples is above the highest of the second quarter (the first one is
+    // the warm-up) by more than the slack, which allows for the calls in
+    // flight and the noise of the measure.
+    bool Grows(const std::vector<Sample>& samples, int64_t Sample::*value, const char* name, int64_t slack, double ratio)
+    {
+        size_t quarter = samples.size() / 4;
+        int64_t early = 0;
+        for (size_t i = quarter; i < 2 * quarter; i++)
+            early = std::max(early, samples[i].*value);
+        int64_t late = samples.back().*value;
+        for (size_t i = samples.size() - quarter; i < samples.size(); i++)
+            late = std::min(late, samples[i].*value);
+
+        int64_t limit = early + std::max(slack, static_cast<int64_t>(early * ratio));
+        if (late <= limit)
+            return false;
+        std::printf("FAIL: %s grows from %lld to %lld\n", name, static_cast<long long>(early), static_cast<long long>(late));
+        return true;
+    }
+
+    bool ParseTime(const char* text, double& seconds)
+    {
+        char* end = nullptr;
+        seconds = std::strtod(text, &end);
+        if (end == text || seconds <= 0)
+            return false;
+        std::string unit(end);
+        if (unit == "m")
+            seconds *= 60;
+        else if (unit == "h")
+            seconds *= 3600;
+        else if (!unit.empty() && unit != "s")
+            return false;
+        return true;
+    }
+
+} // namespace
+
+int main(int argc, char** argv)
+{
+    double duration = 3600;
+    double interval = 10;
+    int threads = 8;
+    JNI::JvmConfig config;
+    config.Bindings = { &soak::ServiceManagedPeer::GetClass, &soak::ItemManagedPeer::GetClass };
+    for (int i = 1; i < argc; i++)
+    {
+        std::string arg = argv[i];
+        bool ok = true;
+        if (arg == "-duration" && i + 1 < argc)
+            ok = ParseTime(argv[++i], duration);
+        else if (arg == "-interval" && i + 1 < argc)
+            ok = ParseTime(argv[++i], interval);
+        else if (arg == "-threads" && i + 1 < argc)
+            ok = (threads = std::atoi(argv[++i])) > 0;
+        else
+            config.Options.push_back(arg);
+        if (!ok)
+        {
+            std::fprintf(stderr, "usage: soak [-duration time] [-threads n] [-interval time] [JVM options]\n");
+            return 2;
+        }
+    }
+
+    JNI::JvmHost host(config);
+    if (!host.Start())
+    {
+        std::fprintf(stderr, "soak: %s\n", host.Error().c_str());
+        return 2;
+    }
+    const JNI::JvmStartup& startup = host.Startup();
+    std::printf("JVM up in %.1f ms: load %.1f, create %.1f, bind %.1f (process %.1f ms old)\n",
+        startup.Total(), startup.Load, startup.Create, startup.Bind, startup.Process);
+    JNIEnv* env = &JNI::GetEnv();
+    JNI::SetStringCacheCapacity(64);
+
+    auto start = std::chrono::steady_clock::now();
+    std::vector<Sample> samples;
+    std::vector<std::thread> workers;
+    for (int i = 0; i < threads; i++)
+        workers.emplace_back(Work, i);
+
+    // Samples are due every interval from the start, however late the
+    // previous one was taken, up to and including the end of the duration
+    samples.push_back(TakeSample(*env, start));
+    long intervals = static_cast<long>(duration / interval + 1e-9);
+    for (long i = 1; i <= intervals; i++)
+    {
+        auto next = start + std::chrono::duration_cast<std::chrono::steady_clock::duration>(std::chrono::duration<double>(i * interval));
+        std::this_thread::sleep_until(next);
+        samples.push_back(TakeSample(*env, start));
+    }
+
+    s_Stop = true;
+    for (std::thread& worker : workers)
+        worker.join();
+    std::printf("stopped\n");
+    Sample last = TakeSample(*env, start);
+
+    bool failed = false;
+    if (samples.size() < 8)
+    {
+        std::printf("too few samples to tell growth: run longer, or sample more often\n");
+    }
+    else
+    {
+        failed |= Grows(samples, &Sample::GlobalRefs, "global references", 4 * threads, 0);
+        failed |= Grows(samples, &Sample::StringChars, "string contents", 2 * threads, 0);
+        failed |= Grows(samples, &Sample::AttachedThreads, "attached threads", threads, 0);
+        failed |= Grows(samples, &Sample::JavaThreads, "java threads", threads, 0);
+        failed |= Grows(samples, &Sample::Heap, "java heap", 8 << 20, 0.25);
+        failed |= Grows(samples, &Sample::Rss, "resident memory", 32 << 20, 0.10);
+    }
+    if (last.AttachedThreads != 0)
+    {
+        std::printf("FAIL: %lld threads still attached after their exit\n", static_cast<long long>(last.AttachedThreads));
+        failed = true;
+    }
+    if (s_Errors != 0)
+    {
+        std::printf("FAIL: %llu calls went wrong\n", static_cast<unsigned long long>(s_Errors.load()));
+        failed = true;
+    }
+
+    std::printf("%s: %llu calls in %.0fs\n", failed ? "FAILED" : "PASSED", static_cast<unsigned long long>(last.Calls), last.Seconds);
+    return failed ? 1 : 0;
+}
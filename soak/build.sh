@@ -0,0 +1,38 @@
+#!/bin/sh
+# Builds the soak test into soak/build, then runs it with the arguments given.
+#
+#   JAVA_HOME   the JDK to embed, Java 9 or later (the callbacks need Cleaner)
+#   JNI_TOOL    the class path of the compiled tool
+#   CXX         the C++17 compiler (g++)
+#
+#   JAVA_HOME=... JNI_TOOL=... soak/build.sh -duration 4h -threads 16
+set -e
+: "${JAVA_HOME:?set JAVA_HOME to the JDK to embed}"
+: "${JNI_TOOL:?set JNI_TOOL to the class path of the compiled tool}"
+CXX=${CXX:-g++}
+SOAK=$(cd "$(dirname "$0")" && pwd)
+ROOT=$(dirname "$SOAK")
+OUT=$SOAK/build
+
+rm -rf "$OUT"
+mkdir -p "$OUT/classes" "$OUT/gen"
+touch "$OUT/stdafx.h"
+
+"$JAVA_HOME/bin/javac" -nowarn -proc:none -d "$OUT/classes" -cp "$JNI_TOOL" "$SOAK"/java/soak/*.java
+# One unity file: the definitions of a namespace, the two callbacks' included, share a translation unit
+"$JAVA_HOME/bin/java" --add-exports jdk.compiler/com.sun.tools.javac.file=ALL-UNNAMED \
+	--add-exports jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED \
+	--add-exports jdk.compiler/com.sun.tools.javac.main=ALL-UNNAMED \
+	--add-exports jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED \
+	-cp "$JNI_TOOL" com.jni.tools.Main -classfile -unity 1 -d "$OUT/gen" -classpath "$OUT/classes" \
+	soak.Service soak.Item soak.Transform soak.Listener
+# the trampolines of the callbacks
+"$JAVA_HOME/bin/javac" -nowarn -proc:none -d "$OUT/classes" -cp "$OUT/classes:$JNI_TOOL" $(find "$OUT/gen" -name '*.java')
+
+"$CXX" -std=c++17 -O2 -pthread -DSTDMETHODCALLTYPE= -I"$OUT" -I"$ROOT" -I"$OUT/gen" \
+	-I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" \
+	-o "$OUT/soak" "$SOAK/Soak.cpp" "$ROOT"/JNI*.cpp "$OUT"/gen/*.cpp -ldl
+
+# the JVM is loaded from JAVA_HOME by JNI::JvmHost
+export JAVA_HOME
+exec "$OUT/soak" "$@" -Djava.class.path="$OUT/classes:$JNI_TOOL"
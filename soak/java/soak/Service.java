@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package soak;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jni.annotation.JNIClass;
+import com.jni.annotation.JNIMethod;
+
+/**
+ * The Java side of the soak test: a method of each kind the peers marshal,
+ * none of them keeping anything between calls, and the probes of the
+ * sampler.
+ */
+@JNIClass("soak")
+public class Service {
+	/**
+	 * Named like macros of the C headers Soak.cpp includes, which the
+	 * generator renames NAN_ and EOF_ in C++.
+	 */
+	public static final double NAN = Double.NaN;
+	public static final int EOF = -1;
+
+	private final String name;
+
+	public Service(String name) {
+		this.name = name;
+	}
+
+	@JNIMethod
+	public static Service create(String name) {
+		return new Service(name);
+	}
+
+	@JNIMethod
+	public String echo(String text) {
+		return name + ":" + text;
+	}
+
+	@JNIMethod
+	public int length(String text) {
+		return text.length();
+	}
+
+	@JNIMethod
+	public Item item(int id) {
+		return new Item(id);
+	}
+
+	@JNIMethod
+	public long sum(int[] values) {
+		long sum = 0;
+		for (int value : values)
+			sum += value;
+		return sum;
+	}
+
+	@JNIMethod
+	public int[] fill(int length) {
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++)
+			values[i] = i;
+		return values;
+	}
+
+	@JNIMethod
+	public Integer twice(Integer value) {
+		return (value == null ? null : value * 2);
+	}
+
+	@JNIMethod
+	public List<String> words(int count) {
+		List<String> words = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+			words.add(name + i);
+		return words;
+	}
+
+	@JNIMethod
+	public int transform(Transform transform, int value) {
+		return transform.apply(value);
+	}
+
+	@JNIMethod
+	public void announce(Listener listener, String text) {
+		listener.onEvent(text.length(), text);
+	}
+
+	@JNIMethod
+	public void fail(String message) {
+		throw new IllegalStateException(message);
+	}
+
+	/**
+	 * The heap in use after a full collection, in bytes.
+	 */
+	@JNIMethod
+	public static long heapUsed() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The live threads of the JVM, attached native threads included.
+	 */
+	@JNIMethod
+	public static int threadCount() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+}
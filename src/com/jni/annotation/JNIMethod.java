@@ -32,4 +32,10 @@ import java.lang.annotation.Target;
 @Target({ ElementType.METHOD })
 public @interface JNIMethod
 {
+	/*
+	 * Also generate nameAsync, which runs the method on a Java virtual thread
+	 * (see com.jni.runtime.AsyncBridge) and returns a JNI::Async that can be
+	 * waited on or co_awaited.  Meant for methods that block.
+	 */
+	boolean async() default false;
 }
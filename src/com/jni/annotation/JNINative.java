@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/*
+ * An interface whose methods of primitive and MemorySegment parameters are
+ * implemented in C++, and called from Java through FFM downcall handles
+ * rather than JNI native methods.  The generator emits a C++ <Name>Native
+ * class declaring the functions to implement, the extern "C" entry points
+ * calling them, and a Java <Name>Downcalls implementing the interface.
+ * A MemorySegment is passed as a pointer, without copying.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ ElementType.TYPE })
+public @interface JNINative
+{
+	/*
+	 * The namespace to create the C++ class in.
+	 */
+	String value();
+
+	/*
+	 * The library holding the entry points, loaded with System.loadLibrary;
+	 * by default it is one already loaded by the class loader.
+	 */
+	String library() default "";
+
+	/*
+	 * Critical downcalls (Linker.Option.critical) skip the thread state
+	 * transition, for short functions which never block or call back into
+	 * Java.
+	 */
+	boolean critical() default false;
+}
@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Java side of JNI::Async, the result of the nameAsync methods generated for
+ * JNIMethod(async = true).  The C++ caller hands over the reflected method,
+ * the target and the boxed arguments and returns at once; the call runs on a
+ * virtual thread, so a blocked call holds neither a native nor a platform
+ * thread.  When the future completes, complete() hands the result or the
+ * exception back to the native state identified by handle.
+ *
+ * complete is registered by the C++ runtime (RegisterNatives), so this class
+ * does not load a library.  Before Java 21 the calls run on a cached pool of
+ * daemon threads instead.
+ */
+public final class AsyncBridge {
+	private static final Executor EXECUTOR = createExecutor();
+
+	private AsyncBridge() {
+	}
+
+	/*
+	 * Called by JNI::Async.  target is null for static methods.
+	 */
+	public static void submit(final long handle, final Method method, final Object target, final Object[] args) {
+		CompletableFuture.supplyAsync(new Supplier<Object>() {
+			public Object get() {
+				try {
+					return method.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw new CompletionException(e.getCause());
+				} catch (IllegalAccessException e) {
+					throw new CompletionException(e);
+				}
+			}
+		}, EXECUTOR).whenComplete(new BiConsumer<Object, Throwable>() {
+			public void accept(Object result, Throwable error) {
+				if (error instanceof CompletionException && error.getCause() != null)
+					error = error.getCause();
+				complete(handle, result, error);
+			}
+		});
+	}
+
+	private static native void complete(long handle, Object result, Throwable error);
+
+	private static Executor createExecutor() {
+		try {
+			/* Java 21 */
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "jni-async");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+}
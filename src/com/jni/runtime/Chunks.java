@@ -0,0 +1,65 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
+
+/**
+ * Java side of JNI::ChunkReader, which reads the elements of a collection
+ * in chunks, a call per chunk, rather than with a hasNext and a next call
+ * per element.
+ */
+public final class Chunks {
+	private Chunks() {
+	}
+
+	/**
+	 * The iterator over an Iterable, Iterator, Stream (primitive ones box
+	 * their elements) or object array.
+	 */
+	public static Iterator<?> iterator(Object source) {
+		if (source instanceof Iterator)
+			return (Iterator<?>) source;
+		if (source instanceof Iterable)
+			return ((Iterable<?>) source).iterator();
+		if (source instanceof BaseStream)
+			return ((BaseStream<?, ?>) source).iterator();
+		if (source instanceof Object[])
+			return Arrays.asList((Object[]) source).iterator();
+		throw new IllegalArgumentException("cannot iterate over " + source.getClass().getName());
+	}
+
+	/**
+	 * Copies the next elements of iterator into chunk, as many as fit, and
+	 * returns how many; fewer than chunk.length at the end.
+	 */
+	public static int fill(Iterator<?> iterator, Object[] chunk) {
+		int count = 0;
+		while (count < chunk.length && iterator.hasNext())
+			chunk[count++] = iterator.next();
+		return count;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Optional;
+
+/**
+ * Java side of JNINative interfaces.  The generated <Name>Downcalls links a
+ * downcall handle per method to the extern "C" entry point generated for it,
+ * and implements the interface by invoking them: a call makes the native
+ * transition of the FFM linker, and primitives and MemorySegments (passed as
+ * pointers) are not copied.
+ *
+ * Needs Java 22 (java.lang.foreign); run with --enable-native-access for the
+ * module (or ALL-UNNAMED) to silence the restricted method warning.
+ */
+public final class Downcalls {
+	private static final Linker.Option[] NO_OPTIONS = new Linker.Option[0];
+
+	private Downcalls() {
+	}
+
+	/**
+	 * The downcall handle of the named function, of the primitive (and
+	 * MemorySegment) parameters and return type of type.  symbols is the
+	 * loader lookup of the calling class, finding the libraries its class
+	 * loader loaded, like JNI native methods do.
+	 */
+	public static MethodHandle link(SymbolLookup symbols, String name, MethodType type, boolean critical) {
+		Optional<MemorySegment> symbol = symbols.find(name);
+		if (!symbol.isPresent())
+			throw new UnsatisfiedLinkError(name);
+		Linker.Option[] options = (critical ? new Linker.Option[] { Linker.Option.critical(false) } : NO_OPTIONS);
+		return Linker.nativeLinker().downcallHandle(symbol.get(), Upcalls.getDescriptor(type), options);
+	}
+
+	/**
+	 * What invokeExact threw: a downcall throws no checked exception, so
+	 * this is either unchecked or a bug.
+	 */
+	public static RuntimeException unchecked(Throwable exception) {
+		if (exception instanceof Error)
+			throw (Error) exception;
+		if (exception instanceof RuntimeException)
+			return (RuntimeException) exception;
+		return new IllegalStateException(exception);
+	}
+}
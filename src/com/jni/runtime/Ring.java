@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single producer, single consumer ring buffer in a direct (or mapped)
+ * ByteBuffer: the consumer end of a JNIChannel, whose producer end is the
+ * C++ JNI::RingProducer.  The layout, in native byte order:
+ *
+ *   0    write index (long), only written by the producer
+ *   64   read index (long), only written by the consumer
+ *   128  capacity bytes of records, capacity a power of two
+ *
+ * The indexes only grow; an index masked with capacity - 1 is a position in
+ * the records.  A record is an int size (of the whole record, a multiple of
+ * 8), an int type and the payload.  A record does not wrap around: the
+ * producer fills the end with a PADDING record instead.  The indexes are
+ * published with release stores and read with acquire loads, so a record is
+ * complete by the time its consumer sees it.
+ *
+ * Needs Java 9 (VarHandle).
+ */
+public final class Ring {
+	public static final int HEADER_SIZE = 128;
+	public static final int PADDING = -1;
+
+	private static final int WRITE_INDEX = 0;
+	private static final int READ_INDEX = 64;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * Receives the messages; the payload is at offset in buffer and only
+	 * valid during the call.
+	 */
+	public interface Handler {
+		void onMessage(int type, ByteBuffer buffer, int offset);
+	}
+
+	/**
+	 * A ring in native memory, for a producer in this process; its buffer()
+	 * is passed to the JNI::RingProducer constructor.
+	 */
+	public static Ring allocate(int capacity) {
+		/* the indexes sit on cache lines of their own */
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + capacity + 64).alignedSlice(64);
+		buffer.limit(HEADER_SIZE + capacity);
+		return new Ring(buffer.slice());
+	}
+
+	/**
+	 * A ring in a memory mapped file, created as needed, for a producer in
+	 * another process mapping the same file.
+	 */
+	public static Ring map(Path file, int capacity) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return new Ring(channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity));
+		} finally {
+			/* the mapping stays valid */
+			channel.close();
+		}
+	}
+
+	public Ring(ByteBuffer buffer) {
+		int capacity = buffer.capacity() - HEADER_SIZE;
+		if (!buffer.isDirect() || capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("not a direct buffer of " + HEADER_SIZE + " + a power of two bytes");
+		if (buffer.alignmentOffset(0, 8) != 0)
+			throw new IllegalArgumentException("buffer is not 8 byte aligned");
+
+		this.buffer = buffer.duplicate().order(ByteOrder.nativeOrder());
+		this.mask = capacity - 1;
+		this.read = (long) LONGS.getAcquire(this.buffer, READ_INDEX);
+	}
+
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Hands up to limit waiting messages to the handler, and returns how
+	 * many.  Their space is given back to the producer once they are all
+	 * handled; a message whose handler throws is not handed out again.
+	 */
+	public int poll(Handler handler, int limit) {
+		long write = (long) LONGS.getAcquire(buffer, WRITE_INDEX);
+		long start = read;
+		int count = 0;
+		try {
+			while (read < write && count < limit) {
+				int offset = HEADER_SIZE + (int) (read & mask);
+				int size = buffer.getInt(offset);
+				int type = buffer.getInt(offset + 4);
+				read += size;
+				if (type != PADDING) {
+					count++;
+					handler.onMessage(type, buffer, offset + RECORD_HEADER_SIZE);
+				}
+			}
+		} finally {
+			if (read != start)
+				LONGS.setRelease(buffer, READ_INDEX, read);
+		}
+		return count;
+	}
+
+	/**
+	 * Hands the messages to the handler as they come, until the thread is
+	 * interrupted, waiting with the given strategy while there are none.
+	 */
+	public void run(Handler handler, WaitStrategy wait) {
+		int idle = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			if (poll(handler, Integer.MAX_VALUE) > 0)
+				idle = 0;
+			else
+				wait.idle(idle++);
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int mask;
+	/* only the consumer thread reads and writes it */
+	private long read;
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+
+/**
+ * Java side of the peers generated with -backend ffm.  The generated
+ * <Name>Upcalls class of a JNIClass passes its static methods to table(),
+ * and the C++ peer calls the returned function pointers (FFM upcall stubs)
+ * instead of CallStatic<Type>Method.  The C++ peer gets the table through
+ * JNI once, and falls back to JNI calls when it cannot be created (before
+ * Java 22, or when native access is denied).
+ *
+ * An exception must not leave an upcall, which would end the process: the
+ * generated method catches it and hands it to fail(), and the peer throws it
+ * again through JNI (JNI::ThrowUpcallException), leaving it pending as a JNI
+ * call would.
+ *
+ * Needs Java 22 (java.lang.foreign); run with --enable-native-access for the
+ * module (or ALL-UNNAMED) to silence the restricted method warning.
+ */
+public final class Upcalls {
+	private static final ThreadLocal<Throwable> PENDING = new ThreadLocal<Throwable>();
+
+	private Upcalls() {
+	}
+
+	/**
+	 * Creates an upcall stub per method handle, of its primitive (and
+	 * MemorySegment) parameters, and returns the address of the table of
+	 * their function pointers.  Both live as long as the process.
+	 */
+	public static long table(MethodHandle... targets) {
+		Linker linker = Linker.nativeLinker();
+		MemorySegment table = Arena.global().allocate(ValueLayout.ADDRESS.byteSize() * Math.max(targets.length, 1), ValueLayout.ADDRESS.byteAlignment());
+		for (int i = 0; i < targets.length; i++)
+			table.setAtIndex(ValueLayout.ADDRESS, i, linker.upcallStub(targets[i], getDescriptor(targets[i].type()), Arena.global()));
+		return table.address();
+	}
+
+	/**
+	 * Keeps the exception thrown by an upcall for the calling thread, and
+	 * sets the jboolean the peer passed as failed.
+	 */
+	public static void fail(MemorySegment failed, Throwable exception) {
+		PENDING.set(exception);
+		failed.reinterpret(1).set(ValueLayout.JAVA_BYTE, 0, (byte) 1);
+	}
+
+	/*
+	 * Called by JNI::ThrowUpcallException.
+	 */
+	static void rethrow() throws Throwable {
+		Throwable exception = PENDING.get();
+		PENDING.remove();
+		if (exception != null)
+			throw exception;
+	}
+
+	/*
+	 * The descriptor of a function of the given primitive (and MemorySegment)
+	 * parameters and return type.
+	 */
+	static FunctionDescriptor getDescriptor(MethodType type) {
+		MemoryLayout[] arguments = new MemoryLayout[type.parameterCount()];
+		for (int i = 0; i < arguments.length; i++)
+			arguments[i] = getLayout(type.parameterType(i));
+		if (type.returnType() == void.class)
+			return FunctionDescriptor.ofVoid(arguments);
+		return FunctionDescriptor.of(getLayout(type.returnType()), arguments);
+	}
+
+	private static MemoryLayout getLayout(Class<?> type) {
+		if (type == boolean.class)
+			return ValueLayout.JAVA_BOOLEAN;
+		if (type == byte.class)
+			return ValueLayout.JAVA_BYTE;
+		if (type == char.class)
+			return ValueLayout.JAVA_CHAR;
+		if (type == short.class)
+			return ValueLayout.JAVA_SHORT;
+		if (type == int.class)
+			return ValueLayout.JAVA_INT;
+		if (type == long.class)
+			return ValueLayout.JAVA_LONG;
+		if (type == float.class)
+			return ValueLayout.JAVA_FLOAT;
+		if (type == double.class)
+			return ValueLayout.JAVA_DOUBLE;
+		if (type == MemorySegment.class)
+			return ValueLayout.ADDRESS;
+		throw new IllegalArgumentException("not a native type: " + type.getName());
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2014 Jesse Benson
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jni.runtime;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the consumer of a Ring waits for messages, the counterpart of the C++
+ * JNI::WaitStrategy of the producer.
+ */
+public enum WaitStrategy {
+	/** Keeps the core busy: the lowest latency, at the price of a core. */
+	BUSY_SPIN {
+		@Override
+		public void idle(int count) {
+			Thread.onSpinWait();
+		}
+	},
+
+	/** Lets other threads run between checks. */
+	YIELD {
+		@Override
+		public void idle(int count) {
+			Thread.yield();
+		}
+	},
+
+	/** Sleeps between checks, backing off from a microsecond to a millisecond. */
+	PARK {
+		@Override
+		public void idle(int count) {
+			LockSupport.parkNanos(1000L << Math.min(count, 10));
+		}
+	};
+
+	/**
+	 * Called in a loop while there is nothing to do; count is the number of
+	 * calls since there last was.
+	 */
+	public abstract void idle(int count);
+}
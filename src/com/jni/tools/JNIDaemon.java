@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.jni.tools.javah.Util;
+
+/**
+ * Long running mode (-watch): generates once, then watches the class and
+ * source directories and regenerates the classes whose files change.  The
+ * JVM, the JIT compiled javac and the file manager (with its open archives)
+ * stay warm between runs.  javac's symbol table lives in a per task context
+ * which cannot be reused, so each run still completes the classes it is
+ * given, but only those.
+ *
+ * With -port the daemon also accepts one line commands on the loopback
+ * interface so build scripts can wait for it (-trigger run) or stop it
+ * (-trigger stop); the reply is the exit code of the run.
+ */
+class JNIDaemon {
+	static final String RUN = "run";
+	static final String STOP = "stop";
+
+	/* Changes arriving this close together are handled by a single run */
+	private static final long SETTLE_MILLIS = 200;
+
+	JNIDaemon(JNITask task) {
+		this.task = task;
+	}
+
+	boolean serve() throws Util.Exit {
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			for (File root : task.watch)
+				register(root.toPath().toAbsolutePath());
+			if (task.port > 0)
+				startServer();
+		} catch (IOException e) {
+			task.diagnosticListener.report(task.createDiagnostic("err.ioerror", task.watch, e.getLocalizedMessage()));
+			return false;
+		}
+
+		regenerate(task.classes, true);
+
+		try {
+			while (true)
+				handleChanges();
+		} catch (ClosedWatchServiceException e) {
+			/* stopped by a client */
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	/*
+	 * Wait for a change, let the file system settle, then regenerate what changed.
+	 */
+	private void handleChanges() throws InterruptedException {
+		Set<String> changed = new LinkedHashSet<String>();
+		boolean full = false;
+
+		WatchKey key = watcher.take();
+		while (key != null) {
+			Path dir = keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW || dir == null) {
+					full = true;
+					continue;
+				}
+
+				Path path = dir.resolve((Path) event.context());
+				String name = path.getFileName().toString();
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+					/* files may have landed in it before it was registered */
+					try {
+						register(path);
+					} catch (IOException e) {
+						log("[Cannot watch " + path + ": " + e.getLocalizedMessage() + "]");
+					}
+					full = true;
+				} else if (name.endsWith(".jar")) {
+					/* the file manager caches archive contents */
+					try {
+						task.fileManager.close();
+					} catch (IOException e) {
+						/* reopened on next use anyway */
+					}
+					full = true;
+				} else if (name.endsWith(".class") || name.endsWith(".java")) {
+					/* a deleted class may take its nested classes' files along */
+					if (event.kind() == ENTRY_DELETE)
+						full = true;
+					else
+						changed.add(outermostClassName(path));
+				}
+			}
+			if (!key.reset())
+				keys.remove(key);
+			key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		/*
+		 * Without class names (-classfile) the classes are the ones the last
+		 * scan found; a class it did not find may have just been annotated.
+		 */
+		List<String> classes = (task.classes != null ? task.classes : task.scanned);
+		if (classes == null)
+			full = true;
+
+		/* The unity files need every class, so they always take a full run */
+		if (full || task.unity > 0) {
+			regenerate(task.classes, true);
+			return;
+		}
+
+		List<String> affected = new ArrayList<String>();
+		for (String outer : changed) {
+			boolean known = false;
+			for (String clazz : classes) {
+				if (contains(outer, clazz)) {
+					if (!affected.contains(clazz))
+						affected.add(clazz);
+					known = true;
+				}
+			}
+			if (!known && task.classes == null && !isDependency(outer)) {
+				regenerate(task.classes, true);
+				return;
+			}
+		}
+		addDependents(changed, affected);
+		if (!affected.isEmpty())
+			regenerate(affected, false);
+	}
+
+	/*
+	 * Adds the classes depending on the changed classes, and on those in turn:
+	 * a subclass includes the peer of its superclass, and a class the types
+	 * in its signatures.  Runs update the dependencies, so this takes their lock.
+	 */
+	private synchronized void addDependents(Set<String> changed, List<String> affected) {
+		if (task.dependencies == null)
+			return;
+		List<String> pending = new ArrayList<String>(changed);
+		Set<String> seen = new HashSet<String>(changed);
+		while (!pending.isEmpty()) {
+			String outer = pending.remove(pending.size() - 1);
+			for (Map.Entry<String, Set<String>> entry : task.dependencies.entrySet()) {
+				String dependent = entry.getKey();
+				if (seen.contains(dependent))
+					continue;
+				for (String dependency : entry.getValue()) {
+					if (contains(outer, dependency)) {
+						seen.add(dependent);
+						pending.add(dependent);
+						if (!affected.contains(dependent))
+							affected.add(dependent);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Whether a class generated so far depends on the class outer or one nested in it.
+	 */
+	private synchronized boolean isDependency(String outer) {
+		if (task.dependencies == null)
+			return false;
+		for (Set<String> dependencies : task.dependencies.values()) {
+			for (String dependency : dependencies) {
+				if (contains(outer, dependency))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Whether clazz is the class outer or one nested in it.
+	 */
+	private static boolean contains(String outer, String clazz) {
+		return clazz.equals(outer) || clazz.startsWith(outer + "$") || clazz.startsWith(outer + ".");
+	}
+
+	/*
+	 * Runs never overlap: the file manager and the output directory are shared.
+	 */
+	private synchronized boolean regenerate(List<String> classes, boolean full) {
+		if (task.verbose)
+			log("[Generating " + (full ? "all classes" : classes.toString()) + "]");
+		try {
+			return task.generate(classes, full);
+		} catch (Util.Exit e) {
+			return false;
+		} catch (RuntimeException e) {
+			/* one bad run must not take the daemon down */
+			log("[Generation failed: " + e + "]");
+			return false;
+		} finally {
+			task.log.flush();
+		}
+	}
+
+	private void register(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/*
+	 * a/b/C$D.class or a/b/C.java under a watched root is class a.b.C
+	 */
+	private String outermostClassName(Path path) {
+		for (File root : task.watch) {
+			Path base = root.toPath().toAbsolutePath();
+			if (path.startsWith(base)) {
+				path = base.relativize(path);
+				break;
+			}
+		}
+
+		String name = path.toString().replace(File.separatorChar, '.');
+		name = name.substring(0, name.lastIndexOf('.'));
+		int nested = name.indexOf('$');
+		return (nested < 0 ? name : name.substring(0, nested));
+	}
+
+	private void startServer() throws IOException {
+		final ServerSocket server = new ServerSocket(task.port, 50, InetAddress.getLoopbackAddress());
+		Thread thread = new Thread("javah-daemon") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = server.accept();
+						try {
+							if (!handleCommand(socket))
+								break;
+						} catch (IOException e) {
+							/* client went away */
+						} finally {
+							socket.close();
+						}
+					}
+					server.close();
+					watcher.close();
+				} catch (IOException e) {
+					log("[Daemon connection failed: " + e.getLocalizedMessage() + "]");
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Returns false once the daemon should stop.
+	 */
+	private boolean handleCommand(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+		String command = in.readLine();
+		if (STOP.equals(command)) {
+			out.println(0);
+			return false;
+		}
+		if (RUN.equals(command))
+			out.println(regenerate(task.classes, true) ? 0 : 1);
+		else
+			out.println(2);
+		return true;
+	}
+
+	/*
+	 * Client side of -trigger: send the command to the daemon on -port and
+	 * return whether the run it did for us succeeded.
+	 */
+	static boolean send(JNITask task, String command) {
+		try {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), task.port);
+			try {
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), true);
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+				out.println(command);
+				return "0".equals(in.readLine());
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			task.diagnosticListener.report(task.createDiagnostic("err.daemon.unreachable", task.port, e.getLocalizedMessage()));
+			return false;
+		}
+	}
+
+	private void log(String message) {
+		synchronized (task.log) {
+			task.log.println(message);
+		}
+	}
+
+	private final JNITask task;
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private WatchService watcher;
+}
@@ -18,33 +18,144 @@ package com.jni.tools;
 
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.annotation.processing.Messager;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
 
+import com.jni.annotation.JNICallback;
+import com.jni.annotation.JNIChannel;
 import com.jni.annotation.JNIClass;
+import com.jni.annotation.JNIEnum;
 import com.jni.annotation.JNIMethod;
-import com.sun.tools.javah.Gen;
-import com.sun.tools.javah.Mangle;
-import com.sun.tools.javah.TypeSignature;
-import com.sun.tools.javah.Util;
+import com.jni.annotation.JNINative;
+import com.jni.annotation.JNIStruct;
+import com.jni.tools.javah.Gen;
+import com.jni.tools.javah.Mangle;
+import com.jni.tools.javah.TypeSignature;
+import com.jni.tools.javah.Util;
 
 public class JNIGenerator extends Gen {
+	/*
+	 * Bump whenever the generated code changes, so that files recorded in an
+	 * existing manifest are generated again.
+	 */
+	static final String VERSION = "17";
+
+	/*
+	 * The backends: the peers call Java through JNI Call<Type>Method, or
+	 * (where they can) through the function pointers of FFM upcall stubs.
+	 */
+	static final String BACKEND_JNI = "jni";
+	static final String BACKEND_FFM = "ffm";
+
+	/*
+	 * Names the C, C++, POSIX, Windows and JNI headers define as macros.  A
+	 * constant so named would be replaced wherever such a header comes
+	 * first, so it is renamed with a trailing underscore (see getCppConstantName).
+	 */
+	private static final Set<String> MACROS = new HashSet<String>(Arrays.asList(
+			/* <cmath>, <cfloat>, <climits>, <cstdint> */
+			"NAN", "INFINITY", "HUGE_VAL", "HUGE_VALF", "HUGE_VALL", "FP_NAN", "FP_INFINITE", "FP_ZERO", "FP_NORMAL", "FP_SUBNORMAL",
+			"DOMAIN", "SING", "OVERFLOW", "UNDERFLOW", "TLOSS", "PLOSS", "M_PI", "M_E",
+			"FLT_MAX", "FLT_MIN", "FLT_EPSILON", "DBL_MAX", "DBL_MIN", "DBL_EPSILON", "CHAR_BIT", "CHAR_MIN", "CHAR_MAX",
+			"SCHAR_MIN", "SCHAR_MAX", "UCHAR_MAX", "SHRT_MIN", "SHRT_MAX", "USHRT_MAX", "INT_MIN", "INT_MAX", "UINT_MAX",
+			"LONG_MIN", "LONG_MAX", "ULONG_MAX", "LLONG_MIN", "LLONG_MAX", "ULLONG_MAX", "SIZE_MAX",
+			"INT8_MIN", "INT8_MAX", "INT16_MIN", "INT16_MAX", "INT32_MIN", "INT32_MAX", "INT64_MIN", "INT64_MAX",
+			"UINT8_MAX", "UINT16_MAX", "UINT32_MAX", "UINT64_MAX",
+			/* <cstdio>, <cstdlib>, <cstddef>, <cerrno>, <csignal> */
+			"EOF", "NULL", "BUFSIZ", "FILENAME_MAX", "FOPEN_MAX", "TMP_MAX", "L_tmpnam", "SEEK_SET", "SEEK_CUR", "SEEK_END",
+			"EXIT_SUCCESS", "EXIT_FAILURE", "RAND_MAX", "MB_CUR_MAX", "errno", "stdin", "stdout", "stderr", "assert", "offsetof",
+			"EDOM", "ERANGE", "EILSEQ", "EPERM", "ENOENT", "EINTR", "EIO", "EBADF", "EAGAIN", "ENOMEM", "EACCES", "EEXIST",
+			"EBUSY", "EINVAL", "EPIPE", "ETIMEDOUT", "EWOULDBLOCK",
+			"SIGABRT", "SIGFPE", "SIGILL", "SIGINT", "SIGSEGV", "SIGTERM", "SIG_DFL", "SIG_ERR", "SIG_IGN",
+			/* POSIX and glibc */
+			"PATH_MAX", "NAME_MAX", "STDIN_FILENO", "STDOUT_FILENO", "STDERR_FILENO", "major", "minor", "unix", "linux",
+			/* <windows.h> */
+			"TRUE", "FALSE", "ERROR", "IN", "OUT", "OPTIONAL", "CONST", "VOID", "DELETE", "INFINITE", "MAX_PATH",
+			"NEAR", "FAR", "PASCAL", "CALLBACK", "WINAPI", "NO_ERROR", "ERROR_SUCCESS", "min", "max", "near", "far", "small", "interface",
+			/* <jni.h> */
+			"JNI_TRUE", "JNI_FALSE", "JNI_OK", "JNI_ERR", "JNI_EDETACHED", "JNI_EVERSION", "JNI_ENOMEM", "JNI_EEXIST", "JNI_EINVAL",
+			"JNI_COMMIT", "JNI_ABORT", "JNIEXPORT", "JNIIMPORT", "JNICALL"));
+
+	/*
+	 * The C++ keywords and alternative tokens which are not Java keywords, so
+	 * can name a Java constant.  They are renamed like the macros.
+	 */
+	private static final Set<String> CPP_KEYWORDS = new HashSet<String>(Arrays.asList(
+			"alignas", "alignof", "and", "and_eq", "asm", "auto", "bitand", "bitor", "bool", "char8_t", "char16_t", "char32_t",
+			"compl", "concept", "consteval", "constexpr", "constinit", "const_cast", "co_await", "co_return", "co_yield",
+			"decltype", "delete", "dynamic_cast", "explicit", "export", "extern", "friend", "inline", "mutable", "namespace",
+			"noexcept", "not", "not_eq", "nullptr", "operator", "or", "or_eq", "register", "reinterpret_cast", "requires",
+			"signed", "sizeof", "static_assert", "static_cast", "struct", "template", "thread_local", "typedef", "typeid",
+			"typename", "union", "unsigned", "using", "virtual", "wchar_t", "xor", "xor_eq"));
+
+	/*
+	 * The members every peer has, besides those named after its methods.
+	 */
+	private static final Set<String> PEER_MEMBERS = new HashSet<String>(Arrays.asList(
+			"GetClass", "IsInstance", "TryCast", "GetBridgeClass", "GetUpcall", "Object", "IsLocal", "MakeGlobal", "Env"));
+
+	/*
+	 * The overloads of a method taking Strings take these instead.
+	 */
+	private static final String[] STRING_VIEWS = { "std::string_view", "std::u16string_view" };
+
+	private String backend = BACKEND_JNI;
+
 	JNIGenerator(Util util) {
 		super(util);
 	}
 
+	/*
+	 * A generator running inside an annotation processor, which reports its
+	 * diagnostics to the Messager and writes its verbose log to log.
+	 */
+	static JNIGenerator create(final Messager messager, Writer log, boolean verbose) {
+		Util util = new Util(new PrintWriter(log), new DiagnosticListener<JavaFileObject>() {
+			public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+				messager.printMessage(diagnostic.getKind(), diagnostic.getMessage(null));
+			}
+		});
+		util.verbose = verbose;
+		return new JNIGenerator(util);
+	}
+
+	/**
+	 * Selects how the peers call Java, without changing their C++ API: "jni"
+	 * (the default) or "ffm", which calls the static methods taking and
+	 * returning primitives through FFM upcall stubs (see
+	 * com.jni.runtime.Upcalls), falling back to JNI for the other methods
+	 * and at run time when the stubs cannot be created.
+	 */
+	public void setBackend(String backend) {
+		this.backend = backend;
+	}
+
 	@Override
 	public String getIncludes() {
 		return "#include <JNIManagedPeer.h>" + lineSeparator +
@@ -53,31 +164,171 @@ public class JNIGenerator extends Gen {
 
 	@Override
 	protected String baseFileName(TypeElement clazz) {
-		return super.baseFileName(clazz) + "ManagedPeer";
+		if (isChannel(clazz))
+			return super.baseFileName(clazz) + "Producer";
+		if (isNative(clazz))
+			return super.baseFileName(clazz) + "Native";
+		if (isEnum(clazz))
+			return super.baseFileName(clazz) + "Enum";
+		if (isCallback(clazz))
+			return super.baseFileName(clazz) + "Callback";
+		return super.baseFileName(clazz) + (isStruct(clazz) ? "Struct" : "ManagedPeer");
 	}
-	
+
+	/*
+	 * The structs and enums taken or returned by the methods, and the peers
+	 * of the superclasses, are generated along with the classes, even when
+	 * they are not named.
+	 */
+	@Override
+	public void setClasses(Set<TypeElement> classes) {
+		Set<TypeElement> all = new LinkedHashSet<TypeElement>(classes);
+		for (TypeElement clazz : classes) {
+			all.addAll(getStructs(clazz));
+			all.addAll(getEnums(clazz));
+			for (TypeElement base = getPeerSuperclass(clazz); base != null; base = getPeerSuperclass(base))
+				all.add(base);
+		}
+		super.setClasses(all);
+	}
+
+	/*
+	 * A struct, an enum, or the producer of a channel, is all in its header.
+	 */
+	@Override
+	protected boolean hasDefinition(TypeElement clazz) {
+		return !isStruct(clazz) && !isChannel(clazz) && !isEnum(clazz);
+	}
+
+	/*
+	 * A struct comes with its codec, a channel with its consumer, a native
+	 * interface with its implementation, a callback with its trampoline, and
+	 * a class whose methods take or return structs with the bridge making
+	 * those calls.
+	 */
+	@Override
+	protected List<String> getSources(TypeElement clazz) throws Util.Exit {
+		if (isStruct(clazz))
+			return Collections.singletonList(getCodecName(clazz));
+		if (isChannel(clazz))
+			return Collections.singletonList(getGeneratedName(clazz, "Consumer"));
+		if (isNative(clazz))
+			return Collections.singletonList(getGeneratedName(clazz, "Downcalls"));
+		if (isCallback(clazz))
+			return Collections.singletonList(getGeneratedName(clazz, "Trampoline"));
+		List<String> sources = new ArrayList<String>();
+		if (!getStructMethods(clazz).isEmpty())
+			sources.add(getBridgeName(clazz));
+		if (!getUpcallMethods(clazz).isEmpty())
+			sources.add(getUpcallsName(clazz));
+		return sources;
+	}
+
 	@Override
 	public void writeDeclaration(OutputStream o, TypeElement clazz) throws Util.Exit {
+		if (isStruct(clazz)) {
+			writeStructDeclaration(o, clazz);
+			return;
+		}
+		if (isChannel(clazz)) {
+			writeChannelDeclaration(o, clazz);
+			return;
+		}
+		if (isNative(clazz)) {
+			writeNativeDeclaration(o, clazz);
+			return;
+		}
+		if (isEnum(clazz)) {
+			writeEnumDeclaration(o, clazz);
+			return;
+		}
+		if (isCallback(clazz)) {
+			writeCallbackDeclaration(o, clazz);
+			return;
+		}
+
 		String cname = baseFileName(clazz);
 		PrintWriter pw = wrapWriter(o);
 
+		if (hasAsyncMethods(clazz)) {
+			pw.println("#include <JNIAsync.h>");
+			pw.println();
+		}
+
+		/* The peer of the superclass is the base class */
+		TypeElement superPeer = getPeerSuperclass(clazz);
+		String baseName = (superPeer != null ? getPeerName(superPeer) : "::JNI::ManagedPeer");
+		if (superPeer != null) {
+			pw.println("#include \"" + baseFileName(superPeer) + ".h\"");
+			pw.println();
+		}
+
+		/* The structs and enums taken or returned by the methods are complete types for the callers */
+		Set<TypeElement> structs = getStructs(clazz);
+		Set<TypeElement> enums = getEnums(clazz);
+		for (TypeElement struct : structs)
+			pw.println("#include \"" + baseFileName(struct) + ".h\"");
+		for (TypeElement jniEnum : enums)
+			pw.println("#include \"" + baseFileName(jniEnum) + ".h\"");
+		if (!structs.isEmpty() || !enums.isEmpty())
+			pw.println();
+
+		/* Forward declare the other peers returned by the methods */
+		Set<TypeElement> peers = getReturnedPeers(clazz);
+		for (TypeElement peer : peers) {
+			String[] peerNamespace = getNamespace(peer);
+			pw.println(cppNamespaceBegin(peerNamespace) + "class " + baseFileName(peer) + "; " + cppNamespaceEnd(peerNamespace));
+		}
+		if (!peers.isEmpty())
+			pw.println();
+
 		/* Get the desired namespace for this peer class */
 		String[] namespace = getNamespace(clazz);
 		pw.println(cppNamespaceBegin(namespace));
 		pw.println();
 
-		/* All ManagedPeer classes derive from the base JNI::ManagedPeer class */
-		pw.println("class " + cname + " : public ::JNI::ManagedPeer");
+		/* ManagedPeer classes derive from the peer of their superclass, or else from the base JNI::ManagedPeer class */
+		pw.println("class " + cname + " : public " + baseName);
 		pw.println("{");
 		pw.println("public:");
 		pw.println("\t" + cname + "();");
 		pw.println("\t" + "explicit " + cname + "(jobject object);");
+		pw.println("\t" + "explicit " + cname + "(::JNI::LocalRef<jobject>&& object);");
+		pw.println("\t" + cname + "(const " + cname + "& peer) = default;");
+		pw.println("\t" + cname + "(" + cname + "&& peer) = default;");
 		pw.println("\t~" + cname + "();");
 		pw.println();
 		pw.println("\t" + cname + "& operator=(jobject object) { ::JNI::ManagedPeer::operator=(object); return *this; }");
+		pw.println("\t" + cname + "& operator=(const " + cname + "& peer) = default;");
+		pw.println("\t" + cname + "& operator=(" + cname + "&& peer) = default;");
 		pw.println();
 		pw.println("\t" + "static jclass GetClass();");
 		pw.println();
+		pw.println("\t" + "// Whether object is an instance of the Java class, which null is not");
+		pw.println("\t" + "static bool IsInstance(jobject object);");
+		pw.println("\t" + "// A peer of object when it is an instance of the Java class, or else an empty peer");
+		pw.println("\t" + "static " + cname + " TryCast(jobject object);");
+		pw.println();
+
+		/* The inherited methods hidden by methods of the same name stay callable */
+		Set<String> hidden = getInheritedMethodNames(clazz);
+		hidden.retainAll(getDeclaredMethodNames(clazz));
+		for (String name : hidden)
+			pw.println("\t" + "using " + baseName + "::" + name + ";");
+		if (!hidden.isEmpty())
+			pw.println();
+
+		/* The compile-time constants of the Java class, read without a call into Java */
+		List<VariableElement> constants = getConstants(clazz);
+		for (VariableElement field : constants) {
+			String name = getConstantName(field);
+			if (isString(field.asType()))
+				pw.println("\t" + "static constexpr const char " + name + "[] = " + getConstantLiteral(field) + ";");
+			else
+				pw.println("\t" + "static constexpr " + jniType(field.asType()) + " " + name + " = " + getConstantLiteral(field) + ";");
+		}
+		if (!constants.isEmpty())
+			pw.println();
 
 		/* Write declarations for methods marked with the JNIMethod annotation. */
 		List<ExecutableElement> classmethods = ElementFilter.methodsIn(clazz.getEnclosedElements());
@@ -91,9 +342,24 @@ public class JNIGenerator extends Gen {
 				String argumentSignature = getArgumentsSignature(method, /*includeTypes:*/ true);
 				
 				pw.println("\t" + modifiers + returnType + " " + methodName + "(" + argumentSignature + ")" + qualifiers + ";");
+				if (isAsync(method))
+					pw.println("\t" + modifiers + getAsyncReturnType(method) + " " + methodName + "Async(" + argumentSignature + ")" + qualifiers + ";");
+				if (isRange(method.getReturnType()))
+					pw.println("\t" + modifiers + "::JNI::JavaRange<> " + methodName + "Range(" + argumentSignature + ")" + qualifiers + ";");
+				writeOverloads(pw, clazz, null, method);
 			}
 		}
 
+		boolean upcalls = !getUpcallMethods(clazz).isEmpty();
+		if (!structs.isEmpty() || upcalls) {
+			pw.println();
+			pw.println("private:");
+			if (!structs.isEmpty())
+				pw.println("\t" + "static jclass GetBridgeClass();");
+			if (upcalls)
+				pw.println("\t" + "static void* GetUpcall(int index);");
+		}
+
 		pw.println("};");
 		pw.println();
 
@@ -103,11 +369,29 @@ public class JNIGenerator extends Gen {
 
 	@Override
 	public void writeDefinition(OutputStream o, TypeElement clazz) throws Util.Exit {
+		if (isStruct(clazz) || isChannel(clazz) || isEnum(clazz))
+			return;
+		if (isNative(clazz)) {
+			writeNativeDefinition(o, clazz);
+			return;
+		}
+		if (isCallback(clazz)) {
+			writeCallbackDefinition(o, clazz);
+			return;
+		}
+
 		try {
 			String cname = baseFileName(clazz);
 			PrintWriter pw = wrapWriter(o);
 			TypeSignature typeSignature = new TypeSignature(elems);
 
+			/* The other peers returned by the methods are constructed here */
+			Set<TypeElement> peers = getReturnedPeers(clazz);
+			for (TypeElement peer : peers)
+				pw.println("#include \"" + baseFileName(peer) + ".h\"");
+			if (!peers.isEmpty())
+				pw.println();
+
 			/* Get the desired namespace for this peer class */
 			String[] namespace = getNamespace(clazz);
 			pw.println(cppNamespaceBegin(namespace));
@@ -119,9 +403,19 @@ public class JNIGenerator extends Gen {
 			pw.println("}");
 			pw.println();
 
+			TypeElement superPeer = getPeerSuperclass(clazz);
+			String baseName = (superPeer != null ? getPeerName(superPeer) : "::JNI::ManagedPeer");
+
 			/* Constructor with Java object */
 			pw.println(cname + "::" + cname + "(jobject object)");
-			pw.println("\t" + ": ::JNI::ManagedPeer(object)");
+			pw.println("\t" + ": " + baseName + "(object)");
+			pw.println("{");
+			pw.println("}");
+			pw.println();
+
+			/* Constructor taking over a local reference */
+			pw.println(cname + "::" + cname + "(::JNI::LocalRef<jobject>&& object)");
+			pw.println("\t" + ": " + baseName + "(std::move(object))");
 			pw.println("{");
 			pw.println("}");
 			pw.println();
@@ -140,6 +434,50 @@ public class JNIGenerator extends Gen {
 			pw.println("}");
 			pw.println();
 
+			/* static IsInstance and TryCast methods - checked against the cached class */
+			pw.println("bool " + cname + "::IsInstance(jobject object)");
+			pw.println("{");
+			pw.println("\t" + "return object != nullptr && Env().IsInstanceOf(object, GetClass());");
+			pw.println("}");
+			pw.println();
+			pw.println(cname + " " + cname + "::TryCast(jobject object)");
+			pw.println("{");
+			pw.println("\t" + "return (IsInstance(object) ? " + cname + "(object) : " + cname + "());");
+			pw.println("}");
+			pw.println();
+
+			/* The constants are defined for the code taking their address before C++17 made them inline */
+			List<VariableElement> constants = getConstants(clazz);
+			for (VariableElement field : constants) {
+				if (isString(field.asType()))
+					pw.println("constexpr const char " + cname + "::" + getConstantName(field) + "[];");
+				else
+					pw.println("constexpr " + jniType(field.asType()) + " " + cname + "::" + getConstantName(field) + ";");
+			}
+			if (!constants.isEmpty())
+				pw.println();
+
+			/* static GetBridgeClass method - the Java class making the calls with structs */
+			if (!getStructMethods(clazz).isEmpty()) {
+				pw.println("jclass " + cname + "::GetBridgeClass()");
+				pw.println("{");
+				pw.println("\t" + "static ::JNI::JClass clazz(\"" + getBridgeName(clazz).replace('.', '/') + "\");");
+				pw.println("\t" + "return clazz;");
+				pw.println("}");
+				pw.println();
+			}
+
+			/* static GetUpcall method - the function pointers of the upcall stubs, or null for JNI calls */
+			List<ExecutableElement> upcallMethods = getUpcallMethods(clazz);
+			if (!upcallMethods.isEmpty()) {
+				pw.println("void* " + cname + "::GetUpcall(int index)");
+				pw.println("{");
+				pw.println("\t" + "static void* const* table(::JNI::GetUpcallTable(\"" + getUpcallsName(clazz).replace('.', '/') + "\"));");
+				pw.println("\t" + "return (table != nullptr ? table[index] : nullptr);");
+				pw.println("}");
+				pw.println();
+			}
+
 			/* Write definitions for methods marked with the JNIMethod annotation. */
 			List<ExecutableElement> classmethods = ElementFilter.methodsIn(clazz.getEnclosedElements());
 			for (ExecutableElement method : classmethods) {
@@ -157,29 +495,59 @@ public class JNIGenerator extends Gen {
 					pw.println(returnType + " " + cname + "::" + methodName + "(" + argumentSignature + ")" + qualifiers);
 					pw.println("{");
 
+					if (hasStructs(method)) {
+						writeStructCall(pw, clazz, method, typeSignature);
+						pw.println("}");
+						pw.println();
+						writeRangeOverload(pw, cname, method);
+						writeOverloads(pw, clazz, cname, method);
+						continue;
+					}
+
+					if (upcallMethods.contains(method))
+						writeUpcall(pw, method, upcallMethods.indexOf(method));
+
 					/* Static variable to compute the jmethodID once on first use */
 					pw.println("\t" + "static jmethodID methodID(Env().Get" + (isStatic(method) ? "Static" : "") + "MethodID(GetClass(), \"" + methodSimpleName + "\", \"" + methodSignature + "\"));");
 
 					/* Generate the code to call the Java method. */
-					pw.print("\t");
-					pw.print(getCallSignature(method));
-					pw.print("(");
+					StringBuilder call = new StringBuilder(getCallSignature(method));
+					call.append("(");
 
 					/* If the method is not static, we need a Java instance to invoke */
 					if (isStatic(method))
-						pw.print("GetClass(), ");
+						call.append("GetClass(), ");
 					else
-						pw.print("Object(), ");
-					pw.print("methodID");
+						call.append("Object(), ");
+					call.append("methodID");
 
 					/* If the method has parameters, we need to forward the parameters */
-					String arguments = getArgumentsSignature(method, /*includeTypes:*/ false);
+					String arguments = getCallArguments(method);
 					if (arguments != null && !arguments.isEmpty())
-						pw.print(", " + arguments);
-					pw.println(");");
+						call.append(", " + arguments);
+					call.append(")");
+
+					pw.println("\t" + getReturnStatement(method, call.toString()) + ";");
 
 					pw.println("}");
 					pw.println();
+
+					if (isAsync(method)) {
+						String asyncReturnType = getAsyncReturnType(method);
+						pw.println(asyncReturnType + " " + cname + "::" + methodName + "Async(" + argumentSignature + ")" + qualifiers);
+						pw.println("{");
+
+						/* The call is made by reflection on a Java thread, see com.jni.runtime.AsyncBridge */
+						pw.println("\t" + "static ::JNI::JObject reflectedMethod(::JNI::GetReflectedMethod(GetClass(), \"" + methodSimpleName + "\", \"" + methodSignature + "\", " + isStatic(method) + "));");
+						pw.println("\t" + "return " + asyncReturnType + "::Submit(reflectedMethod, " + (isStatic(method) ? "nullptr" : "Object()")
+								+ (arguments != null && !arguments.isEmpty() ? ", " + arguments : "") + ");");
+
+						pw.println("}");
+						pw.println();
+					}
+
+					writeRangeOverload(pw, cname, method);
+					writeOverloads(pw, clazz, cname, method);
 				}
 			}
 
@@ -190,12 +558,106 @@ public class JNIGenerator extends Gen {
 		}
 	}
 
+	@Override
+	protected String describe(TypeElement clazz) throws Util.Exit {
+		try {
+			TypeSignature typeSignature = new TypeSignature(elems);
+			StringBuilder model = new StringBuilder("JNIGenerator " + VERSION + lineSeparator);
+			model.append(typeSignature.getTypeSignature(clazz) + " " + baseFileName(clazz) + " ");
+			model.append(cppNamespaceBegin(getNamespace(clazz)) + lineSeparator);
+			/* A peer includes the peer of its superclass, and unhides the methods it hides */
+			TypeElement superPeer = getPeerSuperclass(clazz);
+			if (superPeer != null) {
+				model.append("extends " + getPeerName(superPeer) + " " + baseFileName(superPeer) + lineSeparator);
+				model.append("inherits " + getInheritedMethodNames(clazz) + lineSeparator);
+				model.append("declares " + getDeclaredMethodNames(clazz) + lineSeparator);
+			}
+
+			if (isStruct(clazz)) {
+				StructLayout layout = new StructLayout(clazz, util);
+				for (StructLayout.Field field : layout.fields)
+					model.append(field.getName() + " " + field.kind + " " + field.offset + lineSeparator);
+				model.append("size " + layout.size + " record " + layout.record + " constructor " + layout.fieldConstructor + lineSeparator);
+				return model.toString();
+			}
+
+			if (isChannel(clazz)) {
+				for (ExecutableElement message : getMessages(clazz)) {
+					model.append(message.getSimpleName() + " " + getMessageName(message));
+					for (StructLayout.Field field : new StructLayout(message, util).fields)
+						model.append(" " + field.kind + " " + field.offset);
+					model.append(lineSeparator);
+				}
+				return model.toString();
+			}
+
+			if (isEnum(clazz)) {
+				List<String> constants = getEnumConstants(clazz);
+				for (int i = 0; i < constants.size(); i++)
+					model.append(constants.get(i) + " " + i + lineSeparator);
+				return model.toString();
+			}
+
+			if (isCallback(clazz)) {
+				for (ExecutableElement method : getCallbackMethods(clazz))
+					model.append(method.getSimpleName() + getTrampolineSignature(method) + " " + getMethodName(method) + "(" + getCallbackSignature(method, true) + ")" + lineSeparator);
+				return model.toString();
+			}
+
+			if (isNative(clazz)) {
+				JNINative jniNative = clazz.getAnnotation(JNINative.class);
+				model.append("library " + jniNative.library() + " critical " + jniNative.critical() + lineSeparator);
+				for (ExecutableElement method : getNativeMethods(clazz))
+					model.append(getNativeSymbol(clazz, method) + " " + getNativeSignature(method, /*includeTypes:*/ true) + lineSeparator);
+				return model.toString();
+			}
+
+			for (VariableElement field : getConstants(clazz))
+				model.append("constant " + getConstantName(field) + " " + getConstantLiteral(field) + lineSeparator);
+
+			List<ExecutableElement> classmethods = ElementFilter.methodsIn(clazz.getEnclosedElements());
+			for (ExecutableElement method : classmethods) {
+				if (method.getAnnotation(JNIMethod.class) != null) {
+					String methodSignature = typeSignature.getTypeSignature(signature(method), types.erasure(method.getReturnType()));
+					model.append((isStatic(method) ? "static " : "") + method.getSimpleName() + methodSignature);
+					model.append(" " + getReturnType(method) + " " + getMethodName(method) + "(" + getArgumentsSignature(method, true) + ")");
+					if (isAsync(method))
+						model.append(" async");
+					if (getUpcallMethods(clazz).contains(method))
+						model.append(" upcall");
+					model.append(lineSeparator);
+				}
+			}
+			return model.toString();
+		} catch (TypeSignature.SignatureException e) {
+			util.error("jni.sigerror", e.getMessage());
+			return null; /* dead code */
+		}
+	}
+
 	protected final String[] getNamespace(TypeElement clazz) {
-		JNIClass jniClass = clazz.getAnnotation(JNIClass.class);
-		if (jniClass == null)
-			util.bug("tried.to.define.non.annotated.class");
-		
-		String namespace = jniClass.value();
+		String namespace;
+		JNIStruct jniStruct = clazz.getAnnotation(JNIStruct.class);
+		JNIChannel jniChannel = clazz.getAnnotation(JNIChannel.class);
+		JNINative jniNative = clazz.getAnnotation(JNINative.class);
+		JNIEnum jniEnum = clazz.getAnnotation(JNIEnum.class);
+		JNICallback jniCallback = clazz.getAnnotation(JNICallback.class);
+		if (jniStruct != null) {
+			namespace = jniStruct.value();
+		} else if (jniChannel != null) {
+			namespace = jniChannel.value();
+		} else if (jniNative != null) {
+			namespace = jniNative.value();
+		} else if (jniEnum != null) {
+			namespace = jniEnum.value();
+		} else if (jniCallback != null) {
+			namespace = jniCallback.value();
+		} else {
+			JNIClass jniClass = clazz.getAnnotation(JNIClass.class);
+			if (jniClass == null)
+				util.bug("tried.to.define.non.annotated.class");
+			namespace = jniClass.value();
+		}
 		if (namespace == null)
 			util.error("JNIClass.does.not.define.namespace", clazz.getQualifiedName());
 		
@@ -233,96 +695,1907 @@ public class JNIGenerator extends Gen {
 		return method.getModifiers().contains(Modifier.STATIC);
 	}
 	
+	protected final boolean isAsync(ExecutableElement method) {
+		JNIMethod jniMethod = method.getAnnotation(JNIMethod.class);
+		return (jniMethod != null && jniMethod.async());
+	}
+
+	protected final boolean hasAsyncMethods(TypeElement clazz) {
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (isAsync(method))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * nameAsync returns a JNI::Async of what name returns.
+	 */
+	protected final String getAsyncReturnType(ExecutableElement method) {
+		return "::JNI::Async<" + getReturnType(method) + ">";
+	}
+
+	/*
+	 * Objects are returned as the peer of their JNIClass, or else as a LocalRef
+	 * which deletes the local reference.
+	 */
 	protected final String getReturnType(ExecutableElement method) {
 		TypeMirror returnType = types.erasure(method.getReturnType());
+		TypeElement struct = getStructClass(returnType);
+		if (struct != null)
+			return getStructName(struct);
+		TypeElement jniEnum = getEnumClass(returnType);
+		if (jniEnum != null)
+			return getEnumName(jniEnum);
+		TypeElement peer = getPeerClass(returnType);
+		if (peer != null)
+			return getPeerName(peer);
+		if (returnType.getKind() == TypeKind.DECLARED || returnType.getKind() == TypeKind.ARRAY)
+			return "::JNI::LocalRef<" + jniType(returnType) + ">";
 		return jniType(returnType);
 	}
-	
-	protected final String getMethodName(ExecutableElement method) {
-		return mangler.mangle(method.getSimpleName(), Mangle.Type.FIELDSTUB);
+
+	/*
+	 * The JNIClass the given type is, or null.
+	 */
+	protected final TypeElement getPeerClass(TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED)
+			return null;
+		TypeElement clazz = (TypeElement) types.asElement(type);
+		return (clazz.getAnnotation(JNIClass.class) != null ? clazz : null);
 	}
-	
-	protected final String getArgumentsSignature(ExecutableElement method, boolean includeTypes) {
-		StringBuffer signature = new StringBuffer();
 
-		/* Write out the method parameters */
-		List<? extends VariableElement> paramArgs = method.getParameters();
-		for (int i = 0; i < paramArgs.size(); i++) {
-			VariableElement param = paramArgs.get(i);
-			if (includeTypes)
-			{
-				TypeMirror paramType = types.erasure(param.asType());
-				signature.append(jniType(paramType) + " ");
+	/*
+	 * The nearest superclass of clazz which is a JNIClass, or null.  Its peer
+	 * is the base class of the peer of clazz, so the methods it declares are
+	 * only resolved on it.
+	 */
+	protected final TypeElement getPeerSuperclass(TypeElement clazz) {
+		if (clazz.getAnnotation(JNIClass.class) == null)
+			return null;
+		TypeMirror superclass = clazz.getSuperclass();
+		while (superclass.getKind() == TypeKind.DECLARED) {
+			TypeElement element = (TypeElement) types.asElement(superclass);
+			if (element.getAnnotation(JNIClass.class) != null)
+				return element;
+			superclass = element.getSuperclass();
+		}
+		return null;
+	}
+
+	/*
+	 * The names of the methods of the peer of clazz, async ones included.
+	 */
+	private Set<String> getDeclaredMethodNames(TypeElement clazz) {
+		Set<String> names = new LinkedHashSet<String>();
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) != null) {
+				names.add(getMethodName(method));
+				if (isAsync(method))
+					names.add(getMethodName(method) + "Async");
+				if (isRange(method.getReturnType()))
+					names.add(getMethodName(method) + "Range");
+				if (hasBoxes(method))
+					names.add(getBoxingOverloadName(method));
 			}
-			signature.append(param.getSimpleName());
-			if (i+1 < paramArgs.size())
-				signature.append(", ");
 		}
+		return names;
+	}
 
-		return signature.toString();
+	private Set<String> getInheritedMethodNames(TypeElement clazz) {
+		Set<String> names = new LinkedHashSet<String>();
+		for (TypeElement base = getPeerSuperclass(clazz); base != null; base = getPeerSuperclass(base))
+			names.addAll(getDeclaredMethodNames(base));
+		return names;
 	}
-	
-	private final String getCallSignature(ExecutableElement method, String baseSignature) {
-		return String.format("Env().Call%s%sMethod", isStatic(method) ? "Static" : "", baseSignature);
+
+	/*
+	 * The fully qualified name of the peer of a JNIClass.
+	 */
+	protected final String getPeerName(TypeElement clazz) {
+		return getCppName(clazz, baseFileName(clazz));
+	}
+
+	/*
+	 * The fully qualified name of a C++ type generated for clazz.
+	 */
+	protected final String getCppName(TypeElement clazz, String name) {
+		StringBuilder qualified = new StringBuilder();
+		for (String ns : getNamespace(clazz))
+			qualified.append("::" + ns);
+		return qualified.append("::" + name).toString();
+	}
+
+	/*
+	 * The peers of the superclasses of clazz, and the other JNI types in the
+	 * signatures of its methods (and the fields of a struct): their changes
+	 * change what is generated for clazz.
+	 */
+	@Override
+	protected Set<TypeElement> getDependencies(TypeElement clazz) {
+		Set<TypeElement> dependencies = new LinkedHashSet<TypeElement>();
+		for (TypeElement base = getPeerSuperclass(clazz); base != null; base = getPeerSuperclass(base))
+			dependencies.add(base);
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			for (VariableElement param : method.getParameters())
+				addJNITypes(param.asType(), dependencies);
+			addJNITypes(method.getReturnType(), dependencies);
+		}
+		if (isStruct(clazz)) {
+			for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements()))
+				addJNITypes(field.asType(), dependencies);
+		}
+		dependencies.remove(clazz);
+		return dependencies;
+	}
+
+	/*
+	 * Adds the JNI types in type, its array components and type arguments included.
+	 */
+	private void addJNITypes(TypeMirror type, Set<TypeElement> found) {
+		if (type.getKind() == TypeKind.ARRAY) {
+			addJNITypes(((ArrayType) type).getComponentType(), found);
+		} else if (type.getKind() == TypeKind.DECLARED) {
+			TypeElement element = (TypeElement) types.asElement(type);
+			if (getPeerClass(type) != null || isStruct(element) || isEnum(element) || isChannel(element) || isNative(element) || isCallback(element))
+				found.add(element);
+			for (TypeMirror argument : ((DeclaredType) type).getTypeArguments())
+				addJNITypes(argument, found);
+		}
+	}
+
+	/*
+	 * The other JNIClasses returned by the methods of clazz.
+	 */
+	protected final Set<TypeElement> getReturnedPeers(TypeElement clazz) {
+		Set<TypeElement> peers = new LinkedHashSet<TypeElement>();
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) != null) {
+				TypeElement peer = getPeerClass(types.erasure(method.getReturnType()));
+				if (peer != null && !peer.equals(clazz))
+					peers.add(peer);
+			}
+		}
+		return peers;
 	}
 	
-	protected final String getCallSignature(ExecutableElement method) {
-		TypeMirror returnType = types.erasure(method.getReturnType());
-		
-		String baseSignature = null;
-		boolean needsCast = false;
-		boolean needsReturn = true;
+	/*
+	 * The JNIStruct the given type is, or null.
+	 */
+	protected final TypeElement getStructClass(TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED)
+			return null;
+		TypeElement clazz = (TypeElement) types.asElement(type);
+		return (isStruct(clazz) ? clazz : null);
+	}
 
-		switch (returnType.getKind()) {
-		case VOID:
-			baseSignature = "Void";
-			needsReturn = false;
-			break;
+	protected final boolean isStruct(TypeElement clazz) {
+		return clazz.getAnnotation(JNIStruct.class) != null;
+	}
 
-		case ARRAY:
-		case DECLARED:
-			baseSignature = "Object";
-			needsCast = true;
-			break;
+	protected final boolean isChannel(TypeElement clazz) {
+		return clazz.getAnnotation(JNIChannel.class) != null;
+	}
 
-		case BOOLEAN:
-			baseSignature = "Boolean";
-			break;
-		case BYTE:
-			baseSignature = "Byte";
-			break;
-		case CHAR:
-			baseSignature = "Char";
-			break;
-		case SHORT:
-			baseSignature = "Short";
-			break;
-		case INT:
-			baseSignature = "Int";
-			break;
-		case LONG:
-			baseSignature = "Long";
-			break;
-		case FLOAT:
-			baseSignature = "Float";
-			break;
-		case DOUBLE:
-			baseSignature = "Double";
-			break;
+	protected final boolean isNative(TypeElement clazz) {
+		return clazz.getAnnotation(JNINative.class) != null;
+	}
 
-		default:
-			util.bug("jni.unknown.type");
+	protected final boolean isEnum(TypeElement clazz) {
+		return clazz.getAnnotation(JNIEnum.class) != null;
+	}
+
+	protected final boolean isCallback(TypeElement clazz) {
+		return clazz.getAnnotation(JNICallback.class) != null;
+	}
+
+	/*
+	 * The JNIEnum the given type is, or null.
+	 */
+	protected final TypeElement getEnumClass(TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED)
 			return null;
+		TypeElement clazz = (TypeElement) types.asElement(type);
+		return (isEnum(clazz) ? clazz : null);
+	}
+
+	/*
+	 * The fully qualified name of the C++ enum class of a JNIEnum.
+	 */
+	protected final String getEnumName(TypeElement jniEnum) {
+		return getCppName(jniEnum, mangler.mangle(jniEnum.getSimpleName(), Mangle.Type.CLASS));
+	}
+
+	/*
+	 * The names of the constants of an enum, in ordinal order.
+	 */
+	protected final List<String> getEnumConstants(TypeElement jniEnum) throws Util.Exit {
+		if (jniEnum.getKind() != ElementKind.ENUM)
+			util.error("jni.enum.not.enum", jniEnum.getQualifiedName());
+		List<String> constants = new ArrayList<String>();
+		Set<String> names = new HashSet<String>();
+		for (VariableElement field : ElementFilter.fieldsIn(jniEnum.getEnclosedElements())) {
+			if (field.getKind() == ElementKind.ENUM_CONSTANT) {
+				if (!names.add(getCppConstantName(field.getSimpleName())))
+					util.error("jni.constant.renamed.clash", jniEnum.getQualifiedName(), field.getSimpleName(), getCppConstantName(field.getSimpleName()));
+				constants.add(field.getSimpleName().toString());
+			}
 		}
+		return constants;
+	}
 
-		StringBuffer signature = new StringBuffer();
-		if (needsReturn)
-			signature.append("return ");
-		if (needsCast)
-			signature.append("(" + getReturnType(method) + ")");
-		signature.append(getCallSignature(method, baseSignature));
+	/*
+	 * The enums taken or returned by the methods of clazz.
+	 */
+	protected final Set<TypeElement> getEnums(TypeElement clazz) {
+		Set<TypeElement> enums = new LinkedHashSet<TypeElement>();
+		if (isEnum(clazz))
+			return enums;
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) == null)
+				continue;
+			for (VariableElement param : method.getParameters()) {
+				TypeElement jniEnum = getEnumClass(types.erasure(param.asType()));
+				if (jniEnum != null)
+					enums.add(jniEnum);
+			}
+			TypeElement jniEnum = getEnumClass(types.erasure(method.getReturnType()));
+			if (jniEnum != null)
+				enums.add(jniEnum);
+		}
+		return enums;
+	}
 
-		return signature.toString();
+	/*
+	 * The C++ enum class, whose values are the ordinals, and its EnumPeer
+	 * holding the constants.  A constant whose name is not a C++ identifier
+	 * is mangled, and one named like a macro or a C++ keyword renamed (see
+	 * getCppConstantName).
+	 */
+	private void writeEnumDeclaration(OutputStream o, TypeElement jniEnum) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String name = mangler.mangle(jniEnum.getSimpleName(), Mangle.Type.CLASS);
+		String qualified = getEnumName(jniEnum);
+		List<String> constants = getEnumConstants(jniEnum);
+		TypeSignature typeSignature = new TypeSignature(elems);
+
+		String[] namespace = getNamespace(jniEnum);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		pw.println("enum class " + name + " : jint");
+		pw.println("{");
+		for (int i = 0; i < constants.size(); i++)
+			pw.println("\t" + getCppConstantName(constants.get(i)) + " = " + i + ",");
+		pw.println("};");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+		pw.println();
+
+		StringBuilder names = new StringBuilder();
+		for (String constant : constants) {
+			if (names.length() > 0)
+				names.append(", ");
+			names.append("\"" + constant + "\"");
+		}
+
+		pw.println("namespace JNI {");
+		pw.println();
+		pw.println("template <>");
+		pw.println("struct EnumPeer<" + qualified + ">");
+		pw.println("{");
+		pw.println("\t" + "static const EnumConstants& Constants()");
+		pw.println("\t" + "{");
+		pw.println("\t\t" + "static const EnumConstants constants(\"" + typeSignature.getTypeSignature(jniEnum) + "\", { " + names + " });");
+		pw.println("\t\t" + "return constants;");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "static jclass GetClass() { return Constants().GetClass(); }");
+		pw.println("\t" + "static jobject ToJava(" + qualified + " value) { return Constants().Get(static_cast<jint>(value)); }");
+		pw.println("\t" + "static " + qualified + " FromJava(jobject object) { return static_cast<" + qualified + ">(Constants().Ordinal(object)); }");
+		pw.println("};");
+		pw.println();
+		pw.println("} // namespace JNI");
+	}
+
+	/*
+	 * The messages of a channel: its abstract methods, numbered in order.
+	 */
+	protected final List<ExecutableElement> getMessages(TypeElement channel) throws Util.Exit {
+		if (!channel.getKind().isInterface())
+			util.error("jni.channel.not.interface", channel.getQualifiedName());
+		List<ExecutableElement> messages = new ArrayList<ExecutableElement>();
+		for (ExecutableElement method : ElementFilter.methodsIn(channel.getEnclosedElements())) {
+			if (!method.getModifiers().contains(Modifier.ABSTRACT))
+				continue;
+			if (method.getReturnType().getKind() != TypeKind.VOID)
+				util.error("jni.channel.return.type", channel.getQualifiedName(), method.getSimpleName());
+			messages.add(method);
+		}
+		return messages;
+	}
+
+	private String getMessageName(ExecutableElement message) {
+		return mangler.mangle(message.getSimpleName(), Mangle.Type.FIELDSTUB);
+	}
+
+	/*
+	 * The C++ producer of a channel: one method per message, writing its
+	 * parameters at the offsets of StructLayout.  Each message is published
+	 * on its own.
+	 */
+	private void writeChannelDeclaration(OutputStream o, TypeElement channel) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String cname = baseFileName(channel);
+
+		pw.println("#include <JNIChannel.h>");
+		pw.println();
+
+		String[] namespace = getNamespace(channel);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		pw.println("class " + cname + " : public ::JNI::RingProducer");
+		pw.println("{");
+		pw.println("public:");
+		pw.println("\t" + "using ::JNI::RingProducer::RingProducer;");
+
+		List<ExecutableElement> messages = getMessages(channel);
+		for (int type = 0; type < messages.size(); type++) {
+			ExecutableElement message = messages.get(type);
+			StructLayout layout = new StructLayout(message, util);
+			String name = getMessageName(message);
+			String tryName = "try" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+			String arguments = getArgumentsSignature(message, /*includeTypes:*/ true);
+
+			/* Waits for room, or returns at once */
+			for (String claim : new String[] { "Claim", "TryClaim" }) {
+				pw.println();
+				pw.println("\t" + "bool " + (claim.equals("Claim") ? name : tryName) + "(" + arguments + ")");
+				pw.println("\t" + "{");
+				pw.println("\t\t" + "uint8_t* payload = " + claim + "(" + type + ", " + layout.size + ");");
+				pw.println("\t\t" + "if (payload == nullptr)");
+				pw.println("\t\t\t" + "return false;");
+				for (StructLayout.Field field : layout.fields)
+					pw.println("\t\t" + "Put(payload, " + field.offset + ", " + field.getName() + ");");
+				pw.println("\t\t" + "Publish();");
+				pw.println("\t\t" + "return true;");
+				pw.println("\t" + "}");
+			}
+		}
+
+		pw.println("};");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+	}
+
+	/*
+	 * The Java consumer of a channel, handing the messages of a Ring to an
+	 * implementation of the interface.
+	 */
+	private void writeConsumer(PrintWriter pw, TypeElement channel, String simpleName) throws Util.Exit {
+		String type = channel.getQualifiedName().toString();
+
+		pw.println("/**");
+		pw.println(" * Consumer end of the " + type + " channel, whose messages are written");
+		pw.println(" * into the Ring by the C++ " + getCppName(channel, baseFileName(channel)) + ".");
+		pw.println(" */");
+		pw.println("public final class " + simpleName + " {");
+		pw.println("\t" + "public " + simpleName + "(Ring ring, final " + type + " handler) {");
+		pw.println("\t\t" + "this.ring = ring;");
+		pw.println("\t\t" + "this.dispatcher = new Ring.Handler() {");
+		pw.println("\t\t\t" + "public void onMessage(int type, ByteBuffer buffer, int offset) {");
+		pw.println("\t\t\t\t" + "switch (type) {");
+		List<ExecutableElement> messages = getMessages(channel);
+		for (int i = 0; i < messages.size(); i++) {
+			ExecutableElement message = messages.get(i);
+			StringBuilder args = new StringBuilder();
+			for (StructLayout.Field field : new StructLayout(message, util).fields) {
+				if (args.length() > 0)
+					args.append(", ");
+				args.append(getBufferRead(field, "offset"));
+			}
+			pw.println("\t\t\t\t" + "case " + i + ":");
+			pw.println("\t\t\t\t\t" + "handler." + message.getSimpleName() + "(" + args + ");");
+			pw.println("\t\t\t\t\t" + "break;");
+		}
+		pw.println("\t\t\t\t" + "default:");
+		pw.println("\t\t\t\t\t" + "throw new IllegalStateException(\"unknown message type \" + type);");
+		pw.println("\t\t\t\t" + "}");
+		pw.println("\t\t\t" + "}");
+		pw.println("\t\t" + "};");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "public Ring ring() {");
+		pw.println("\t\t" + "return ring;");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "/**");
+		pw.println("\t" + " * Handles up to limit waiting messages, and returns how many.");
+		pw.println("\t" + " */");
+		pw.println("\t" + "public int poll(int limit) {");
+		pw.println("\t\t" + "return ring.poll(dispatcher, limit);");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "/**");
+		pw.println("\t" + " * Handles the messages as they come, until the thread is interrupted.");
+		pw.println("\t" + " */");
+		pw.println("\t" + "public void run(WaitStrategy wait) {");
+		pw.println("\t\t" + "ring.run(dispatcher, wait);");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "private final Ring ring;");
+		pw.println("\t" + "private final Ring.Handler dispatcher;");
+		pw.println("}");
+	}
+
+	/*
+	 * The functions of a native interface: its abstract methods, of
+	 * primitive and MemorySegment parameters and return types.
+	 */
+	protected final List<ExecutableElement> getNativeMethods(TypeElement clazz) throws Util.Exit {
+		if (!clazz.getKind().isInterface())
+			util.error("jni.native.not.interface", clazz.getQualifiedName());
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (!method.getModifiers().contains(Modifier.ABSTRACT))
+				continue;
+			if (!isVoid(method) && !isNativeType(method.getReturnType()))
+				util.error("jni.native.return.type", clazz.getQualifiedName(), method.getSimpleName());
+			for (VariableElement param : method.getParameters()) {
+				if (!isNativeType(param.asType()))
+					util.error("jni.native.parameter.type", clazz.getQualifiedName(), method.getSimpleName(), param.getSimpleName());
+			}
+			methods.add(method);
+		}
+		return methods;
+	}
+
+	private boolean isNativeType(TypeMirror type) {
+		return type.getKind().isPrimitive() || isMemorySegment(type);
+	}
+
+	private boolean isMemorySegment(TypeMirror type) {
+		type = types.erasure(type);
+		return type.getKind() == TypeKind.DECLARED
+				&& ((TypeElement) types.asElement(type)).getQualifiedName().contentEquals("java.lang.foreign.MemorySegment");
+	}
+
+	/*
+	 * A MemorySegment is passed as its address.
+	 */
+	private String getNativeType(TypeMirror type) throws Util.Exit {
+		return isMemorySegment(type) ? "void*" : jniType(types.erasure(type));
+	}
+
+	private String getNativeSignature(ExecutableElement method, boolean includeTypes) throws Util.Exit {
+		StringBuilder signature = new StringBuilder();
+		for (VariableElement param : method.getParameters()) {
+			if (signature.length() > 0)
+				signature.append(", ");
+			if (includeTypes)
+				signature.append(getNativeType(param.asType()) + " ");
+			signature.append(param.getSimpleName());
+		}
+		return signature.toString();
+	}
+
+	/*
+	 * The entry point of a native method: its JNI name with JNINative_ for
+	 * Java_, with the signature when it is overloaded.
+	 */
+	protected final String getNativeSymbol(TypeElement clazz, ExecutableElement method) throws Util.Exit {
+		int overloads = 0;
+		for (ExecutableElement other : getNativeMethods(clazz)) {
+			if (other.getSimpleName().equals(method.getSimpleName()))
+				overloads++;
+		}
+		try {
+			String name = mangler.mangleMethod(method, clazz, overloads > 1 ? Mangle.Type.METHOD_JNI_LONG : Mangle.Type.METHOD_JNI_SHORT);
+			return "JNINative_" + name.substring("Java_".length());
+		} catch (TypeSignature.SignatureException e) {
+			util.error("jni.sigerror", e.getMessage());
+			return null; /* dead code */
+		}
+	}
+
+	/*
+	 * The C++ class of a native interface, whose static functions are
+	 * implemented by hand.
+	 */
+	private void writeNativeDeclaration(OutputStream o, TypeElement clazz) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String cname = baseFileName(clazz);
+
+		String[] namespace = getNamespace(clazz);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		/* Called by the entry points of the Java downcalls */
+		pw.println("class " + cname);
+		pw.println("{");
+		pw.println("public:");
+		for (ExecutableElement method : getNativeMethods(clazz)) {
+			String returnType = isVoid(method) ? "void" : getNativeType(method.getReturnType());
+			pw.println("\t" + "static " + returnType + " " + getMethodName(method) + "(" + getNativeSignature(method, /*includeTypes:*/ true) + ");");
+		}
+		pw.println("};");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+	}
+
+	/*
+	 * The extern "C" entry points the Java downcalls are linked to, in the
+	 * default calling convention of the FFM linker.
+	 */
+	private void writeNativeDefinition(OutputStream o, TypeElement clazz) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String cname = getCppName(clazz, baseFileName(clazz));
+
+		for (ExecutableElement method : getNativeMethods(clazz)) {
+			String returnType = isVoid(method) ? "void" : getNativeType(method.getReturnType());
+			String call = cname + "::" + getMethodName(method) + "(" + getNativeSignature(method, /*includeTypes:*/ false) + ")";
+			pw.println("extern \"C\" JNIEXPORT " + returnType + " " + getNativeSymbol(clazz, method) + "(" + getNativeSignature(method, /*includeTypes:*/ true) + ")");
+			pw.println("{");
+			pw.println("\t" + (isVoid(method) ? "" : "return ") + call + ";");
+			pw.println("}");
+			pw.println();
+		}
+	}
+
+	/*
+	 * The Java implementation of a native interface, invoking a downcall
+	 * handle per method.
+	 */
+	private void writeDowncalls(PrintWriter pw, TypeElement clazz, String simpleName) throws Util.Exit {
+		JNINative jniNative = clazz.getAnnotation(JNINative.class);
+		String type = clazz.getQualifiedName().toString();
+		List<ExecutableElement> methods = getNativeMethods(clazz);
+
+		pw.println("/**");
+		pw.println(" * Implements " + type + " with the C++ functions of");
+		pw.println(" * " + getCppName(clazz, baseFileName(clazz)) + ", called through FFM downcall handles.");
+		pw.println(" */");
+		pw.println("public final class " + simpleName + " implements " + type + " {");
+		pw.println("\t" + "public static final " + type + " INSTANCE = new " + simpleName + "();");
+		pw.println();
+		for (int i = 0; i < methods.size(); i++)
+			pw.println("\t" + "private static final MethodHandle " + getHandleName(methods, i) + ";");
+		pw.println();
+
+		pw.println("\t" + "static {");
+		if (!jniNative.library().isEmpty())
+			pw.println("\t\t" + "System.loadLibrary(\"" + jniNative.library() + "\");");
+		pw.println("\t\t" + "SymbolLookup symbols = SymbolLookup.loaderLookup();");
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			StringBuilder methodType = new StringBuilder(types.erasure(method.getReturnType()) + ".class");
+			for (VariableElement param : method.getParameters())
+				methodType.append(", " + types.erasure(param.asType()) + ".class");
+			pw.println("\t\t" + getHandleName(methods, i) + " = Downcalls.link(symbols, \"" + getNativeSymbol(clazz, method) + "\", MethodType.methodType(" + methodType + "), " + jniNative.critical() + ");");
+		}
+		pw.println("\t" + "}");
+		pw.println();
+
+		pw.println("\t" + "private " + simpleName + "() {");
+		pw.println("\t" + "}");
+
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			TypeMirror returnType = types.erasure(method.getReturnType());
+			StringBuilder declaration = new StringBuilder();
+			for (VariableElement param : method.getParameters()) {
+				if (declaration.length() > 0)
+					declaration.append(", ");
+				declaration.append(types.erasure(param.asType()) + " " + param.getSimpleName());
+			}
+			String call = getHandleName(methods, i) + ".invokeExact(" + getNativeSignature(method, /*includeTypes:*/ false) + ")";
+
+			pw.println();
+			pw.println("\t" + "@Override");
+			pw.println("\t" + "public " + returnType + " " + method.getSimpleName() + "(" + declaration + ") {");
+			pw.println("\t\t" + "try {");
+			pw.println("\t\t\t" + (isVoid(method) ? call : "return (" + returnType + ") " + call) + ";");
+			pw.println("\t\t" + "} catch (Throwable $e) {");
+			pw.println("\t\t\t" + "throw Downcalls.unchecked($e);");
+			pw.println("\t\t" + "}");
+			pw.println("\t" + "}");
+		}
+		pw.println("}");
+	}
+
+	/*
+	 * The abstract methods of a callback interface, inherited ones included,
+	 * but not those of Object (such as Comparator.equals).  The trampoline
+	 * implements them with erased types, so type variables are not allowed.
+	 */
+	protected final List<ExecutableElement> getCallbackMethods(TypeElement clazz) throws Util.Exit {
+		if (!clazz.getKind().isInterface())
+			util.error("jni.callback.not.interface", clazz.getQualifiedName());
+		Set<String> signatures = new LinkedHashSet<String>();
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		for (ExecutableElement method : ElementFilter.methodsIn(elems.getAllMembers(clazz))) {
+			if (!method.getModifiers().contains(Modifier.ABSTRACT) || isObjectMethod(method))
+				continue;
+			if (!signatures.add(method.getSimpleName() + signature(method)))
+				continue;
+			boolean generic = method.getReturnType().getKind() == TypeKind.TYPEVAR;
+			for (VariableElement param : method.getParameters())
+				generic |= (param.asType().getKind() == TypeKind.TYPEVAR);
+			if (generic)
+				util.error("jni.callback.generic", clazz.getQualifiedName(), method.getSimpleName());
+			methods.add(method);
+		}
+		return methods;
+	}
+
+	private boolean isObjectMethod(ExecutableElement method) {
+		String name = method.getSimpleName().toString();
+		String signature = signature(method);
+		return (name.equals("equals") && signature.equals("(java.lang.Object)"))
+				|| (name.equals("hashCode") && signature.equals("()"))
+				|| (name.equals("toString") && signature.equals("()"));
+	}
+
+	/*
+	 * The JNI parameters of a callback method; the trampoline natives name
+	 * them by position, clear of env and handle.
+	 */
+	private String getCallbackSignature(ExecutableElement method, boolean includeTypes) throws Util.Exit {
+		StringBuilder signature = new StringBuilder();
+		List<? extends VariableElement> params = method.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			if (i > 0)
+				signature.append(", ");
+			if (includeTypes)
+				signature.append(jniType(types.erasure(params.get(i).asType())) + " ");
+			signature.append(includeTypes ? params.get(i).getSimpleName().toString() : "arg" + i);
+		}
+		return signature.toString();
+	}
+
+	/*
+	 * The descriptor of the static native method of the trampoline: the
+	 * handle, then the parameters of the interface method.
+	 */
+	private String getTrampolineSignature(ExecutableElement method) throws Util.Exit {
+		try {
+			String descriptor = new TypeSignature(elems).getTypeSignature(signature(method), types.erasure(method.getReturnType()));
+			return "(J" + descriptor.substring(1);
+		} catch (TypeSignature.SignatureException e) {
+			util.error("jni.sigerror", e.getMessage());
+			return null; /* dead code */
+		}
+	}
+
+	private String getCallbackReturnType(ExecutableElement method) throws Util.Exit {
+		return isVoid(method) ? "void" : jniType(types.erasure(method.getReturnType()));
+	}
+
+	/*
+	 * The abstract class to derive from: a pure virtual function per method,
+	 * the conversions to the Java interface and, for a single method, the
+	 * conversion of a function object.
+	 */
+	private void writeCallbackDeclaration(OutputStream o, TypeElement clazz) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String cname = baseFileName(clazz);
+		String type = clazz.getQualifiedName().toString();
+		List<ExecutableElement> methods = getCallbackMethods(clazz);
+
+		String[] namespace = getNamespace(clazz);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		pw.println("class " + cname + " : public ::JNI::Callback");
+		pw.println("{");
+		pw.println("public:");
+		for (ExecutableElement method : methods)
+			pw.println("\t" + "virtual " + getCallbackReturnType(method) + " " + getMethodName(method) + "(" + getCallbackSignature(method, /*includeTypes:*/ true) + ") = 0;");
+		pw.println();
+
+		pw.println("\t" + "// A " + type + " calling this callback, which must outlive it");
+		pw.println("\t" + "::JNI::LocalRef<jobject> ToJava();");
+		pw.println();
+		pw.println("\t" + "// A " + type + " owning the callback, deleted once it is collected");
+		pw.println("\t" + "static ::JNI::LocalRef<jobject> ToJava(std::unique_ptr<" + cname + "> callback);");
+		pw.println();
+
+		if (methods.size() == 1) {
+			ExecutableElement method = methods.get(0);
+			String call = "m_Function(" + getCallbackSignature(method, /*includeTypes:*/ false) + ")";
+			pw.println("\t" + "// A " + type + " owning a copy of function, such as a lambda");
+			pw.println("\t" + "template <typename Function>");
+			pw.println("\t" + "static ::JNI::LocalRef<jobject> FromFunction(Function function)");
+			pw.println("\t" + "{");
+			pw.println("\t\t" + "class Impl : public " + cname);
+			pw.println("\t\t" + "{");
+			pw.println("\t\t" + "public:");
+			pw.println("\t\t\t" + "explicit Impl(Function&& function) : m_Function(std::move(function)) { }");
+			pw.println("\t\t\t" + getCallbackReturnType(method) + " " + getMethodName(method) + "(" + getCallbackTypes(method) + ") override { return " + call + "; }");
+			pw.println();
+			pw.println("\t\t" + "private:");
+			pw.println("\t\t\t" + "Function m_Function;");
+			pw.println("\t\t" + "};");
+			pw.println("\t\t" + "return ToJava(std::unique_ptr<" + cname + ">(new Impl(std::move(function))));");
+			pw.println("\t" + "}");
+			pw.println();
+		}
+
+		pw.println("\t" + "// The trampoline class, its natives registered");
+		pw.println("\t" + "static jclass GetClass();");
+		pw.println("};");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+	}
+
+	private String getCallbackTypes(ExecutableElement method) throws Util.Exit {
+		StringBuilder signature = new StringBuilder();
+		List<? extends VariableElement> params = method.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			if (i > 0)
+				signature.append(", ");
+			signature.append(jniType(types.erasure(params.get(i).asType())) + " arg" + i);
+		}
+		return signature.toString();
+	}
+
+	/*
+	 * The natives of the trampoline, which turn C++ exceptions into Java
+	 * ones, and the class registering them.
+	 */
+	private void writeCallbackDefinition(OutputStream o, TypeElement clazz) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		String cname = baseFileName(clazz);
+		List<ExecutableElement> methods = getCallbackMethods(clazz);
+
+		String[] namespace = getNamespace(clazz);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		/* Named after the class: the unity files put the callbacks of a namespace together */
+		pw.println("namespace {");
+		pw.println();
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			String returnType = getCallbackReturnType(method);
+			String parameters = getCallbackTypes(method);
+			String call = "static_cast<" + cname + "*>(::JNI::Callback::FromHandle(handle))->" + getMethodName(method) + "(" + getCallbackSignature(method, /*includeTypes:*/ false) + ")";
+			pw.println(returnType + " JNICALL " + cname + "_invoke" + i + "(JNIEnv* env, jclass, jlong handle" + (parameters.isEmpty() ? "" : ", " + parameters) + ")");
+			pw.println("{");
+			pw.println("\t" + "try");
+			pw.println("\t" + "{");
+			pw.println("\t\t" + (isVoid(method) ? "" : "return ") + call + ";");
+			pw.println("\t" + "}");
+			pw.println("\t" + "catch (...)");
+			pw.println("\t" + "{");
+			pw.println("\t\t" + "::JNI::Callback::ThrowJava(env);");
+			pw.println("\t" + "}");
+			if (!isVoid(method))
+				pw.println("\t" + "return " + returnType + "();");
+			pw.println("}");
+			pw.println();
+		}
+		pw.println("} // namespace");
+		pw.println();
+
+		pw.println("::JNI::LocalRef<jobject> " + cname + "::ToJava()");
+		pw.println("{");
+		pw.println("\t" + "return NewTrampoline(GetClass(), this, /*owned:*/ false);");
+		pw.println("}");
+		pw.println();
+
+		pw.println("::JNI::LocalRef<jobject> " + cname + "::ToJava(std::unique_ptr<" + cname + "> callback)");
+		pw.println("{");
+		pw.println("\t" + "return NewTrampoline(GetClass(), callback.release(), /*owned:*/ true);");
+		pw.println("}");
+		pw.println();
+
+		/* static GetClass method - registers the natives along with reading the class once */
+		pw.println("jclass " + cname + "::GetClass()");
+		pw.println("{");
+		pw.println("\t" + "static ::JNI::JClass clazz(\"" + getGeneratedName(clazz, "Trampoline").replace('.', '/') + "\");");
+		if (!methods.isEmpty()) {
+			pw.println("\t" + "static const JNINativeMethod methods[] =");
+			pw.println("\t" + "{");
+			for (int i = 0; i < methods.size(); i++)
+				pw.println("\t\t" + "{ const_cast<char*>(\"invoke" + i + "\"), const_cast<char*>(\"" + getTrampolineSignature(methods.get(i)) + "\"), reinterpret_cast<void*>(&" + cname + "_invoke" + i + ") },");
+			pw.println("\t" + "};");
+		}
+		pw.println("\t" + "static bool registered = RegisterTrampoline(clazz, " + (methods.isEmpty() ? "nullptr, 0" : "methods, " + methods.size()) + ");");
+		pw.println("\t" + "return (registered ? clazz.Class() : nullptr);");
+		pw.println("}");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+	}
+
+	/*
+	 * Implements the callback interface with static natives taking the
+	 * handle of the C++ callback.
+	 */
+	private void writeTrampoline(PrintWriter pw, TypeElement clazz, String simpleName) throws Util.Exit {
+		String type = clazz.getQualifiedName().toString();
+		List<ExecutableElement> methods = getCallbackMethods(clazz);
+
+		pw.println("/**");
+		pw.println(" * Implements " + type + " with the C++");
+		pw.println(" * " + getCppName(clazz, baseFileName(clazz)) + " at handle, which registers the natives.");
+		pw.println(" */");
+		pw.println("public final class " + simpleName + " implements " + type + " {");
+		pw.println("\t" + "private final long handle;");
+		pw.println();
+
+		pw.println("\t" + "private " + simpleName + "(long handle, boolean owned) {");
+		pw.println("\t\t" + "this.handle = handle;");
+		pw.println("\t\t" + "if (owned)");
+		pw.println("\t\t\t" + "Callbacks.release(this, new Release(handle));");
+		pw.println("\t" + "}");
+
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			TypeMirror returnType = types.erasure(method.getReturnType());
+			StringBuilder declaration = new StringBuilder();
+			StringBuilder arguments = new StringBuilder("this.handle");
+			for (VariableElement param : method.getParameters()) {
+				if (declaration.length() > 0)
+					declaration.append(", ");
+				declaration.append(types.erasure(param.asType()) + " " + param.getSimpleName());
+				arguments.append(", " + param.getSimpleName());
+			}
+
+			pw.println();
+			pw.println("\t" + "@Override");
+			pw.println("\t" + "public " + returnType + " " + method.getSimpleName() + "(" + declaration + ") {");
+			pw.println("\t\t" + (isVoid(method) ? "" : "return ") + "invoke" + i + "(" + arguments + ");");
+			pw.println("\t" + "}");
+		}
+		pw.println();
+
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			StringBuilder declaration = new StringBuilder("long handle");
+			List<? extends VariableElement> params = method.getParameters();
+			for (int j = 0; j < params.size(); j++)
+				declaration.append(", " + types.erasure(params.get(j).asType()) + " arg" + j);
+			pw.println("\t" + "private static native " + types.erasure(method.getReturnType()) + " invoke" + i + "(" + declaration + ");");
+		}
+		pw.println("\t" + "private static native void releaseCallback(long handle);");
+		pw.println();
+
+		pw.println("\t" + "private static final class Release implements Runnable {");
+		pw.println("\t\t" + "private final long handle;");
+		pw.println();
+		pw.println("\t\t" + "Release(long handle) {");
+		pw.println("\t\t\t" + "this.handle = handle;");
+		pw.println("\t\t" + "}");
+		pw.println();
+		pw.println("\t\t" + "public void run() {");
+		pw.println("\t\t\t" + "releaseCallback(handle);");
+		pw.println("\t\t" + "}");
+		pw.println("\t" + "}");
+		pw.println("}");
+	}
+
+	/*
+	 * The handle of the i-th native method, numbered when it is overloaded.
+	 */
+	private static String getHandleName(List<ExecutableElement> methods, int i) {
+		ExecutableElement method = methods.get(i);
+		int overload = 0;
+		int overloads = 0;
+		for (int j = 0; j < methods.size(); j++) {
+			if (methods.get(j).getSimpleName().equals(method.getSimpleName())) {
+				if (j < i)
+					overload++;
+				overloads++;
+			}
+		}
+		return method.getSimpleName() + "Handle" + (overloads > 1 ? "$" + overload : "");
+	}
+
+	/*
+	 * The fully qualified name of the C++ struct of a JNIStruct.
+	 */
+	protected final String getStructName(TypeElement struct) {
+		return getCppName(struct, mangler.mangle(struct.getSimpleName(), Mangle.Type.CLASS));
+	}
+
+	protected final boolean hasStructs(ExecutableElement method) {
+		if (getStructClass(types.erasure(method.getReturnType())) != null)
+			return true;
+		for (VariableElement param : method.getParameters()) {
+			if (getStructClass(types.erasure(param.asType())) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The methods of clazz taking or returning structs, which are called
+	 * through the bridge.
+	 */
+	protected final List<ExecutableElement> getStructMethods(TypeElement clazz) throws Util.Exit {
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		if (isStruct(clazz))
+			return methods;
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) == null || !hasStructs(method))
+				continue;
+			/* the bridge is Java code, bound by the language rules */
+			if (method.getModifiers().contains(Modifier.PRIVATE))
+				util.error("jni.struct.private.method", clazz.getQualifiedName(), method.getSimpleName());
+			if (isAsync(method))
+				util.error("jni.struct.async", clazz.getQualifiedName(), method.getSimpleName());
+			methods.add(method);
+		}
+		return methods;
+	}
+
+	/*
+	 * The structs taken or returned by the methods of clazz.
+	 */
+	protected final Set<TypeElement> getStructs(TypeElement clazz) {
+		Set<TypeElement> structs = new LinkedHashSet<TypeElement>();
+		if (isStruct(clazz))
+			return structs;
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) == null)
+				continue;
+			for (VariableElement param : method.getParameters()) {
+				TypeElement struct = getStructClass(types.erasure(param.asType()));
+				if (struct != null)
+					structs.add(struct);
+			}
+			TypeElement struct = getStructClass(types.erasure(method.getReturnType()));
+			if (struct != null)
+				structs.add(struct);
+		}
+		return structs;
+	}
+
+	/*
+	 * The JNI type of the elements of a primitive array type, or null.
+	 */
+	protected final String getArrayElementType(TypeMirror type) {
+		type = types.erasure(type);
+		if (type.getKind() != TypeKind.ARRAY)
+			return null;
+		TypeMirror component = ((ArrayType) type).getComponentType();
+		return (component.getKind().isPrimitive() ? jniType(component) : null);
+	}
+
+	/*
+	 * A method taking or returning primitive arrays gets an overload taking
+	 * ArrayRefs instead, see writeOverloads.
+	 */
+	protected final boolean hasArrayRefs(ExecutableElement method) {
+		if (getArrayElementType(method.getReturnType()) != null)
+			return true;
+		for (VariableElement param : method.getParameters()) {
+			if (getArrayElementType(param.asType()) != null)
+				return true;
+		}
+		return false;
+	}
+
+	private static String getArrayRefResultName(ExecutableElement method) {
+		String name = "result";
+		for (VariableElement param : method.getParameters()) {
+			if (param.getSimpleName().contentEquals(name))
+				name += "_";
+		}
+		return name;
+	}
+
+	/*
+	 * The types read in chunks by JNI::ChunkReader (see com.jni.runtime.Chunks),
+	 * by name, as the class files of the JDK are not always at hand.
+	 */
+	private static final Set<String> RANGE_TYPES = new LinkedHashSet<String>(Arrays.asList(
+			"java.lang.Iterable", "java.util.Iterator", "java.util.Collection", "java.util.List", "java.util.Set",
+			"java.util.SortedSet", "java.util.NavigableSet", "java.util.Queue", "java.util.Deque", "java.util.ArrayList",
+			"java.util.LinkedList", "java.util.HashSet", "java.util.LinkedHashSet", "java.util.TreeSet", "java.util.ArrayDeque",
+			"java.util.stream.Stream", "java.util.stream.IntStream", "java.util.stream.LongStream", "java.util.stream.DoubleStream"));
+
+	protected final boolean isRange(TypeMirror type) {
+		type = types.erasure(type);
+		if (type.getKind() == TypeKind.ARRAY)
+			return !((ArrayType) type).getComponentType().getKind().isPrimitive();
+		return type.getKind() == TypeKind.DECLARED && RANGE_TYPES.contains(type.toString());
+	}
+
+	/*
+	 * The Range overload of a method returning a collection, stream or
+	 * object array iterates over its elements a chunk at a time.
+	 */
+	private void writeRangeOverload(PrintWriter pw, String cname, ExecutableElement method) {
+		if (!isRange(method.getReturnType()))
+			return;
+
+		String call = getMethodName(method) + "(" + getArgumentsSignature(method, /*includeTypes:*/ false) + ")";
+		pw.println("::JNI::JavaRange<> " + cname + "::" + getMethodName(method) + "Range(" + getArgumentsSignature(method, /*includeTypes:*/ true) + ")" + (isStatic(method) ? "" : " const"));
+		pw.println("{");
+		pw.println("\t" + "return ::JNI::JavaRange<>(" + call + ".Get());");
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * The JNI type of the primitive a java.lang wrapper boxes, or null.
+	 */
+	private String getBoxedType(TypeMirror type) {
+		type = types.erasure(type);
+		if (type.getKind() != TypeKind.DECLARED)
+			return null;
+		String name = type.toString();
+		if (name.equals("java.lang.Boolean"))
+			return "jboolean";
+		if (name.equals("java.lang.Byte"))
+			return "jbyte";
+		if (name.equals("java.lang.Character"))
+			return "jchar";
+		if (name.equals("java.lang.Short"))
+			return "jshort";
+		if (name.equals("java.lang.Integer"))
+			return "jint";
+		if (name.equals("java.lang.Long"))
+			return "jlong";
+		if (name.equals("java.lang.Float"))
+			return "jfloat";
+		if (name.equals("java.lang.Double"))
+			return "jdouble";
+		return null;
+	}
+
+	protected final boolean hasBoxes(ExecutableElement method) {
+		if (getBoxedType(method.getReturnType()) != null)
+			return true;
+		for (VariableElement param : method.getParameters()) {
+			if (getBoxedType(param.asType()) != null)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The unboxing overloads are nameValue: C++ does not overload on the
+	 * return type, and would find f(jlong) and f(jobject) ambiguous for f(0).
+	 */
+	private String getBoxingOverloadName(ExecutableElement method) {
+		return getMethodName(method) + "Value";
+	}
+
+	private List<String> getParameterTypes(ExecutableElement method, boolean unboxed) {
+		List<String> parameterTypes = new ArrayList<String>();
+		for (VariableElement param : method.getParameters()) {
+			String boxed = (unboxed ? getBoxedType(param.asType()) : null);
+			parameterTypes.add(boxed != null ? boxed : getParameterType(param.asType()));
+		}
+		return parameterTypes;
+	}
+
+	/*
+	 * Whether method has boxes, and its unboxing overloads would not clash
+	 * with another method of the peer: one named like them, or the unboxing
+	 * overload of a Java overload boxing alike.
+	 */
+	protected final boolean hasBoxingOverload(TypeElement clazz, ExecutableElement method) {
+		if (!hasBoxes(method))
+			return false;
+		String name = getBoxingOverloadName(method);
+		List<String> parameterTypes = getParameterTypes(method, /*unboxed:*/ true);
+		boolean earlier = true;
+		for (ExecutableElement other : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (other.equals(method)) {
+				earlier = false;
+				continue;
+			}
+			if (other.getAnnotation(JNIMethod.class) == null)
+				continue;
+			if (getMethodName(other).equals(name))
+				return false;
+			/* of two Java overloads boxing alike, the first one has the C++ overload */
+			if (earlier && hasBoxes(other) && getBoxingOverloadName(other).equals(name) && getParameterTypes(other, /*unboxed:*/ true).equals(parameterTypes))
+				return false;
+		}
+		return true;
+	}
+
+	protected final boolean hasStrings(ExecutableElement method) {
+		for (VariableElement param : method.getParameters()) {
+			if (isString(param.asType()))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isString(TypeMirror type) {
+		return jniType(types.erasure(type)).equals("jstring");
+	}
+
+	/*
+	 * The overloads of a method taking, in place of its parameters,
+	 * primitives for their boxes (see hasBoxingOverload), ArrayRefs for
+	 * primitive arrays and string views for Strings, in every combination
+	 * the method allows: count(Integer, String) has countValue(jint, jstring),
+	 * count(jobject, std::string_view) and countValue(jint, std::string_view).
+	 * They are declared, or defined in cname when it is not null.
+	 *
+	 * The boxes are passed as ::JNI::BoxArg, from the runtime cache for small
+	 * values, and a boxed result unboxed, 0 for null.  The arrays are copied
+	 * into Java arrays the thread keeps between calls (::JNI::CopyToThreadArray),
+	 * so a call allocates nothing once warm, and a returned array is copied
+	 * into a last ArrayRef, its length returned.  The Strings are passed as
+	 * ::JNI::StringArg, a local jstring deleted after the call (or one of the
+	 * string cache), where a JString would make a global reference; the
+	 * string view overloads need C++17.
+	 */
+	private void writeOverloads(PrintWriter pw, TypeElement clazz, String cname, ExecutableElement method) {
+		boolean boxes = hasBoxingOverload(clazz, method);
+		boolean arrays = hasArrayRefs(method);
+		int views = (hasStrings(method) ? STRING_VIEWS.length : 0);
+		for (int v = -1; v < views; v++) {
+			String view = (v < 0 ? null : STRING_VIEWS[v]);
+			if (v == 0)
+				pw.println("#ifdef JNI_HAS_STRING_VIEW");
+			for (boolean unboxed : new boolean[] { false, true }) {
+				for (boolean arrayRefs : new boolean[] { false, true }) {
+					if ((unboxed && !boxes) || (arrayRefs && !arrays) || (!unboxed && !arrayRefs && view == null))
+						continue;
+					String name = (unboxed ? getBoxingOverloadName(method) : getMethodName(method));
+					String signature = getOverloadSignature(method, unboxed, arrayRefs, view);
+					if (cname == null) {
+						pw.println("\t" + (isStatic(method) ? "static " : "") + getOverloadReturnType(method, unboxed, arrayRefs) + " " + name + "(" + signature + ")" + (isStatic(method) ? "" : " const") + ";");
+						continue;
+					}
+					pw.println(getOverloadReturnType(method, unboxed, arrayRefs) + " " + cname + "::" + name + "(" + signature + ")" + (isStatic(method) ? "" : " const"));
+					pw.println("{");
+					pw.println("\t" + getOverloadReturnStatement(method, unboxed, arrayRefs, view) + ";");
+					pw.println("}");
+					pw.println();
+				}
+			}
+		}
+		if (views > 0)
+			pw.println("#endif");
+		if (views > 0 && cname != null)
+			pw.println();
+	}
+
+	private String getOverloadReturnType(ExecutableElement method, boolean unboxed, boolean arrayRefs) {
+		if (arrayRefs && getArrayElementType(method.getReturnType()) != null)
+			return "jsize";
+		String boxed = (unboxed ? getBoxedType(method.getReturnType()) : null);
+		return (boxed != null ? boxed : getReturnType(method));
+	}
+
+	private String getOverloadSignature(ExecutableElement method, boolean unboxed, boolean arrayRefs, String view) {
+		StringBuilder signature = new StringBuilder();
+		for (VariableElement param : method.getParameters()) {
+			if (signature.length() > 0)
+				signature.append(", ");
+			TypeMirror type = param.asType();
+			String boxed = (unboxed ? getBoxedType(type) : null);
+			String element = (arrayRefs ? getArrayElementType(type) : null);
+			if (boxed != null)
+				signature.append(boxed + " ");
+			else if (element != null)
+				signature.append("::JNI::ArrayRef<const " + element + "> ");
+			else if (view != null && isString(type))
+				signature.append(view + " ");
+			else
+				signature.append(getParameterType(type) + " ");
+			signature.append(param.getSimpleName());
+		}
+		String result = (arrayRefs ? getArrayElementType(method.getReturnType()) : null);
+		if (result != null)
+			signature.append((signature.length() > 0 ? ", " : "") + "::JNI::ArrayRef<" + result + "> " + getArrayRefResultName(method));
+		return signature.toString();
+	}
+
+	/*
+	 * The overloads call the method itself, converting what they take.
+	 */
+	private String getOverloadReturnStatement(ExecutableElement method, boolean unboxed, boolean arrayRefs, String view) {
+		StringBuilder call = new StringBuilder(getMethodName(method) + "(");
+		List<? extends VariableElement> params = method.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			VariableElement param = params.get(i);
+			TypeMirror type = param.asType();
+			if (i > 0)
+				call.append(", ");
+			if (unboxed && getBoxedType(type) != null)
+				call.append("::JNI::BoxArg(" + param.getSimpleName() + ").Get()");
+			else if (arrayRefs && getArrayElementType(type) != null)
+				call.append("::JNI::CopyToThreadArray<" + i + ">(" + param.getSimpleName() + ")");
+			else if (view != null && isString(type))
+				call.append("::JNI::StringArg(" + param.getSimpleName() + ").Get()");
+			else
+				call.append(param.getSimpleName());
+		}
+		call.append(")");
+
+		String boxed = (unboxed ? getBoxedType(method.getReturnType()) : null);
+		if (arrayRefs && getArrayElementType(method.getReturnType()) != null)
+			return "return ::JNI::CopyFromArray(" + call + ", " + getArrayRefResultName(method) + ")";
+		if (boxed != null)
+			return "return ::JNI::Unbox<" + boxed + ">(" + call + ".Get())";
+		return (isVoid(method) ? "" : "return ") + call;
+	}
+
+	/*
+	 * With the ffm backend, the methods called through upcall stubs: the
+	 * static ones taking and returning only primitives, which the upcalls
+	 * class can call.  The others are called through JNI.
+	 */
+	protected final List<ExecutableElement> getUpcallMethods(TypeElement clazz) {
+		List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+		if (!backend.equals(BACKEND_FFM) || isStruct(clazz) || isChannel(clazz) || isNative(clazz))
+			return methods;
+		for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+			if (method.getAnnotation(JNIMethod.class) == null || !isStatic(method) || method.getModifiers().contains(Modifier.PRIVATE))
+				continue;
+			boolean primitive = (isVoid(method) || method.getReturnType().getKind().isPrimitive());
+			for (VariableElement param : method.getParameters())
+				primitive &= param.asType().getKind().isPrimitive();
+			if (primitive)
+				methods.add(method);
+		}
+		return methods;
+	}
+
+	/*
+	 * Calls the upcall stub of method, when there is one.  It takes the flag
+	 * set when the Java method threw, before the arguments.
+	 */
+	private void writeUpcall(PrintWriter pw, ExecutableElement method, int index) throws Util.Exit {
+		String returnType = getReturnType(method);
+		StringBuilder parameters = new StringBuilder("jboolean*");
+		for (VariableElement param : method.getParameters())
+			parameters.append(", " + jniType(types.erasure(param.asType())));
+		String arguments = getArgumentsSignature(method, /*includeTypes:*/ false);
+		String call = "upcall(&failed" + (arguments.isEmpty() ? "" : ", " + arguments) + ")";
+
+		pw.println("\t" + "typedef " + returnType + " (*Upcall)(" + parameters + ");");
+		pw.println("\t" + "static Upcall upcall(reinterpret_cast<Upcall>(GetUpcall(" + index + ")));");
+		pw.println("\t" + "if (upcall != nullptr)");
+		pw.println("\t" + "{");
+		pw.println("\t\t" + "jboolean failed = JNI_FALSE;");
+		pw.println("\t\t" + (isVoid(method) ? "" : returnType + " result = ") + call + ";");
+		pw.println("\t\t" + "if (failed)");
+		pw.println("\t\t\t" + "::JNI::ThrowUpcallException();");
+		pw.println("\t\t" + "return" + (isVoid(method) ? "" : " result") + ";");
+		pw.println("\t" + "}");
+		pw.println();
+	}
+
+	/*
+	 * The generated Java classes go into the package of the class.
+	 */
+	private String getGeneratedName(TypeElement clazz, String suffix) {
+		PackageElement pkg = elems.getPackageOf(clazz);
+		String name = mangler.mangle(clazz.getSimpleName(), Mangle.Type.CLASS) + suffix;
+		return (pkg.isUnnamed() ? name : pkg.getQualifiedName() + "." + name);
+	}
+
+	protected final String getCodecName(TypeElement struct) {
+		return getGeneratedName(struct, "Codec");
+	}
+
+	protected final String getBridgeName(TypeElement clazz) {
+		return getGeneratedName(clazz, "Bridge");
+	}
+
+	protected final String getUpcallsName(TypeElement clazz) {
+		return getGeneratedName(clazz, "Upcalls");
+	}
+
+	/*
+	 * Overloads taking structs may erase to the same bridge method, so they
+	 * are numbered.
+	 */
+	protected final String getBridgeMethodName(TypeElement clazz, ExecutableElement method) throws Util.Exit {
+		List<ExecutableElement> overloads = new ArrayList<ExecutableElement>();
+		for (ExecutableElement other : getStructMethods(clazz)) {
+			if (other.getSimpleName().equals(method.getSimpleName()))
+				overloads.add(other);
+		}
+		String name = method.getSimpleName().toString();
+		return (overloads.size() > 1 ? name + "$" + overloads.indexOf(method) : name);
+	}
+
+	/*
+	 * The bridge method takes the instance first and each struct as a
+	 * ByteBuffer, plus one for a returned struct.
+	 */
+	private List<String> getBridgeParameterTypes(TypeElement clazz, ExecutableElement method) {
+		List<String> params = new ArrayList<String>();
+		if (!isStatic(method))
+			params.add(types.erasure(clazz.asType()).toString());
+		for (VariableElement param : method.getParameters()) {
+			TypeMirror type = types.erasure(param.asType());
+			params.add(getStructClass(type) != null ? "java.nio.ByteBuffer" : type.toString());
+		}
+		if (getStructClass(types.erasure(method.getReturnType())) != null)
+			params.add("java.nio.ByteBuffer");
+		return params;
+	}
+
+	private String getBridgeSignature(TypeElement clazz, ExecutableElement method, TypeSignature typeSignature) throws TypeSignature.SignatureException {
+		StringBuilder signature = new StringBuilder("(");
+		for (String param : getBridgeParameterTypes(clazz, method)) {
+			if (signature.length() > 1)
+				signature.append(",");
+			signature.append(param);
+		}
+		signature.append(")");
+		TypeMirror returnType = types.erasure(method.getReturnType());
+		if (getStructClass(returnType) != null)
+			returnType = types.getNoType(TypeKind.VOID);
+		return typeSignature.getTypeSignature(signature.toString(), returnType);
+	}
+
+	/*
+	 * The structs are copied into the buffers of the thread, and the bridge
+	 * decodes them, calls the method and encodes the returned struct, all in
+	 * a single JNI call.
+	 */
+	private void writeStructCall(PrintWriter pw, TypeElement clazz, ExecutableElement method, TypeSignature typeSignature) throws TypeSignature.SignatureException, Util.Exit {
+		pw.println("\t" + "static jmethodID methodID(Env().GetStaticMethodID(GetBridgeClass(), \"" + getBridgeMethodName(clazz, method) + "\", \"" + getBridgeSignature(clazz, method, typeSignature) + "\"));");
+
+		StringBuilder call = new StringBuilder("GetBridgeClass(), methodID");
+		if (!isStatic(method))
+			call.append(", Object()");
+
+		List<? extends VariableElement> params = method.getParameters();
+		for (int i = 0; i < params.size(); i++) {
+			VariableElement param = params.get(i);
+			TypeElement struct = getStructClass(types.erasure(param.asType()));
+			if (struct == null) {
+				call.append(", " + getCallArgument(param));
+				continue;
+			}
+			String buffer = param.getSimpleName() + "Struct";
+			pw.println("\t" + "::JNI::StructBuffer<" + getStructName(struct) + ", " + i + "> " + buffer + "(" + param.getSimpleName() + ");");
+			call.append(", " + buffer + ".Buffer()");
+		}
+
+		TypeMirror returnType = types.erasure(method.getReturnType());
+		TypeElement result = getStructClass(returnType);
+		if (result == null) {
+			pw.println("\t" + getReturnStatement(method, getCallSignature(true, returnType) + "(" + call + ")") + ";");
+			return;
+		}
+		pw.println("\t" + "::JNI::StructBuffer<" + getStructName(result) + ", " + params.size() + "> resultStruct;");
+		pw.println("\t" + getCallSignature(true, types.getNoType(TypeKind.VOID)) + "(" + call + ", resultStruct.Buffer());");
+		pw.println("\t" + "return resultStruct.Get();");
+	}
+
+	/*
+	 * The C++ struct, with the layout of StructLayout checked at compile time.
+	 */
+	private void writeStructDeclaration(OutputStream o, TypeElement struct) throws Util.Exit {
+		PrintWriter pw = wrapWriter(o);
+		StructLayout layout = new StructLayout(struct, util);
+		String name = mangler.mangle(struct.getSimpleName(), Mangle.Type.CLASS);
+
+		pw.println("#include <cstddef>");
+		pw.println();
+
+		String[] namespace = getNamespace(struct);
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+
+		pw.println("struct " + name);
+		pw.println("{");
+		for (StructLayout.Field field : layout.fields) {
+			int size = StructLayout.sizeOf(field.kind);
+			pw.println("\t" + "alignas(" + size + ") " + jniType(field.element.asType()) + " " + getFieldName(field) + ";");
+		}
+		pw.println("};");
+		pw.println();
+
+		String what = "\"layout of " + struct.getQualifiedName() + "\"";
+		pw.println("static_assert(sizeof(" + name + ") == " + layout.size + ", " + what + ");");
+		for (StructLayout.Field field : layout.fields)
+			pw.println("static_assert(offsetof(" + name + ", " + getFieldName(field) + ") == " + field.offset + ", " + what + ");");
+		pw.println();
+
+		pw.println(cppNamespaceEnd(namespace));
+	}
+
+	private String getFieldName(StructLayout.Field field) {
+		return mangler.mangle(field.getName(), Mangle.Type.FIELDSTUB);
+	}
+
+	@Override
+	protected void writeSource(OutputStream o, TypeElement clazz, String className) throws Util.Exit {
+		PrintWriter pw = wrapSourceWriter(o);
+		PackageElement pkg = elems.getPackageOf(clazz);
+		if (!pkg.isUnnamed()) {
+			pw.println("package " + pkg.getQualifiedName() + ";");
+			pw.println();
+		}
+		if (isStruct(clazz)) {
+			pw.println("import java.nio.ByteBuffer;");
+			pw.println("import java.nio.ByteOrder;");
+			pw.println();
+		} else if (isChannel(clazz)) {
+			pw.println("import java.nio.ByteBuffer;");
+			pw.println();
+			pw.println("import com.jni.runtime.Ring;");
+			pw.println("import com.jni.runtime.WaitStrategy;");
+			pw.println();
+		} else if (isNative(clazz)) {
+			pw.println("import java.lang.foreign.SymbolLookup;");
+			pw.println("import java.lang.invoke.MethodHandle;");
+			pw.println("import java.lang.invoke.MethodType;");
+			pw.println();
+			pw.println("import com.jni.runtime.Downcalls;");
+			pw.println();
+		} else if (isCallback(clazz)) {
+			pw.println("import com.jni.runtime.Callbacks;");
+			pw.println();
+		} else if (className.equals(getUpcallsName(clazz))) {
+			pw.println("import java.lang.foreign.MemorySegment;");
+			pw.println("import java.lang.invoke.MethodHandles;");
+			pw.println("import java.lang.invoke.MethodType;");
+			pw.println();
+			pw.println("import com.jni.runtime.Upcalls;");
+			pw.println();
+		}
+
+		String simpleName = className.substring(className.lastIndexOf('.') + 1);
+		if (isStruct(clazz))
+			writeCodec(pw, clazz, simpleName);
+		else if (isChannel(clazz))
+			writeConsumer(pw, clazz, simpleName);
+		else if (isNative(clazz))
+			writeDowncalls(pw, clazz, simpleName);
+		else if (isCallback(clazz))
+			writeTrampoline(pw, clazz, simpleName);
+		else if (className.equals(getUpcallsName(clazz)))
+			writeUpcalls(pw, clazz, simpleName);
+		else
+			writeBridge(pw, clazz, simpleName);
+	}
+
+	/*
+	 * Reads and writes a struct at fixed offsets, in native byte order, from
+	 * the direct buffer of the C++ StructBuffer.
+	 */
+	private void writeCodec(PrintWriter pw, TypeElement struct, String simpleName) throws Util.Exit {
+		StructLayout layout = new StructLayout(struct, util);
+		String type = struct.getQualifiedName().toString();
+
+		pw.println("/**");
+		pw.println(" * Reads and writes " + type + " in the layout of the C++ struct " + getStructName(struct) + ".");
+		pw.println(" */");
+		pw.println("public final class " + simpleName + " {");
+		pw.println("\t" + "public static final int SIZE = " + layout.size + ";");
+		pw.println();
+		pw.println("\t" + "private " + simpleName + "() {");
+		pw.println("\t" + "}");
+		pw.println();
+
+		pw.println("\t" + "public static " + type + " decode(ByteBuffer buffer) {");
+		pw.println("\t\t" + "buffer.order(ByteOrder.nativeOrder());");
+		if (layout.fieldConstructor) {
+			StringBuilder args = new StringBuilder();
+			for (StructLayout.Field field : layout.fields) {
+				if (args.length() > 0)
+					args.append(", ");
+				args.append(getBufferRead(field, null));
+			}
+			pw.println("\t\t" + "return new " + type + "(" + args + ");");
+		} else {
+			pw.println("\t\t" + type + " value = new " + type + "();");
+			for (StructLayout.Field field : layout.fields)
+				pw.println("\t\t" + "value." + field.getName() + " = " + getBufferRead(field, null) + ";");
+			pw.println("\t\t" + "return value;");
+		}
+		pw.println("\t" + "}");
+		pw.println();
+
+		pw.println("\t" + "public static void encode(" + type + " value, ByteBuffer buffer) {");
+		pw.println("\t\t" + "buffer.order(ByteOrder.nativeOrder());");
+		for (StructLayout.Field field : layout.fields) {
+			String value = "value." + field.getName() + (layout.record ? "()" : "");
+			pw.println("\t\t" + getBufferWrite(field, value) + ";");
+		}
+		pw.println("\t" + "}");
+		pw.println("}");
+	}
+
+	/*
+	 * Reads the field at its offset from base (an expression), or from 0.
+	 */
+	private static String getBufferRead(StructLayout.Field field, String base) {
+		String index = String.valueOf(field.offset);
+		if (base != null)
+			index = (field.offset == 0 ? base : base + " + " + field.offset);
+		switch (field.kind) {
+		case BOOLEAN:
+			return "buffer.get(" + index + ") != 0";
+		case BYTE:
+			return "buffer.get(" + index + ")";
+		default:
+			return "buffer.get" + getBufferAccessor(field) + "(" + index + ")";
+		}
+	}
+
+	private static String getBufferWrite(StructLayout.Field field, String value) {
+		switch (field.kind) {
+		case BOOLEAN:
+			return "buffer.put(" + field.offset + ", (byte) (" + value + " ? 1 : 0))";
+		case BYTE:
+			return "buffer.put(" + field.offset + ", " + value + ")";
+		default:
+			return "buffer.put" + getBufferAccessor(field) + "(" + field.offset + ", " + value + ")";
+		}
+	}
+
+	private static String getBufferAccessor(StructLayout.Field field) {
+		String kind = field.kind.name().toLowerCase();
+		return Character.toUpperCase(kind.charAt(0)) + kind.substring(1);
+	}
+
+	/*
+	 * One static method per method taking or returning structs, called by the
+	 * peer with the structs in direct buffers.
+	 */
+	private void writeBridge(PrintWriter pw, TypeElement clazz, String simpleName) throws Util.Exit {
+		String type = types.erasure(clazz.asType()).toString();
+
+		pw.println("/**");
+		pw.println(" * Called by the C++ peer " + getPeerName(clazz) + " for the methods");
+		pw.println(" * taking or returning JNIStructs.");
+		pw.println(" */");
+		pw.println("final class " + simpleName + " {");
+		pw.println("\t" + "private " + simpleName + "() {");
+		pw.println("\t" + "}");
+
+		for (ExecutableElement method : getStructMethods(clazz)) {
+			List<String> paramTypes = getBridgeParameterTypes(clazz, method);
+			List<? extends VariableElement> params = method.getParameters();
+			TypeMirror returnType = types.erasure(method.getReturnType());
+			TypeElement result = getStructClass(returnType);
+
+			/* The bridge parameters, named after the method's */
+			List<String> names = new ArrayList<String>();
+			if (!isStatic(method))
+				names.add("$self");
+			for (VariableElement param : params)
+				names.add(param.getSimpleName().toString());
+			if (result != null)
+				names.add("$result");
+
+			StringBuilder declaration = new StringBuilder();
+			for (int i = 0; i < names.size(); i++) {
+				if (i > 0)
+					declaration.append(", ");
+				declaration.append(paramTypes.get(i) + " " + names.get(i));
+			}
+
+			StringBuilder args = new StringBuilder();
+			for (VariableElement param : params) {
+				if (args.length() > 0)
+					args.append(", ");
+				TypeElement struct = getStructClass(types.erasure(param.asType()));
+				if (struct != null)
+					args.append(getCodecName(struct) + ".decode(" + param.getSimpleName() + ")");
+				else
+					args.append(param.getSimpleName());
+			}
+			String call = (isStatic(method) ? type : "$self") + "." + method.getSimpleName() + "(" + args + ")";
+
+			String bridgeReturnType = (result != null || returnType.getKind() == TypeKind.VOID ? "void" : returnType.toString());
+			pw.println();
+			/* checked or not makes no difference to the native caller */
+			pw.println("\t" + "static " + bridgeReturnType + " " + getBridgeMethodName(clazz, method) + "(" + declaration + ") throws Throwable {");
+			if (result != null)
+				pw.println("\t\t" + getCodecName(result) + ".encode(" + call + ", $result);");
+			else if (returnType.getKind() == TypeKind.VOID)
+				pw.println("\t\t" + call + ";");
+			else
+				pw.println("\t\t" + "return " + call + ";");
+			pw.println("\t" + "}");
+		}
+		pw.println("}");
+	}
+
+	/*
+	 * One static method per upcall, in the order of the table, catching what
+	 * the method throws: an exception must not leave an upcall stub.
+	 */
+	private void writeUpcalls(PrintWriter pw, TypeElement clazz, String simpleName) throws Util.Exit {
+		String type = types.erasure(clazz.asType()).toString();
+		List<ExecutableElement> methods = getUpcallMethods(clazz);
+
+		pw.println("/**");
+		pw.println(" * Called by the C++ peer " + getPeerName(clazz) + " through FFM upcall");
+		pw.println(" * stubs, for its static methods taking and returning primitives.");
+		pw.println(" */");
+		pw.println("final class " + simpleName + " {");
+		pw.println("\t" + "private " + simpleName + "() {");
+		pw.println("\t" + "}");
+		pw.println();
+
+		pw.println("\t" + "/*");
+		pw.println("\t" + " * Called once by the peer, through JNI.");
+		pw.println("\t" + " */");
+		pw.println("\t" + "static long table() throws ReflectiveOperationException {");
+		pw.println("\t\t" + "MethodHandles.Lookup lookup = MethodHandles.lookup();");
+		pw.println("\t\t" + "return Upcalls.table(");
+		for (int i = 0; i < methods.size(); i++) {
+			ExecutableElement method = methods.get(i);
+			StringBuilder methodType = new StringBuilder(types.erasure(method.getReturnType()) + ".class, MemorySegment.class");
+			for (VariableElement param : method.getParameters())
+				methodType.append(", " + types.erasure(param.asType()) + ".class");
+			pw.println("\t\t\t\t" + "lookup.findStatic(" + simpleName + ".class, \"" + method.getSimpleName() + "\", MethodType.methodType(" + methodType + "))"
+					+ (i + 1 < methods.size() ? "," : ");"));
+		}
+		pw.println("\t" + "}");
+
+		for (ExecutableElement method : methods) {
+			TypeMirror returnType = types.erasure(method.getReturnType());
+			StringBuilder declaration = new StringBuilder("MemorySegment $failed");
+			for (VariableElement param : method.getParameters())
+				declaration.append(", " + types.erasure(param.asType()) + " " + param.getSimpleName());
+			String call = type + "." + method.getSimpleName() + "(" + getArgumentsSignature(method, /*includeTypes:*/ false) + ")";
+
+			pw.println();
+			pw.println("\t" + "private static " + returnType + " " + method.getSimpleName() + "(" + declaration + ") {");
+			pw.println("\t\t" + "try {");
+			pw.println("\t\t\t" + (isVoid(method) ? "" : "return ") + call + ";");
+			pw.println("\t\t" + "} catch (Throwable $e) {");
+			pw.println("\t\t\t" + "Upcalls.fail($failed, $e);");
+			if (!isVoid(method))
+				pw.println("\t\t\t" + "return " + getDefaultValue(returnType) + ";");
+			pw.println("\t\t" + "}");
+			pw.println("\t" + "}");
+		}
+		pw.println("}");
+	}
+
+	private static String getDefaultValue(TypeMirror type) {
+		switch (type.getKind()) {
+		case BOOLEAN:
+			return "false";
+		case CHAR:
+			return "'\\0'";
+		case LONG:
+			return "0L";
+		case FLOAT:
+			return "0f";
+		case DOUBLE:
+			return "0d";
+		default:
+			return "0";
+		}
+	}
+
+	protected final String getMethodName(ExecutableElement method) {
+		return mangler.mangle(method.getSimpleName(), Mangle.Type.FIELDSTUB);
+	}
+	
+	protected final String getArgumentsSignature(ExecutableElement method, boolean includeTypes) {
+		StringBuffer signature = new StringBuffer();
+
+		/* Write out the method parameters */
+		List<? extends VariableElement> paramArgs = method.getParameters();
+		for (int i = 0; i < paramArgs.size(); i++) {
+			VariableElement param = paramArgs.get(i);
+			if (includeTypes)
+				signature.append(getParameterType(param.asType()) + " ");
+			signature.append(param.getSimpleName());
+			if (i+1 < paramArgs.size())
+				signature.append(", ");
+		}
+
+		return signature.toString();
+	}
+	
+	/*
+	 * The final fields of clazz with a compile-time constant value, as javac
+	 * inlines them.  A constant named like a member of the peer (its
+	 * methods and their Async, Range and Value overloads, the inherited ones,
+	 * GetClass and the like) would not compile, so it is an error.
+	 */
+	protected final List<VariableElement> getConstants(TypeElement clazz) throws Util.Exit {
+		Set<String> members = getDeclaredMethodNames(clazz);
+		members.addAll(getInheritedMethodNames(clazz));
+		members.addAll(PEER_MEMBERS);
+		members.add(baseFileName(clazz));
+
+		List<VariableElement> constants = new ArrayList<VariableElement>();
+		Set<String> names = new HashSet<String>();
+		for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+			if (!field.getModifiers().contains(Modifier.FINAL) || field.getConstantValue() == null)
+				continue;
+			if (members.contains(getConstantName(field)))
+				util.error("jni.constant.clash", clazz.getQualifiedName(), field.getSimpleName(), getConstantName(field));
+			if (!names.add(getConstantName(field)))
+				util.error("jni.constant.renamed.clash", clazz.getQualifiedName(), field.getSimpleName(), getConstantName(field));
+			constants.add(field);
+		}
+		return constants;
+	}
+
+	protected final String getConstantName(VariableElement field) {
+		return getCppConstantName(field.getSimpleName());
+	}
+
+	/*
+	 * The C++ name of a constant or enum constant: mangled, and with a
+	 * trailing underscore when it is the name of a well known macro or a C++
+	 * keyword, so that NAN is NAN_ and delete is delete_.
+	 */
+	protected final String getCppConstantName(CharSequence name) {
+		String mangled = mangler.mangle(name, Mangle.Type.FIELDSTUB);
+		return (MACROS.contains(mangled) || CPP_KEYWORDS.contains(mangled) ? mangled + "_" : mangled);
+	}
+
+	/*
+	 * The C++ literal of a constant: the values javac computed, not the
+	 * expressions, so the most negative int and long, the infinities and NaN
+	 * are spelled out, and strings are in UTF-8 with everything but
+	 * printable ASCII escaped.
+	 */
+	protected final String getConstantLiteral(VariableElement field) {
+		Object value = field.getConstantValue();
+		if (value instanceof String) {
+			StringBuilder literal = new StringBuilder("\"");
+			for (byte b : ((String) value).getBytes(StandardCharsets.UTF_8)) {
+				int c = b & 0xff;
+				if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\' && c != '?')
+					literal.append((char) c);
+				else
+					literal.append(String.format("\\%03o", c));
+			}
+			return literal.append('"').toString();
+		} else if (value instanceof Boolean) {
+			return ((Boolean) value) ? "JNI_TRUE" : "JNI_FALSE";
+		} else if (value instanceof Character) {
+			return String.valueOf(((Character) value).charValue() & 0xffff);
+		} else if (value instanceof Long) {
+			long v = (Long) value;
+			return (v == Long.MIN_VALUE) ? "(-9223372036854775807LL - 1)" : v + "LL";
+		} else if (value instanceof Integer) {
+			int v = (Integer) value;
+			return (v == Integer.MIN_VALUE) ? "(-2147483647 - 1)" : String.valueOf(v);
+		} else if (value instanceof Float) {
+			float v = (Float) value;
+			if (Float.isNaN(v))
+				return "std::numeric_limits<jfloat>::quiet_NaN()";
+			if (Float.isInfinite(v))
+				return (v < 0 ? "-" : "") + "std::numeric_limits<jfloat>::infinity()";
+			return v + "f";
+		} else if (value instanceof Double) {
+			double v = (Double) value;
+			if (Double.isNaN(v))
+				return "std::numeric_limits<jdouble>::quiet_NaN()";
+			if (Double.isInfinite(v))
+				return (v < 0 ? "-" : "") + "std::numeric_limits<jdouble>::infinity()";
+			return String.valueOf(v);
+		}
+		/* byte and short */
+		return value.toString();
+	}
+
+	/*
+	 * Structs are taken by const reference and enums as their C++ enum class.
+	 */
+	protected final String getParameterType(TypeMirror type) {
+		type = types.erasure(type);
+		TypeElement struct = getStructClass(type);
+		if (struct != null)
+			return "const " + getStructName(struct) + "&";
+		TypeElement jniEnum = getEnumClass(type);
+		if (jniEnum != null)
+			return getEnumName(jniEnum);
+		return jniType(type);
+	}
+
+	/*
+	 * The arguments passed on to Java: enums as their constants.
+	 */
+	protected final String getCallArguments(ExecutableElement method) {
+		StringBuilder arguments = new StringBuilder();
+		for (VariableElement param : method.getParameters()) {
+			if (arguments.length() > 0)
+				arguments.append(", ");
+			arguments.append(getCallArgument(param));
+		}
+		return arguments.toString();
+	}
+
+	private String getCallArgument(VariableElement param) {
+		TypeElement jniEnum = getEnumClass(types.erasure(param.asType()));
+		if (jniEnum != null)
+			return "::JNI::EnumPeer<" + getEnumName(jniEnum) + ">::ToJava(" + param.getSimpleName() + ")";
+		return param.getSimpleName().toString();
+	}
+
+	private final String getCallSignature(boolean isStatic, String baseSignature) {
+		return String.format("Env().Call%s%sMethod", isStatic ? "Static" : "", baseSignature);
+	}
+	
+	protected final String getCallSignature(ExecutableElement method) {
+		return getCallSignature(isStatic(method), types.erasure(method.getReturnType()));
+	}
+
+	private final String getCallSignature(boolean isStatic, TypeMirror returnType) {
+		String baseSignature = null;
+
+		switch (returnType.getKind()) {
+		case VOID:
+			baseSignature = "Void";
+			break;
+
+		case ARRAY:
+		case DECLARED:
+			baseSignature = "Object";
+			break;
+
+		case BOOLEAN:
+			baseSignature = "Boolean";
+			break;
+		case BYTE:
+			baseSignature = "Byte";
+			break;
+		case CHAR:
+			baseSignature = "Char";
+			break;
+		case SHORT:
+			baseSignature = "Short";
+			break;
+		case INT:
+			baseSignature = "Int";
+			break;
+		case LONG:
+			baseSignature = "Long";
+			break;
+		case FLOAT:
+			baseSignature = "Float";
+			break;
+		case DOUBLE:
+			baseSignature = "Double";
+			break;
+
+		default:
+			util.bug("jni.unknown.type");
+			return null;
+		}
+
+		return getCallSignature(isStatic, baseSignature);
+	}
+
+	/*
+	 * The statement returning the result of call.  The local reference to a
+	 * returned object is handed over to the peer or LocalRef, which owns it
+	 * from then on: no global reference is created.
+	 */
+	protected final String getReturnStatement(ExecutableElement method, String call) {
+		TypeMirror returnType = types.erasure(method.getReturnType());
+		switch (returnType.getKind()) {
+		case VOID:
+			return call;
+		case ARRAY:
+		case DECLARED:
+			if (getPeerClass(returnType) != null)
+				return "return " + getReturnType(method) + "(::JNI::LocalRef<jobject>(" + call + "))";
+			if (getEnumClass(returnType) != null)
+				return "return ::JNI::EnumPeer<" + getReturnType(method) + ">::FromJava(::JNI::LocalRef<jobject>(" + call + ").Get())";
+			return "return " + getReturnType(method) + "((" + jniType(returnType) + ")" + call + ")";
+		default:
+			return "return " + call;
+		}
 	}
 	
 	protected final String jniType(TypeMirror type) throws Util.Exit {
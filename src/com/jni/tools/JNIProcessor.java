@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools;
+
+import static javax.tools.Diagnostic.Kind.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.IncompleteAnnotationException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVisitor;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.SimpleTypeVisitor7;
+import javax.lang.model.util.Types;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.jni.annotation.JNICallback;
+import com.jni.annotation.JNIChannel;
+import com.jni.annotation.JNIClass;
+import com.jni.annotation.JNIEnum;
+import com.jni.annotation.JNINative;
+import com.jni.annotation.JNIStruct;
+import com.jni.tools.javah.Gen;
+import com.jni.tools.javah.Util;
+
+/**
+ * Annotation processor generating the managed peers of JNIClass classes, the
+ * structs of JNIStruct classes, the enum classes of JNIEnum enums, the ring
+ * buffers of JNIChannel interfaces, the downcalls of JNINative interfaces and
+ * the trampolines of JNICallback interfaces.
+ *
+ * JNITask runs it in a -proc:only pass over the classes named on its command
+ * line.  It is also registered as a service, so that putting this tool on the
+ * processor path generates the peers during the normal compile, without a
+ * second javac pass.  It is then configured with processor options:
+ *
+ *   -Ajni.d=dir     write into dir like the command line tool does (compare,
+ *                   manifest); incremental builds cannot track these files
+ *   -Ajni.pch=file  precompiled header to include
+ *   -Ajni.unity=n   aggregate the definitions into n unity files
+ *   -Ajni.backend=b jni (the default) or ffm, see JNIGenerator.setBackend
+ *   -Ajni.force     always write
+ *   -Ajni.verbose
+ *
+ * Without jni.d the files are created through the Filer in the source output
+ * location (javac -s) with the annotated classes as originating elements,
+ * which makes the processor safe for incremental annotation processing.  The
+ * Java classes generated for structs and channels are created in the round
+ * that found their classes, so that they are compiled with them.  Since
+ * a peer depends on other classes (for example whether a return type is
+ * itself a JNIClass), it declares itself aggregating to Gradle.
+ *
+ * Inside a normal compile the processor only relies on the public javax APIs:
+ * its own errors go to the Messager, and javac's internal classes are never
+ * referenced, as processors cannot access them from Java 9 on.
+ */
+@SupportedAnnotationTypes({ "com.jni.annotation.JNIClass", "com.jni.annotation.JNIStruct", "com.jni.annotation.JNIEnum", "com.jni.annotation.JNIChannel", "com.jni.annotation.JNINative", "com.jni.annotation.JNICallback", "com.jni.annotation.JNIMethod" })
+public class JNIProcessor extends AbstractProcessor {
+	static final String OUTPUT_DIR = "jni.d";
+	static final String PCH = "jni.pch";
+	static final String UNITY = "jni.unity";
+	static final String BACKEND = "jni.backend";
+	static final String FORCE = "jni.force";
+	static final String VERBOSE = "jni.verbose";
+
+	private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+
+	/*
+	 * Used by the service loader when running inside a normal compile.
+	 */
+	public JNIProcessor() {
+	}
+
+	/*
+	 * Used by JNITask, which configures the generator itself.
+	 */
+	JNIProcessor(Gen generator) {
+		this.mGenerator = generator;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		// since this is co-bundled with javac, we can assume it supports
+		// the latest source version
+		return SourceVersion.latest();
+	}
+
+	@Override
+	public Set<String> getSupportedOptions() {
+		Set<String> options = new HashSet<String>(Arrays.asList(OUTPUT_DIR, PCH, UNITY, BACKEND, FORCE, VERBOSE));
+		/* files written straight into jni.d are invisible to the build tool */
+		if (processingEnv == null || !processingEnv.getOptions().containsKey(OUTPUT_DIR))
+			options.add(GRADLE_AGGREGATING);
+		return options;
+	}
+
+	@Override
+	public synchronized void init(ProcessingEnvironment pEnv) {
+		super.init(pEnv);
+		mMessager = processingEnv.getMessager();
+		if (mGenerator == null)
+			createGenerator(processingEnv.getOptions());
+	}
+
+	private void createGenerator(Map<String, String> options) {
+		mVerboseLog = new StringWriter();
+		JNIGenerator generator = JNIGenerator.create(mMessager, mVerboseLog, options.containsKey(VERBOSE));
+		generator.setPrecompiledHeader(options.get(PCH));
+		generator.setForce(options.containsKey(FORCE));
+		mGenerator = generator;
+
+		String backend = options.get(BACKEND);
+		if (backend != null) {
+			if (backend.equals(JNIGenerator.BACKEND_JNI) || backend.equals(JNIGenerator.BACKEND_FFM))
+				generator.setBackend(backend);
+			else
+				mMessager.printMessage(ERROR, getText("err.invalid.backend", backend));
+		}
+
+		if (options.containsKey(UNITY)) {
+			try {
+				mGenerator.setUnityFiles(Integer.parseInt(options.get(UNITY)));
+			} catch (NumberFormatException e) {
+				mMessager.printMessage(ERROR, getText("err.invalid.unity.count", options.get(UNITY)));
+			}
+		}
+
+		String dir = options.get(OUTPUT_DIR);
+		if (dir == null) {
+			mGenerator.setFiler(processingEnv.getFiler());
+			return;
+		}
+
+		try {
+			File odir = new File(dir);
+			if (!odir.exists() && !odir.mkdirs())
+				mMessager.printMessage(ERROR, getText("cant.create.dir", odir.toString()));
+			StandardJavaFileManager fm = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+			fm.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(odir));
+			mGenerator.setFileManager(fm);
+		} catch (IOException ioe) {
+			mMessager.printMessage(ERROR, getText("io.exception", ioe.getMessage()));
+		}
+
+		/* an incremental compile only sees the classes that changed */
+		mGenerator.setPrune(false);
+	}
+
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		/* the error has been reported, later rounds would only repeat it */
+		if (exit != null)
+			return true;
+
+		try {
+			/*
+			 * Collect the classes of every round, then generate once in the last
+			 * round so that the unity files see all of them.  Elements may not be
+			 * reused across rounds, so only their names are kept.
+			 */
+			Set<TypeElement> classes = getAllJNIClasses(ElementFilter.typesIn(roundEnv.getRootElements()));
+			if (classes.size() > 0) {
+				checkMethodParameters(classes);
+				for (TypeElement clazz : classes)
+					mClassNames.add(clazz.getQualifiedName().toString());
+
+				mGenerator.setProcessingEnvironment(processingEnv);
+				mGenerator.setClasses(classes);
+				mGenerator.runSources();
+			}
+
+			if (roundEnv.processingOver() && mClassNames.size() > 0) {
+				Set<TypeElement> all = new LinkedHashSet<TypeElement>();
+				for (String name : mClassNames)
+					all.add(processingEnv.getElementUtils().getTypeElement(name));
+				mClassNames.clear();
+
+				mGenerator.setProcessingEnvironment(processingEnv);
+				mGenerator.setClasses(all);
+				mGenerator.run();
+			}
+		} catch (ClassNotFoundException cnfe) {
+			mMessager.printMessage(ERROR, getText("class.not.found", cnfe.getMessage()));
+		} catch (IOException ioe) {
+			mMessager.printMessage(ERROR, getText("io.exception", ioe.getMessage()));
+		} catch (Util.Exit e) {
+			exit = e;
+		} catch (IncompleteAnnotationException e) {
+			/* javac could not read the annotation's class, and has said so; stop at the first element read */
+			mMessager.printMessage(ERROR, getText("jni.annotation.incomplete", e.annotationType().getName(), e.elementName()));
+			exit = new Util.Exit(15);
+		} catch (RuntimeException e) {
+			if (!isCompletionFailure(e))
+				throw e;
+			mMessager.printMessage(ERROR, e.getLocalizedMessage());
+		} finally {
+			if (mVerboseLog != null && mVerboseLog.getBuffer().length() > 0) {
+				mMessager.printMessage(NOTE, mVerboseLog.toString());
+				mVerboseLog.getBuffer().setLength(0);
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * javac's Symbol.CompletionFailure (a class which cannot be read), matched
+	 * by name since javac's internal packages are not exported to processors.
+	 */
+	private static boolean isCompletionFailure(Throwable e) {
+		for (Class<?> c = e.getClass(); c != null; c = c.getSuperclass()) {
+			if (c.getName().equals("com.sun.tools.javac.code.Symbol$CompletionFailure"))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * A missing message degrades to its key rather than failing the compile.
+	 */
+	private static String getText(String key, Object... args) {
+		try {
+			return MessageFormat.format(ResourceBundle.getBundle("com.jni.tools.resources.l10n").getString(key), args);
+		} catch (MissingResourceException e) {
+			return key + " " + Arrays.toString(args);
+		}
+	}
+
+	static Set<TypeElement> getAllJNIClasses(Set<? extends TypeElement> classes) {
+		Set<TypeElement> allClasses = new LinkedHashSet<TypeElement>();
+		getAllJNIClasses(classes, allClasses);
+		return allClasses;
+	}
+
+	private static void getAllJNIClasses(Iterable<? extends TypeElement> classes, Set<TypeElement> allClasses) {
+		for (TypeElement clazz : classes) {
+			Annotation annotation = clazz.getAnnotation(JNIClass.class);
+			if (annotation == null)
+				annotation = clazz.getAnnotation(JNIStruct.class);
+			if (annotation == null)
+				annotation = clazz.getAnnotation(JNIEnum.class);
+			if (annotation == null)
+				annotation = clazz.getAnnotation(JNIChannel.class);
+			if (annotation == null)
+				annotation = clazz.getAnnotation(JNINative.class);
+			if (annotation == null)
+				annotation = clazz.getAnnotation(JNICallback.class);
+			if (annotation != null)
+			{
+				allClasses.add(clazz);
+				getAllJNIClasses(ElementFilter.typesIn(clazz.getEnclosedElements()), allClasses);
+			}
+		}
+	}
+
+	// 4942232:
+	// check that classes exist for all the parameters of native methods
+	private void checkMethodParameters(Set<TypeElement> classes) {
+		Types types = processingEnv.getTypeUtils();
+		for (TypeElement te : classes) {
+			for (ExecutableElement ee : ElementFilter.methodsIn(te.getEnclosedElements())) {
+				for (VariableElement ve : ee.getParameters()) {
+					TypeMirror tm = ve.asType();
+					checkMethodParametersVisitor.visit(tm, types);
+				}
+			}
+		}
+	}
+
+	private TypeVisitor<Void, Types> checkMethodParametersVisitor = new SimpleTypeVisitor7<Void, Types>() {
+		@Override
+		public Void visitArray(ArrayType type, Types types) {
+			visit(type.getComponentType(), types);
+			return null;
+		}
+
+		@Override
+		public Void visitDeclared(DeclaredType type, Types types) {
+			type.asElement().getKind(); // ensure class exists
+			for (TypeMirror st : types.directSupertypes(type))
+				visit(st, types);
+			return null;
+		}
+	};
+
+	private Messager mMessager;
+	private Gen mGenerator;
+	private StringWriter mVerboseLog;
+	private final Set<String> mClassNames = new LinkedHashSet<String>();
+	Util.Exit exit;
+}
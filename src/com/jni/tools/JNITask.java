@@ -16,11 +16,15 @@
  */
 package com.jni.tools;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StreamTokenizer;
 import java.io.Writer;
 import java.lang.annotation.Annotation;
 import java.text.MessageFormat;
@@ -37,22 +41,7 @@ import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.Set;
 
-import javax.annotation.processing.AbstractProcessor;
-import javax.annotation.processing.Messager;
-import javax.annotation.processing.ProcessingEnvironment;
-import javax.annotation.processing.RoundEnvironment;
-import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.lang.model.SourceVersion;
-import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
-import javax.lang.model.element.VariableElement;
-import javax.lang.model.type.ArrayType;
-import javax.lang.model.type.DeclaredType;
-import javax.lang.model.type.TypeMirror;
-import javax.lang.model.type.TypeVisitor;
-import javax.lang.model.util.ElementFilter;
-import javax.lang.model.util.SimpleTypeVisitor7;
-import javax.lang.model.util.Types;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
@@ -63,15 +52,17 @@ import javax.tools.StandardJavaFileManager;
 import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 
-import static javax.tools.Diagnostic.Kind.*;
-
+import com.jni.annotation.JNICallback;
+import com.jni.annotation.JNIChannel;
 import com.jni.annotation.JNIClass;
-import com.sun.tools.javac.code.Symbol.CompletionFailure;
-import com.sun.tools.javac.main.CommandLine;
-import com.sun.tools.javah.Gen;
-import com.sun.tools.javah.InternalError;
-import com.sun.tools.javah.NativeHeaderTool;
-import com.sun.tools.javah.Util;
+import com.jni.annotation.JNINative;
+import com.jni.tools.classfile.ClassFileEnvironment;
+import com.jni.tools.classfile.ClassPath;
+import com.jni.tools.classfile.MissingClassException;
+import com.jni.tools.javah.Gen;
+import com.jni.tools.javah.InternalError;
+import com.jni.tools.javah.NativeHeaderTool;
+import com.jni.tools.javah.Util;
 
 public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 	public class BadArgs extends Exception {
@@ -147,6 +138,72 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 			}
 		},
 
+		new Option(true, "-unity") {
+			void process(JNITask task, String opt, String arg) throws BadArgs {
+				try {
+					task.unity = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					task.unity = -1;
+				}
+				if (task.unity <= 0)
+					throw task.new BadArgs("err.invalid.unity.count", arg);
+			}
+		},
+
+		new Option(true, "-backend") {
+			void process(JNITask task, String opt, String arg) throws BadArgs {
+				if (!arg.equals(JNIGenerator.BACKEND_JNI) && !arg.equals(JNIGenerator.BACKEND_FFM))
+					throw task.new BadArgs("err.invalid.backend", arg);
+				task.backend = arg;
+			}
+		},
+
+		new Option(true, "-j") {
+			void process(JNITask task, String opt, String arg) throws BadArgs {
+				try {
+					task.threads = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					task.threads = -1;
+				}
+				if (task.threads < 0)
+					throw task.new BadArgs("err.invalid.thread.count", arg);
+				if (task.threads == 0)
+					task.threads = Runtime.getRuntime().availableProcessors();
+			}
+		},
+
+		new Option(true, "-watch") {
+			void process(JNITask task, String opt, String arg) {
+				task.watch = task.pathToFiles(arg);
+			}
+		},
+
+		new Option(true, "-port") {
+			void process(JNITask task, String opt, String arg) throws BadArgs {
+				try {
+					task.port = Integer.parseInt(arg);
+				} catch (NumberFormatException e) {
+					task.port = -1;
+				}
+				if (task.port <= 0 || task.port > 65535)
+					throw task.new BadArgs("err.invalid.port", arg);
+			}
+		},
+
+		new Option(true, "-trigger") {
+			void process(JNITask task, String opt, String arg) throws BadArgs {
+				if (!arg.equals(JNIDaemon.RUN) && !arg.equals(JNIDaemon.STOP))
+					throw task.new BadArgs("err.invalid.trigger", arg);
+				task.trigger = arg;
+			}
+		},
+
+		new Option(false, "-classfile") {
+			void process(JNITask task, String opt, String arg) {
+				task.classFile = true;
+			}
+		},
+
 		new Option(false, "-v", "-verbose") {
 			void process(JNITask task, String opt, String arg) {
 				task.verbose = true;
@@ -319,7 +376,14 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 			}
 		}
 
-		if ((classes == null || classes.size() == 0) && !(noArgs || help || version || fullVersion)) {
+		if (trigger != null) {
+			if (port <= 0)
+				throw new BadArgs("err.trigger.needs.port");
+			return;
+		}
+
+		/* -classfile without class names scans the class path */
+		if ((classes == null || classes.size() == 0) && !(noArgs || help || version || fullVersion || classFile)) {
 			throw new BadArgs("err.no.classes.specified");
 		}
 
@@ -354,9 +418,18 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 	private Iterable<String> expandAtArgs(Iterable<String> args) throws BadArgs {
 		try {
 			List<String> list = new ArrayList<String>();
-			for (String arg : args)
-				list.add(arg);
-			return Arrays.asList(CommandLine.parse(list.toArray(new String[list.size()])));
+			for (String arg : args) {
+				if (arg.length() > 1 && arg.charAt(0) == '@') {
+					arg = arg.substring(1);
+					if (arg.charAt(0) == '@')
+						list.add(arg);
+					else
+						loadCmdFile(arg, list);
+				} else {
+					list.add(arg);
+				}
+			}
+			return list;
 		} catch (FileNotFoundException e) {
 			throw new BadArgs("at.args.file.not.found", e.getLocalizedMessage());
 		} catch (IOException e) {
@@ -364,13 +437,30 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		}
 	}
 
+	// Same rules as javac's @file expansion, which moved out of reach of the class path in JDK 9:
+	// arguments are separated by white space, may be quoted with ' or ", and # starts a comment.
+	private static void loadCmdFile(String name, List<String> args) throws IOException {
+		Reader r = new BufferedReader(new FileReader(name));
+		try {
+			StreamTokenizer st = new StreamTokenizer(r);
+			st.resetSyntax();
+			st.wordChars(' ', 255);
+			st.whitespaceChars(0, ' ');
+			st.commentChar('#');
+			st.quoteChar('"');
+			st.quoteChar('\'');
+			while (st.nextToken() != StreamTokenizer.TT_EOF)
+				args.add(st.sval);
+		} finally {
+			r.close();
+		}
+	}
+
 	public Boolean call() {
 		return run();
 	}
 
 	public boolean run() throws Util.Exit {
-		Util util = new Util(log, diagnosticListener);
-
 		if (noArgs || help) {
 			showHelp();
 			return help; // treat noArgs as an error for purposes of exit code
@@ -381,9 +471,25 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 			return true;
 		}
 
+		if (trigger != null)
+			return JNIDaemon.send(this, trigger);
+
+		if (watch != null)
+			return new JNIDaemon(this).serve();
+
+		return generate(classes, true);
+	}
+
+	/*
+	 * Generate the given classes and the annotated classes nested in them.
+	 * With prune off this is a partial run which leaves the files of any
+	 * other classes in the output directory alone.
+	 */
+	boolean generate(List<String> classes, boolean prune) throws Util.Exit {
+		Util util = new Util(log, diagnosticListener);
 		util.verbose = verbose;
 
-		Gen generator = new JNIGenerator(util);
+		JNIGenerator generator = new JNIGenerator(util);
 
 		if (odir != null) {
 			if (!(fileManager instanceof StandardJavaFileManager)) {
@@ -410,6 +516,10 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		}
 		generator.setFileManager(fileManager);
 		generator.setPrecompiledHeader(pch);
+		generator.setUnityFiles(unity);
+		generator.setBackend(backend);
+		generator.setThreads(threads);
+		generator.setPrune(prune);
 
 		/*
 		 * Force set to false will turn off smarts about checking file content
@@ -417,6 +527,13 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		 */
 		generator.setForce(force);
 
+		if (classFile) {
+			if (!generateFromClassFiles(generator, classes))
+				return false;
+			updateDependencies(generator, prune);
+			return true;
+		}
+
 		if (fileManager instanceof JNIFileManager)
 			((JNIFileManager) fileManager).setIgnoreSymbolFile(true);
 
@@ -431,9 +548,77 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		boolean ok = task.call();
 		if (processor.exit != null)
 			throw new Util.Exit(processor.exit);
+		if (ok)
+			updateDependencies(generator, prune);
 		return ok;
 	}
 
+	/*
+	 * A full run knows every class; a partial run only the ones it was given.
+	 */
+	private void updateDependencies(Gen generator, boolean full) {
+		if (full || dependencies == null)
+			dependencies = new HashMap<String, Set<String>>();
+		dependencies.putAll(generator.getDependencyNames());
+	}
+
+	/*
+	 * The -classfile front end: the annotations are read straight from the
+	 * class files on the class path, so javac never completes a symbol.
+	 * Without class names the whole class path is scanned for JNIClass classes
+	 * and JNIChannel, JNINative and JNICallback interfaces (structs and enums
+	 * come with the classes using them).
+	 */
+	private boolean generateFromClassFiles(Gen generator, List<String> classes) throws Util.Exit {
+		Iterable<? extends File> path = ((StandardJavaFileManager) fileManager).getLocation(StandardLocation.CLASS_PATH);
+		ClassFileEnvironment env = new ClassFileEnvironment(new ClassPath(path));
+		try {
+			Set<TypeElement> roots = new LinkedHashSet<TypeElement>();
+			if (classes == null || classes.isEmpty()) {
+				List<Class<? extends Annotation>> annotations = new ArrayList<Class<? extends Annotation>>();
+				annotations.add(JNIClass.class);
+				annotations.add(JNIChannel.class);
+				annotations.add(JNINative.class);
+				annotations.add(JNICallback.class);
+				roots.addAll(env.findAnnotated(annotations));
+			} else {
+				for (String name : classes) {
+					TypeElement type = env.getElementUtils().getTypeElement(name.replace('$', '.'));
+					if (type == null) {
+						diagnosticListener.report(createDiagnostic("class.not.found", name));
+						return false;
+					}
+					roots.add(type);
+				}
+			}
+
+			Set<TypeElement> all = JNIProcessor.getAllJNIClasses(roots);
+			if (classes == null || classes.isEmpty()) {
+				scanned = new ArrayList<String>();
+				for (TypeElement type : all)
+					scanned.add(type.getQualifiedName().toString());
+			}
+
+			generator.setProcessingEnvironment(env);
+			generator.setClasses(all);
+			generator.run();
+			return true;
+		} catch (MissingClassException e) {
+			diagnosticListener.report(createDiagnostic("class.not.found", e.getClassName()));
+		} catch (ClassNotFoundException e) {
+			diagnosticListener.report(createDiagnostic("class.not.found", e.getMessage()));
+		} catch (IOException e) {
+			diagnosticListener.report(createDiagnostic("err.ioerror", path, e.getLocalizedMessage()));
+		} finally {
+			try {
+				env.close();
+			} catch (IOException e) {
+				/* only read from */
+			}
+		}
+		return false;
+	}
+
 	private List<String> internalize(List<String> classes) {
 		List<String> list = new ArrayList<String>();
 		for (String clazz : classes) {
@@ -501,7 +686,7 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		}
 	}
 
-	private Diagnostic<JavaFileObject> createDiagnostic(final String key, final Object... args) {
+	Diagnostic<JavaFileObject> createDiagnostic(final String key, final Object... args) {
 		return new Diagnostic<JavaFileObject>() {
 			public Kind getKind() {
 				return Diagnostic.Kind.ERROR;
@@ -561,7 +746,7 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 		ResourceBundle b = bundles.get(locale);
 		if (b == null) {
 			try {
-				b = ResourceBundle.getBundle("com.sun.tools.javah.resources.l10n", locale);
+				b = ResourceBundle.getBundle("com.jni.tools.resources.l10n", locale);
 				bundles.put(locale, b);
 			} catch (MissingResourceException e) {
 				throw new InternalError("Cannot find javah resource bundle for locale " + locale, e);
@@ -577,7 +762,18 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 
 	File odir;
 	String pch;
+	int unity;
+	String backend = JNIGenerator.BACKEND_JNI;
+	int threads = 1;
+	boolean classFile;
+	List<File> watch;
+	int port;
+	String trigger;
 	List<String> classes;
+	/* the classes the last scan of the class path (-classfile without class names) found */
+	List<String> scanned;
+	/* the dependencies of each class generated so far, see Gen.getDependencyNames */
+	Map<String, Set<String>> dependencies;
 	boolean verbose;
 	boolean noArgs;
 	boolean help;
@@ -593,98 +789,4 @@ public class JNITask implements NativeHeaderTool.NativeHeaderTask {
 	Map<Locale, ResourceBundle> bundles;
 
 	private static final String progname = "javah";
-
-	@SupportedAnnotationTypes("*")
-	class JNIProcessor extends AbstractProcessor {
-
-		JNIProcessor(Gen generator) {
-			this.mGenerator = generator;
-		}
-
-		@Override
-		public SourceVersion getSupportedSourceVersion() {
-			// since this is co-bundled with javac, we can assume it supports
-			// the latest source version
-			return SourceVersion.latest();
-		}
-
-		@Override
-		public void init(ProcessingEnvironment pEnv) {
-			super.init(pEnv);
-			mMessager = processingEnv.getMessager();
-		}
-
-		public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-			try {
-				Set<TypeElement> classes = getAllJNIClasses(ElementFilter.typesIn(roundEnv.getRootElements()));
-				if (classes.size() > 0) {
-					checkMethodParameters(classes);
-					mGenerator.setProcessingEnvironment(processingEnv);
-					mGenerator.setClasses(classes);
-					mGenerator.run();
-				}
-			} catch (CompletionFailure cf) {
-				mMessager.printMessage(ERROR, getMessage("class.not.found", cf.sym.getQualifiedName().toString()));
-			} catch (ClassNotFoundException cnfe) {
-				mMessager.printMessage(ERROR, getMessage("class.not.found", cnfe.getMessage()));
-			} catch (IOException ioe) {
-				mMessager.printMessage(ERROR, getMessage("io.exception", ioe.getMessage()));
-			} catch (Util.Exit e) {
-				exit = e;
-			}
-
-			return true;
-		}
-
-		private Set<TypeElement> getAllJNIClasses(Set<? extends TypeElement> classes) {
-			Set<TypeElement> allClasses = new LinkedHashSet<TypeElement>();
-			getAllJNIClasses(classes, allClasses);
-			return allClasses;
-		}
-
-		private void getAllJNIClasses(Iterable<? extends TypeElement> classes, Set<TypeElement> allClasses) {
-			for (TypeElement clazz : classes) {
-				Annotation annotation = clazz.getAnnotation(JNIClass.class);
-				if (annotation != null)
-				{
-					allClasses.add(clazz);
-					getAllJNIClasses(ElementFilter.typesIn(clazz.getEnclosedElements()), allClasses);
-				}
-			}
-		}
-
-		// 4942232:
-		// check that classes exist for all the parameters of native methods
-		private void checkMethodParameters(Set<TypeElement> classes) {
-			Types types = processingEnv.getTypeUtils();
-			for (TypeElement te : classes) {
-				for (ExecutableElement ee : ElementFilter.methodsIn(te.getEnclosedElements())) {
-					for (VariableElement ve : ee.getParameters()) {
-						TypeMirror tm = ve.asType();
-						checkMethodParametersVisitor.visit(tm, types);
-					}
-				}
-			}
-		}
-
-		private TypeVisitor<Void, Types> checkMethodParametersVisitor = new SimpleTypeVisitor7<Void, Types>() {
-			@Override
-			public Void visitArray(ArrayType type, Types types) {
-				visit(type.getComponentType(), types);
-				return null;
-			}
-
-			@Override
-			public Void visitDeclared(DeclaredType type, Types types) {
-				type.asElement().getKind(); // ensure class exists
-				for (TypeMirror st : types.directSupertypes(type))
-					visit(st, types);
-				return null;
-			}
-		};
-
-		private Messager mMessager;
-		private Gen mGenerator;
-		private Util.Exit exit;
-	}
 }
@@ -31,8 +31,8 @@ import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
 
-import com.sun.tools.javah.NativeHeaderTool;
-import com.sun.tools.javah.NativeHeaderTool.NativeHeaderTask;
+import com.jni.tools.javah.NativeHeaderTool;
+import com.jni.tools.javah.NativeHeaderTool.NativeHeaderTask;
 
 public class JNITool implements NativeHeaderTool {
 
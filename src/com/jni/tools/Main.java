@@ -20,11 +20,6 @@ import java.io.PrintWriter;
 
 public class Main {
 
-	static {
-		// Set the JDK home to run this - required to get the Java compiler at runtime
-		System.setProperty("java.home", "C:\\Program Files\\Java\\jdk1.8.0_45");
-	}
-
 	public static void main(String[] args) {
 		JNITask task = new JNITask();
 		int rc = task.run(args);
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+
+import com.jni.tools.javah.Util;
+
+/**
+ * The binary layout of a JNIStruct: its instance fields in declaration order,
+ * each at its natural alignment, padded to the largest alignment.  This is
+ * what C++ compilers do for the generated struct, which also spells out each
+ * alignment so that 32 bit ABIs (with 4 byte aligned doubles) agree.  The
+ * messages of a JNIChannel lay out their parameters the same way.
+ */
+final class StructLayout {
+	static final class Field {
+		Field(VariableElement element, int offset) {
+			this.element = element;
+			this.kind = element.asType().getKind();
+			this.offset = offset;
+		}
+
+		String getName() {
+			return element.getSimpleName().toString();
+		}
+
+		final VariableElement element;
+		final TypeKind kind;
+		final int offset;
+	}
+
+	StructLayout(TypeElement clazz, Util util) throws Util.Exit {
+		this.record = clazz.getKind().name().equals("RECORD"); /* ElementKind.RECORD is Java 16 */
+
+		List<VariableElement> elements = new ArrayList<VariableElement>();
+		for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+			if (field.getModifiers().contains(Modifier.STATIC))
+				continue;
+			if (sizeOf(field.asType().getKind()) == 0)
+				util.error("jni.struct.field.type", clazz.getQualifiedName(), field.getSimpleName(), field.asType());
+			if (!record && field.getModifiers().contains(Modifier.PRIVATE))
+				util.error("jni.struct.private.field", clazz.getQualifiedName(), field.getSimpleName());
+			elements.add(field);
+		}
+		if (elements.isEmpty())
+			util.error("jni.struct.no.fields", clazz.getQualifiedName());
+
+		this.fields = place(elements);
+		this.alignment = alignmentOf(fields);
+		this.size = sizeOf(fields, alignment);
+		this.fieldConstructor = record || hasFieldConstructor(clazz);
+
+		/* Otherwise decoding assigns the fields of a new instance */
+		if (!fieldConstructor) {
+			if (!hasConstructor(clazz))
+				util.error("jni.struct.no.constructor", clazz.getQualifiedName());
+			for (Field field : fields) {
+				if (field.element.getModifiers().contains(Modifier.FINAL))
+					util.error("jni.struct.final.field", clazz.getQualifiedName(), field.getName());
+			}
+		}
+	}
+
+	/*
+	 * The parameters of a method laid out the same way, as the payload of a
+	 * channel message.
+	 */
+	StructLayout(ExecutableElement method, Util util) throws Util.Exit {
+		for (VariableElement param : method.getParameters()) {
+			if (sizeOf(param.asType().getKind()) == 0)
+				util.error("jni.channel.parameter.type", method.getEnclosingElement(), method.getSimpleName(), param.asType());
+		}
+
+		this.record = false;
+		this.fields = place(method.getParameters());
+		this.alignment = alignmentOf(fields);
+		this.size = sizeOf(fields, alignment);
+		this.fieldConstructor = true;
+	}
+
+	private static List<Field> place(List<? extends VariableElement> elements) {
+		List<Field> fields = new ArrayList<Field>();
+		int offset = 0;
+		for (VariableElement element : elements) {
+			int size = sizeOf(element.asType().getKind());
+			offset = align(offset, size);
+			fields.add(new Field(element, offset));
+			offset += size;
+		}
+		return Collections.unmodifiableList(fields);
+	}
+
+	private static int alignmentOf(List<Field> fields) {
+		int alignment = 1;
+		for (Field field : fields)
+			alignment = Math.max(alignment, sizeOf(field.kind));
+		return alignment;
+	}
+
+	private static int sizeOf(List<Field> fields, int alignment) {
+		if (fields.isEmpty())
+			return 0;
+		Field last = fields.get(fields.size() - 1);
+		return align(last.offset + sizeOf(last.kind), alignment);
+	}
+
+	/*
+	 * Size (and alignment) of a field of the given kind, or 0 if it cannot be
+	 * a field of a struct.
+	 */
+	static int sizeOf(TypeKind kind) {
+		switch (kind) {
+		case BOOLEAN:
+		case BYTE:
+			return 1;
+		case CHAR:
+		case SHORT:
+			return 2;
+		case INT:
+		case FLOAT:
+			return 4;
+		case LONG:
+		case DOUBLE:
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	private static int align(int offset, int alignment) {
+		return (offset + alignment - 1) / alignment * alignment;
+	}
+
+	/*
+	 * A non-private constructor taking every field, in order.
+	 */
+	private boolean hasFieldConstructor(TypeElement clazz) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(clazz.getEnclosedElements())) {
+			if (constructor.getModifiers().contains(Modifier.PRIVATE) || constructor.getParameters().size() != fields.size())
+				continue;
+			boolean matches = true;
+			for (int i = 0; i < fields.size() && matches; i++)
+				matches = (constructor.getParameters().get(i).asType().getKind() == fields.get(i).kind);
+			if (matches)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean hasConstructor(TypeElement clazz) {
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(clazz.getEnclosedElements())) {
+			if (!constructor.getModifiers().contains(Modifier.PRIVATE) && constructor.getParameters().isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	final boolean record;
+	final List<Field> fields;
+	final int alignment;
+	final int size;
+	/* Decoded with new T(field, ...) rather than by assigning the fields */
+	final boolean fieldConstructor;
+}
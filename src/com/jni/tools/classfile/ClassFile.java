@@ -0,0 +1,387 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a class file the generator needs: names, access flags,
+ * supertypes, field and method descriptors, constant values, annotations
+ * (visible and invisible), method parameter names and the InnerClasses table.
+ * Code and everything else is skipped.
+ */
+final class ClassFile {
+	static final int ACC_PUBLIC       = 0x0001;
+	static final int ACC_PRIVATE      = 0x0002;
+	static final int ACC_PROTECTED    = 0x0004;
+	static final int ACC_STATIC       = 0x0008;
+	static final int ACC_FINAL        = 0x0010;
+	static final int ACC_SYNCHRONIZED = 0x0020;
+	static final int ACC_VOLATILE     = 0x0040;
+	static final int ACC_TRANSIENT    = 0x0080;
+	static final int ACC_VARARGS      = 0x0080;
+	static final int ACC_NATIVE       = 0x0100;
+	static final int ACC_INTERFACE    = 0x0200;
+	static final int ACC_ABSTRACT     = 0x0400;
+	static final int ACC_STRICT       = 0x0800;
+	static final int ACC_SYNTHETIC    = 0x1000;
+	static final int ACC_ANNOTATION   = 0x2000;
+	static final int ACC_ENUM         = 0x4000;
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int CONSTANT_Utf8               = 1;
+	private static final int CONSTANT_Integer            = 3;
+	private static final int CONSTANT_Float              = 4;
+	private static final int CONSTANT_Long               = 5;
+	private static final int CONSTANT_Double             = 6;
+	private static final int CONSTANT_Class              = 7;
+	private static final int CONSTANT_String             = 8;
+	private static final int CONSTANT_Fieldref           = 9;
+	private static final int CONSTANT_Methodref          = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType        = 12;
+	private static final int CONSTANT_MethodHandle       = 15;
+	private static final int CONSTANT_MethodType         = 16;
+	private static final int CONSTANT_Dynamic            = 17;
+	private static final int CONSTANT_InvokeDynamic      = 18;
+	private static final int CONSTANT_Module             = 19;
+	private static final int CONSTANT_Package            = 20;
+
+	/*
+	 * A field or method.
+	 */
+	static final class Member {
+		int access;
+		String name;
+		String descriptor;
+		Object constantValue;
+		String[] parameterNames;
+		Map<String, Map<String, Object>> annotations = Collections.emptyMap();
+	}
+
+	/*
+	 * An entry of the InnerClasses attribute; outer and simpleName are null
+	 * for local and anonymous classes.
+	 */
+	static final class InnerClass {
+		String inner;
+		String outer;
+		String simpleName;
+		int access;
+	}
+
+	/* Annotation element values that are not plain constants */
+	static final class EnumConstant {
+		EnumConstant(String descriptor, String name) {
+			this.descriptor = descriptor;
+			this.name = name;
+		}
+
+		final String descriptor;
+		final String name;
+	}
+
+	static final class ClassConstant {
+		ClassConstant(String descriptor) {
+			this.descriptor = descriptor;
+		}
+
+		final String descriptor;
+	}
+
+	static final class NestedAnnotation {
+		NestedAnnotation(String descriptor, Map<String, Object> values) {
+			this.descriptor = descriptor;
+			this.values = values;
+		}
+
+		final String descriptor;
+		final Map<String, Object> values;
+	}
+
+	int access;
+	String name;
+	String superName;
+	String[] interfaces;
+	List<Member> fields = new ArrayList<Member>();
+	List<Member> methods = new ArrayList<Member>();
+	List<InnerClass> innerClasses = new ArrayList<InnerClass>();
+	Map<String, Map<String, Object>> annotations = Collections.emptyMap();
+
+	private Object[] pool;
+	private DataInputStream in;
+
+	private ClassFile() {
+	}
+
+	/*
+	 * Cheap test whether the UTF-8 bytes of name occur anywhere in the class
+	 * file, which they must for the class to use an annotation or type called
+	 * name.  Used to skip parsing almost every class while scanning.
+	 */
+	static boolean mentions(byte[] bytes, int length, byte[] name) {
+		outer:
+		for (int i = 0, last = length - name.length; i <= last; i++) {
+			for (int j = 0; j < name.length; j++) {
+				if (bytes[i + j] != name[j])
+					continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	static ClassFile parse(byte[] bytes, int length) throws IOException {
+		ClassFile cf = new ClassFile();
+		cf.in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+		try {
+			cf.read();
+		} catch (RuntimeException e) {
+			/* bad indexes into the constant pool and the like */
+			throw new IOException("malformed class file: " + e, e);
+		} finally {
+			cf.in = null;
+			cf.pool = null;
+		}
+		return cf;
+	}
+
+	private void read() throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("not a class file");
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+		readConstantPool();
+
+		access = in.readUnsignedShort();
+		name = className(in.readUnsignedShort());
+		int superIndex = in.readUnsignedShort();
+		superName = (superIndex == 0 ? null : className(superIndex));
+		interfaces = new String[in.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; i++)
+			interfaces[i] = className(in.readUnsignedShort());
+
+		readMembers(fields);
+		readMembers(methods);
+
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			String attribute = utf8(in.readUnsignedShort());
+			int length = in.readInt();
+			if (attribute.equals("RuntimeVisibleAnnotations") || attribute.equals("RuntimeInvisibleAnnotations")) {
+				annotations = readAnnotations(annotations);
+			} else if (attribute.equals("InnerClasses")) {
+				int classes = in.readUnsignedShort();
+				for (int j = 0; j < classes; j++) {
+					InnerClass ic = new InnerClass();
+					ic.inner = className(in.readUnsignedShort());
+					int outer = in.readUnsignedShort();
+					ic.outer = (outer == 0 ? null : className(outer));
+					int simpleName = in.readUnsignedShort();
+					ic.simpleName = (simpleName == 0 ? null : utf8(simpleName));
+					ic.access = in.readUnsignedShort();
+					innerClasses.add(ic);
+				}
+			} else {
+				skip(length);
+			}
+		}
+	}
+
+	private void readConstantPool() throws IOException {
+		pool = new Object[in.readUnsignedShort()];
+		for (int i = 1; i < pool.length; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case CONSTANT_Utf8:
+				pool[i] = in.readUTF();
+				break;
+			case CONSTANT_Integer:
+				pool[i] = in.readInt();
+				break;
+			case CONSTANT_Float:
+				pool[i] = in.readFloat();
+				break;
+			case CONSTANT_Long:
+				pool[i++] = in.readLong();
+				break;
+			case CONSTANT_Double:
+				pool[i++] = in.readDouble();
+				break;
+			case CONSTANT_Class:
+			case CONSTANT_String:
+			case CONSTANT_MethodType:
+			case CONSTANT_Module:
+			case CONSTANT_Package:
+				/* resolved through the index when needed */
+				pool[i] = new int[] { in.readUnsignedShort() };
+				break;
+			case CONSTANT_Fieldref:
+			case CONSTANT_Methodref:
+			case CONSTANT_InterfaceMethodref:
+			case CONSTANT_NameAndType:
+			case CONSTANT_Dynamic:
+			case CONSTANT_InvokeDynamic:
+				skip(4);
+				break;
+			case CONSTANT_MethodHandle:
+				skip(3);
+				break;
+			default:
+				throw new IOException("bad constant pool tag " + tag);
+			}
+		}
+	}
+
+	private void readMembers(List<Member> members) throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			Member member = new Member();
+			member.access = in.readUnsignedShort();
+			member.name = utf8(in.readUnsignedShort());
+			member.descriptor = utf8(in.readUnsignedShort());
+
+			int attributes = in.readUnsignedShort();
+			for (int j = 0; j < attributes; j++) {
+				String attribute = utf8(in.readUnsignedShort());
+				int length = in.readInt();
+				if (attribute.equals("ConstantValue")) {
+					member.constantValue = constantValue(in.readUnsignedShort(), member.descriptor);
+				} else if (attribute.equals("RuntimeVisibleAnnotations") || attribute.equals("RuntimeInvisibleAnnotations")) {
+					member.annotations = readAnnotations(member.annotations);
+				} else if (attribute.equals("MethodParameters")) {
+					int parameters = in.readUnsignedByte();
+					member.parameterNames = new String[parameters];
+					for (int k = 0; k < parameters; k++) {
+						int nameIndex = in.readUnsignedShort();
+						member.parameterNames[k] = (nameIndex == 0 ? null : utf8(nameIndex));
+						in.readUnsignedShort(); // access flags
+					}
+				} else {
+					skip(length);
+				}
+			}
+			members.add(member);
+		}
+	}
+
+	private Map<String, Map<String, Object>> readAnnotations(Map<String, Map<String, Object>> annotations) throws IOException {
+		if (annotations.isEmpty())
+			annotations = new LinkedHashMap<String, Map<String, Object>>();
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			NestedAnnotation annotation = readAnnotation();
+			annotations.put(annotation.descriptor, annotation.values);
+		}
+		return annotations;
+	}
+
+	private NestedAnnotation readAnnotation() throws IOException {
+		String descriptor = utf8(in.readUnsignedShort());
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			String element = utf8(in.readUnsignedShort());
+			values.put(element, readElementValue());
+		}
+		return new NestedAnnotation(descriptor, values);
+	}
+
+	private Object readElementValue() throws IOException {
+		char tag = (char) in.readUnsignedByte();
+		switch (tag) {
+		case 'B':
+			return (byte) ((Integer) pool[in.readUnsignedShort()]).intValue();
+		case 'C':
+			return (char) ((Integer) pool[in.readUnsignedShort()]).intValue();
+		case 'S':
+			return (short) ((Integer) pool[in.readUnsignedShort()]).intValue();
+		case 'Z':
+			return ((Integer) pool[in.readUnsignedShort()]).intValue() != 0;
+		case 'I':
+		case 'J':
+		case 'F':
+		case 'D':
+		case 's':
+			return pool[in.readUnsignedShort()];
+		case 'e': {
+			String descriptor = utf8(in.readUnsignedShort());
+			return new EnumConstant(descriptor, utf8(in.readUnsignedShort()));
+		}
+		case 'c':
+			return new ClassConstant(utf8(in.readUnsignedShort()));
+		case '@':
+			return readAnnotation();
+		case '[': {
+			int count = in.readUnsignedShort();
+			List<Object> values = new ArrayList<Object>(count);
+			for (int i = 0; i < count; i++)
+				values.add(readElementValue());
+			return values;
+		}
+		default:
+			throw new IOException("bad annotation element tag " + tag);
+		}
+	}
+
+	/*
+	 * Constant values of boolean, byte, char and short fields are stored as
+	 * ints; give them the type javac's model would.
+	 */
+	private Object constantValue(int index, String descriptor) {
+		Object value = pool[index];
+		if (value instanceof int[])
+			return utf8(((int[]) value)[0]); // String
+		switch (descriptor.charAt(0)) {
+		case 'Z':
+			return ((Integer) value).intValue() != 0;
+		case 'B':
+			return (byte) ((Integer) value).intValue();
+		case 'C':
+			return (char) ((Integer) value).intValue();
+		case 'S':
+			return (short) ((Integer) value).intValue();
+		default:
+			return value;
+		}
+	}
+
+	private String utf8(int index) {
+		return (String) pool[index];
+	}
+
+	private String className(int index) {
+		return utf8(((int[]) pool[index])[0]);
+	}
+
+	private void skip(int n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0)
+				throw new IOException("truncated class file");
+			n -= skipped;
+		}
+	}
+}
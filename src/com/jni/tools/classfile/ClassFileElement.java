@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import static com.jni.tools.classfile.ClassFile.*;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
+
+/**
+ * Common part of the elements read from class files: access flags and
+ * annotations.  Annotations are only available through getAnnotation, which
+ * is what the generator uses; there are no AnnotationMirrors.
+ */
+abstract class ClassFileElement implements Element {
+	ClassFileElement(ClassFileEnvironment env, int access, Map<String, Map<String, Object>> annotations) {
+		this.env = env;
+		this.access = access;
+		this.annotations = annotations;
+	}
+
+	public Set<Modifier> getModifiers() {
+		Set<Modifier> modifiers = EnumSet.noneOf(Modifier.class);
+		if ((access & ACC_PUBLIC) != 0)
+			modifiers.add(Modifier.PUBLIC);
+		if ((access & ACC_PROTECTED) != 0)
+			modifiers.add(Modifier.PROTECTED);
+		if ((access & ACC_PRIVATE) != 0)
+			modifiers.add(Modifier.PRIVATE);
+		if ((access & ACC_ABSTRACT) != 0)
+			modifiers.add(Modifier.ABSTRACT);
+		if ((access & ACC_STATIC) != 0)
+			modifiers.add(Modifier.STATIC);
+		if ((access & ACC_FINAL) != 0)
+			modifiers.add(Modifier.FINAL);
+		addModifiers(modifiers);
+		return modifiers;
+	}
+
+	/*
+	 * The flags whose meaning depends on the kind of element.
+	 */
+	void addModifiers(Set<Modifier> modifiers) {
+	}
+
+	public List<? extends AnnotationMirror> getAnnotationMirrors() {
+		return Collections.emptyList();
+	}
+
+	public <A extends Annotation> A getAnnotation(Class<A> annotationType) {
+		return env.getAnnotation(annotations, annotationType);
+	}
+
+	@SuppressWarnings("unchecked")
+	public <A extends Annotation> A[] getAnnotationsByType(Class<A> annotationType) {
+		A annotation = getAnnotation(annotationType);
+		A[] array = (A[]) Array.newInstance(annotationType, annotation == null ? 0 : 1);
+		if (annotation != null)
+			array[0] = annotation;
+		return array;
+	}
+
+	@Override
+	public String toString() {
+		return getSimpleName().toString();
+	}
+
+	final ClassFileEnvironment env;
+	final int access;
+	final Map<String, Map<String, Object>> annotations;
+}
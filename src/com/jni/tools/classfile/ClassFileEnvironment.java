@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+/**
+ * A ProcessingEnvironment whose elements are read straight from class files,
+ * so that a Gen can run without javac: no symbol completion, no source
+ * positions, no rounds.  Classes are loaded on first use and kept for the
+ * life of the environment.  There is no Messager or Filer; generators write
+ * through their file manager and report through Util.
+ *
+ * The annotations the generator reads (JNIClass, JNIMethod) have CLASS
+ * retention, so they are in the class files as RuntimeInvisibleAnnotations
+ * and come back through getAnnotation as proxies.
+ */
+public class ClassFileEnvironment implements ProcessingEnvironment, Closeable {
+	public ClassFileEnvironment(ClassPath classPath) {
+		this.classPath = classPath;
+	}
+
+	/*
+	 * Scans the whole class path for the top level classes carrying any of the
+	 * given annotations.  Class files that do not mention an annotation's name
+	 * are skipped without being parsed, and the others are parsed once and kept.
+	 */
+	public List<TypeElement> findAnnotated(Collection<Class<? extends Annotation>> annotationTypes) throws IOException {
+		final String[] descriptors = new String[annotationTypes.size()];
+		final byte[][] markers = new byte[annotationTypes.size()][];
+		int n = 0;
+		for (Class<? extends Annotation> annotationType : annotationTypes) {
+			descriptors[n] = descriptorOf(annotationType);
+			markers[n] = descriptors[n].getBytes("UTF-8");
+			n++;
+		}
+		final List<TypeElement> found = new ArrayList<TypeElement>();
+		classPath.scan(new ClassPath.Visitor() {
+			public void visit(byte[] bytes, int length) throws IOException {
+				ClassFile classFile = null;
+				for (int i = 0; i < markers.length; i++) {
+					if (!ClassFile.mentions(bytes, length, markers[i]))
+						continue;
+					if (classFile == null)
+						classFile = ClassFile.parse(bytes, length);
+					if (!classFile.annotations.containsKey(descriptors[i]))
+						continue;
+					TypeElement type = define(classFile);
+					if (type.getNestingKind() == NestingKind.TOP_LEVEL && !found.contains(type))
+						found.add(type);
+					return;
+				}
+			}
+		});
+		return found;
+	}
+
+	public Map<String, String> getOptions() {
+		return Collections.emptyMap();
+	}
+
+	public Messager getMessager() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Filer getFiler() {
+		throw new UnsupportedOperationException();
+	}
+
+	public Elements getElementUtils() {
+		return elements;
+	}
+
+	public ClassFileTypes getTypeUtils() {
+		return types;
+	}
+
+	public SourceVersion getSourceVersion() {
+		return SourceVersion.latest();
+	}
+
+	public Locale getLocale() {
+		return null;
+	}
+
+	public void close() throws IOException {
+		classPath.close();
+	}
+
+	/*
+	 * Returns the class with the given internal name, loading it if needed, or
+	 * null if it is not on the class path.
+	 */
+	synchronized TypeElement getTypeElementByInternalName(String name) {
+		if (classes.containsKey(name))
+			return classes.get(name);
+
+		ClassFileTypeElement type = null;
+		try {
+			byte[] bytes = classPath.find(name);
+			if (bytes != null)
+				type = new ClassFileTypeElement(this, ClassFile.parse(bytes, bytes.length));
+		} catch (IOException e) {
+			MissingClassException mce = new MissingClassException(name.replace('/', '.'));
+			mce.initCause(e);
+			throw mce;
+		}
+		classes.put(name, type);
+		return type;
+	}
+
+	/*
+	 * A class found by scanning; the first one of a name wins, as on a class path.
+	 */
+	private synchronized TypeElement define(ClassFile classFile) {
+		ClassFileTypeElement type = classes.get(classFile.name);
+		if (type == null) {
+			type = new ClassFileTypeElement(this, classFile);
+			classes.put(classFile.name, type);
+		}
+		return type;
+	}
+
+	<A extends Annotation> A getAnnotation(Map<String, Map<String, Object>> annotations, Class<A> annotationType) {
+		Map<String, Object> values = annotations.get(descriptorOf(annotationType));
+		return (values == null ? null : proxy(annotationType, values));
+	}
+
+	private <A extends Annotation> A proxy(Class<A> annotationType, Map<String, Object> values) {
+		Object proxy = Proxy.newProxyInstance(annotationType.getClassLoader(),
+				new Class<?>[] { annotationType }, new AnnotationHandler(annotationType, values));
+		return annotationType.cast(proxy);
+	}
+
+	private static String descriptorOf(Class<?> type) {
+		return "L" + type.getName().replace('.', '/') + ";";
+	}
+
+	/*
+	 * Answers the annotation's methods from the values in the class file,
+	 * falling back on the defaults declared by the annotation type.
+	 */
+	private class AnnotationHandler implements InvocationHandler {
+		AnnotationHandler(Class<? extends Annotation> annotationType, Map<String, Object> values) {
+			this.annotationType = annotationType;
+			this.values = values;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (args != null && args.length == 1 && name.equals("equals"))
+				return proxy == args[0];
+			if (args == null || args.length == 0) {
+				if (name.equals("annotationType"))
+					return annotationType;
+				if (name.equals("hashCode"))
+					return values.hashCode();
+				if (name.equals("toString"))
+					return "@" + annotationType.getName() + values;
+			}
+
+			Object value = values.get(name);
+			if (value == null)
+				return method.getDefaultValue();
+			return convert(value, method.getReturnType());
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Object convert(Object value, Class<?> type) {
+			if (value instanceof List) {
+				List<?> list = (List<?>) value;
+				Object array = Array.newInstance(type.getComponentType(), list.size());
+				for (int i = 0; i < list.size(); i++)
+					Array.set(array, i, convert(list.get(i), type.getComponentType()));
+				return array;
+			}
+			if (value instanceof ClassFile.EnumConstant)
+				return Enum.valueOf((Class<? extends Enum>) type, ((ClassFile.EnumConstant) value).name);
+			if (value instanceof ClassFile.ClassConstant) {
+				/* like javac, Class values are only available as mirrors */
+				throw new MirroredTypeException(types.getType(((ClassFile.ClassConstant) value).descriptor));
+			}
+			if (value instanceof ClassFile.NestedAnnotation)
+				return proxy((Class<? extends Annotation>) type, ((ClassFile.NestedAnnotation) value).values);
+			return value;
+		}
+
+		private final Class<? extends Annotation> annotationType;
+		private final Map<String, Object> values;
+	}
+
+	private class ClassFileElements implements Elements {
+		public PackageElement getPackageElement(CharSequence name) {
+			return new ClassFilePackageElement(ClassFileEnvironment.this, name.toString());
+		}
+
+		/*
+		 * The canonical name a.b.C.D does not say where the package ends, so
+		 * try a/b/C/D, a/b/C$D, a/b$C$D, ...
+		 */
+		public TypeElement getTypeElement(CharSequence name) {
+			String internal = name.toString().replace('.', '/');
+			while (true) {
+				TypeElement type = getTypeElementByInternalName(internal);
+				if (type != null && type.getQualifiedName().contentEquals(name))
+					return type;
+				int slash = internal.lastIndexOf('/');
+				if (slash < 0)
+					return null;
+				internal = internal.substring(0, slash) + "$" + internal.substring(slash + 1);
+			}
+		}
+
+		public Map<? extends ExecutableElement, ? extends AnnotationValue> getElementValuesWithDefaults(AnnotationMirror a) {
+			throw new UnsupportedOperationException();
+		}
+
+		public String getDocComment(Element e) {
+			return null;
+		}
+
+		public boolean isDeprecated(Element e) {
+			return e.getAnnotation(Deprecated.class) != null;
+		}
+
+		public Name getBinaryName(TypeElement type) {
+			return new ClassFileName(((ClassFileTypeElement) type).getInternalName().replace('/', '.'));
+		}
+
+		public PackageElement getPackageOf(Element type) {
+			Element e = type;
+			while (!(e instanceof PackageElement))
+				e = e.getEnclosingElement();
+			return (PackageElement) e;
+		}
+
+		/*
+		 * The members of the type followed by the non-private members it
+		 * inherits and does not hide or override.
+		 */
+		public List<? extends Element> getAllMembers(TypeElement type) {
+			Map<String, Element> members = new LinkedHashMap<String, Element>();
+			addMembers(type, members, true);
+			return new ArrayList<Element>(members.values());
+		}
+
+		private void addMembers(TypeElement type, Map<String, Element> members, boolean own) {
+			for (Element e : type.getEnclosedElements()) {
+				if (!own && (e.getModifiers().contains(Modifier.PRIVATE) || e.getKind() == ElementKind.CONSTRUCTOR))
+					continue;
+				String key = e.getKind().isField() ? e.getSimpleName().toString() : e.getSimpleName() + "" + e.asType();
+				if (!members.containsKey(key))
+					members.put(key, e);
+			}
+			if (type.getSuperclass().getKind() != TypeKind.NONE)
+				addMembers((TypeElement) types.asElement(type.getSuperclass()), members, false);
+			for (TypeMirror i : type.getInterfaces())
+				addMembers((TypeElement) types.asElement(i), members, false);
+		}
+
+		public List<? extends AnnotationMirror> getAllAnnotationMirrors(Element e) {
+			return Collections.emptyList();
+		}
+
+		public boolean hides(Element hider, Element hidden) {
+			return false;
+		}
+
+		public boolean overrides(ExecutableElement overrider, ExecutableElement overridden, TypeElement type) {
+			return overrider.getSimpleName().contentEquals(overridden.getSimpleName())
+					&& types.isSubsignature((ExecutableType) overrider.asType(),
+							(ExecutableType) overridden.asType())
+					&& !overridden.getModifiers().contains(Modifier.STATIC)
+					&& !overridden.getModifiers().contains(Modifier.PRIVATE);
+		}
+
+		public String getConstantExpression(Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void printElements(Writer w, Element... elements) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Name getName(CharSequence cs) {
+			return new ClassFileName(cs.toString());
+		}
+
+		public boolean isFunctionalInterface(TypeElement type) {
+			if (!type.getKind().isInterface())
+				return false;
+			int abstractMethods = 0;
+			for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+				if (method.getModifiers().contains(Modifier.ABSTRACT))
+					abstractMethods++;
+			}
+			return abstractMethods == 1;
+		}
+	}
+
+	private final ClassPath classPath;
+	private final ClassFileTypes types = new ClassFileTypes(this);
+	private final Elements elements = new ClassFileElements();
+	private final Map<String, ClassFileTypeElement> classes = new HashMap<String, ClassFileTypeElement>();
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import static com.jni.tools.classfile.ClassFile.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ElementVisitor;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * A method or constructor read from a class file.  Parameters are named by
+ * the MethodParameters attribute (javac -parameters) or arg0, arg1, ...
+ */
+final class ClassFileExecutableElement extends ClassFileElement implements ExecutableElement {
+	ClassFileExecutableElement(ClassFileEnvironment env, ClassFileTypeElement owner, Member method) {
+		super(env, method.access, method.annotations);
+		this.owner = owner;
+		this.method = method;
+		this.type = env.getTypeUtils().getMethodType(method.descriptor);
+
+		List<VariableElement> params = new ArrayList<VariableElement>();
+		List<? extends TypeMirror> types = type.getParameterTypes();
+		for (int i = 0; i < types.size(); i++) {
+			String name = null;
+			if (method.parameterNames != null && i < method.parameterNames.length)
+				name = method.parameterNames[i];
+			params.add(new ClassFileVariableElement(env, this, name == null ? "arg" + i : name, types.get(i)));
+		}
+		this.parameters = Collections.unmodifiableList(params);
+	}
+
+	public TypeMirror asType() {
+		return type;
+	}
+
+	public ElementKind getKind() {
+		return method.name.equals("<init>") ? ElementKind.CONSTRUCTOR : ElementKind.METHOD;
+	}
+
+	@Override
+	void addModifiers(Set<Modifier> modifiers) {
+		if ((access & ACC_SYNCHRONIZED) != 0)
+			modifiers.add(Modifier.SYNCHRONIZED);
+		if ((access & ACC_NATIVE) != 0)
+			modifiers.add(Modifier.NATIVE);
+		if ((access & ACC_STRICT) != 0)
+			modifiers.add(Modifier.STRICTFP);
+		if (isDefault())
+			modifiers.add(Modifier.DEFAULT);
+	}
+
+	public Name getSimpleName() {
+		return new ClassFileName(method.name);
+	}
+
+	public Element getEnclosingElement() {
+		return owner;
+	}
+
+	public List<? extends Element> getEnclosedElements() {
+		return Collections.emptyList();
+	}
+
+	public List<? extends TypeParameterElement> getTypeParameters() {
+		return Collections.emptyList();
+	}
+
+	public TypeMirror getReturnType() {
+		return type.getReturnType();
+	}
+
+	public List<? extends VariableElement> getParameters() {
+		return parameters;
+	}
+
+	public TypeMirror getReceiverType() {
+		return env.getTypeUtils().getNoType(TypeKind.NONE);
+	}
+
+	public boolean isVarArgs() {
+		return (access & ACC_VARARGS) != 0;
+	}
+
+	public boolean isDefault() {
+		return owner.getKind().isInterface() && (access & (ACC_ABSTRACT | ACC_STATIC | ACC_PRIVATE)) == 0;
+	}
+
+	/* the Exceptions attribute is not read */
+	public List<? extends TypeMirror> getThrownTypes() {
+		return Collections.emptyList();
+	}
+
+	public AnnotationValue getDefaultValue() {
+		return null;
+	}
+
+	public <R, P> R accept(ElementVisitor<R, P> v, P p) {
+		return v.visitExecutable(this, p);
+	}
+
+	@Override
+	public String toString() {
+		return method.name + type;
+	}
+
+	private final ClassFileTypeElement owner;
+	private final Member method;
+	private final ExecutableType type;
+	private final List<VariableElement> parameters;
+}
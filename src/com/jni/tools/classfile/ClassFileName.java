@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import javax.lang.model.element.Name;
+
+/**
+ * A Name backed by a String.
+ */
+final class ClassFileName implements Name {
+	ClassFileName(String name) {
+		this.name = name;
+	}
+
+	public boolean contentEquals(CharSequence cs) {
+		return name.contentEquals(cs);
+	}
+
+	public int length() {
+		return name.length();
+	}
+
+	public char charAt(int index) {
+		return name.charAt(index);
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		return name.subSequence(start, end);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof ClassFileName && ((ClassFileName) obj).name.equals(name);
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private final String name;
+}
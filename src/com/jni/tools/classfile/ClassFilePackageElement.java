@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ElementVisitor;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * A package, known only by name: its classes are not listed.
+ */
+final class ClassFilePackageElement extends ClassFileElement implements PackageElement {
+	ClassFilePackageElement(ClassFileEnvironment env, String name) {
+		super(env, 0, Collections.<String, Map<String, Object>>emptyMap());
+		this.name = name;
+	}
+
+	public TypeMirror asType() {
+		return env.getTypeUtils().getNoType(TypeKind.PACKAGE);
+	}
+
+	public ElementKind getKind() {
+		return ElementKind.PACKAGE;
+	}
+
+	public Name getQualifiedName() {
+		return new ClassFileName(name);
+	}
+
+	public Name getSimpleName() {
+		return new ClassFileName(name.substring(name.lastIndexOf('.') + 1));
+	}
+
+	public List<? extends Element> getEnclosedElements() {
+		return Collections.emptyList();
+	}
+
+	public boolean isUnnamed() {
+		return name.isEmpty();
+	}
+
+	public Element getEnclosingElement() {
+		return null;
+	}
+
+	public <R, P> R accept(ElementVisitor<R, P> v, P p) {
+		return v.visitPackage(this, p);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	private final String name;
+}
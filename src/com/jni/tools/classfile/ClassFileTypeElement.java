@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import static com.jni.tools.classfile.ClassFile.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ElementVisitor;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * A class read from a class file.  Members are read with the class, but
+ * member types and supertypes are only loaded when asked for.  Generic
+ * signatures are not read: every type is its own erasure.
+ */
+final class ClassFileTypeElement extends ClassFileElement implements TypeElement {
+	ClassFileTypeElement(ClassFileEnvironment env, ClassFile classFile) {
+		super(env, accessOf(classFile), classFile.annotations);
+		this.classFile = classFile;
+		for (InnerClass ic : classFile.innerClasses) {
+			if (ic.inner.equals(classFile.name))
+				self = ic;
+		}
+	}
+
+	/*
+	 * Nested classes are public or package private in the class file; their
+	 * declared access is in the InnerClasses entry.
+	 */
+	private static int accessOf(ClassFile classFile) {
+		for (InnerClass ic : classFile.innerClasses) {
+			if (ic.inner.equals(classFile.name))
+				return ic.access;
+		}
+		return classFile.access;
+	}
+
+	/*
+	 * The internal name, a/b/C$D.
+	 */
+	String getInternalName() {
+		return classFile.name;
+	}
+
+	public TypeMirror asType() {
+		return env.getTypeUtils().getDeclaredType(classFile.name);
+	}
+
+	public ElementKind getKind() {
+		if ((classFile.access & ACC_ANNOTATION) != 0)
+			return ElementKind.ANNOTATION_TYPE;
+		if ((classFile.access & ACC_INTERFACE) != 0)
+			return ElementKind.INTERFACE;
+		if ((classFile.access & ACC_ENUM) != 0)
+			return ElementKind.ENUM;
+		if (RECORD != null && "java/lang/Record".equals(classFile.superName))
+			return RECORD;
+		return ElementKind.CLASS;
+	}
+
+	/* ElementKind.RECORD only exists from Java 16 on */
+	private static final ElementKind RECORD = recordKind();
+
+	private static ElementKind recordKind() {
+		try {
+			return ElementKind.valueOf("RECORD");
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public NestingKind getNestingKind() {
+		if (self == null)
+			return NestingKind.TOP_LEVEL;
+		if (self.outer != null)
+			return NestingKind.MEMBER;
+		return (self.simpleName == null ? NestingKind.ANONYMOUS : NestingKind.LOCAL);
+	}
+
+	public Name getSimpleName() {
+		if (self != null)
+			return new ClassFileName(self.simpleName == null ? "" : self.simpleName);
+		return new ClassFileName(classFile.name.substring(classFile.name.lastIndexOf('/') + 1));
+	}
+
+	public Name getQualifiedName() {
+		Element enclosing = getEnclosingElement();
+		if (enclosing instanceof TypeElement)
+			return new ClassFileName(((TypeElement) enclosing).getQualifiedName() + "." + getSimpleName());
+		if (getNestingKind() != NestingKind.TOP_LEVEL)
+			return new ClassFileName("");
+		return new ClassFileName(classFile.name.replace('/', '.'));
+	}
+
+	public Element getEnclosingElement() {
+		if (self != null && self.outer != null)
+			return env.getTypeElementByInternalName(self.outer);
+		int slash = classFile.name.lastIndexOf('/');
+		return env.getElementUtils().getPackageElement(slash < 0 ? "" : classFile.name.substring(0, slash).replace('/', '.'));
+	}
+
+	/*
+	 * Fields, then methods and constructors, then member types, each in class
+	 * file order (which javac keeps in source order).  Synthetic members and
+	 * static initializers are left out like javac's model does.
+	 */
+	public synchronized List<? extends Element> getEnclosedElements() {
+		if (enclosed == null) {
+			List<Element> elements = new ArrayList<Element>();
+			for (Member field : classFile.fields) {
+				if ((field.access & ACC_SYNTHETIC) == 0)
+					elements.add(new ClassFileVariableElement(env, this, field));
+			}
+			for (Member method : classFile.methods) {
+				if ((method.access & ACC_SYNTHETIC) == 0 && !method.name.equals("<clinit>"))
+					elements.add(new ClassFileExecutableElement(env, this, method));
+			}
+			for (InnerClass ic : classFile.innerClasses) {
+				if (classFile.name.equals(ic.outer) && (ic.access & ACC_SYNTHETIC) == 0) {
+					TypeElement member = env.getTypeElementByInternalName(ic.inner);
+					if (member != null)
+						elements.add(member);
+				}
+			}
+			enclosed = Collections.unmodifiableList(elements);
+		}
+		return enclosed;
+	}
+
+	public TypeMirror getSuperclass() {
+		if (classFile.superName == null || (classFile.access & ACC_INTERFACE) != 0)
+			return env.getTypeUtils().getNoType(TypeKind.NONE);
+		return env.getTypeUtils().getDeclaredType(classFile.superName);
+	}
+
+	public List<? extends TypeMirror> getInterfaces() {
+		List<TypeMirror> interfaces = new ArrayList<TypeMirror>();
+		for (String name : classFile.interfaces)
+			interfaces.add(env.getTypeUtils().getDeclaredType(name));
+		return interfaces;
+	}
+
+	public List<? extends TypeParameterElement> getTypeParameters() {
+		return Collections.emptyList();
+	}
+
+	public <R, P> R accept(ElementVisitor<R, P> v, P p) {
+		return v.visitType(this, p);
+	}
+
+	@Override
+	public String toString() {
+		return getQualifiedName().toString();
+	}
+
+	private final ClassFile classFile;
+	private InnerClass self;
+	private List<Element> enclosed;
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.NoType;
+import javax.lang.model.type.NullType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.TypeVisitor;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Types;
+
+/**
+ * Types made from descriptors.  Everything is already erased, so erasure is
+ * the identity and type arguments are always empty.  Only the relations the
+ * generator needs (sameness, subtyping, assignability without conversions
+ * beyond widening references) are implemented.
+ */
+final class ClassFileTypes implements Types {
+	ClassFileTypes(ClassFileEnvironment env) {
+		this.env = env;
+		for (TypeKind kind : new TypeKind[] { TypeKind.BOOLEAN, TypeKind.BYTE, TypeKind.CHAR, TypeKind.SHORT,
+				TypeKind.INT, TypeKind.LONG, TypeKind.FLOAT, TypeKind.DOUBLE })
+			primitives.put(kind, new Primitive(kind));
+		for (TypeKind kind : new TypeKind[] { TypeKind.VOID, TypeKind.NONE, TypeKind.PACKAGE })
+			noTypes.put(kind, new None(kind));
+	}
+
+	/*
+	 * The type of a field descriptor, e.g. [Ljava/lang/String;
+	 */
+	TypeMirror getType(String descriptor) {
+		int[] pos = { 0 };
+		return parse(descriptor, pos);
+	}
+
+	/*
+	 * The type of a method descriptor, e.g. (I[J)V
+	 */
+	ExecutableType getMethodType(String descriptor) {
+		int[] pos = { 1 };
+		List<TypeMirror> parameters = new ArrayList<TypeMirror>();
+		while (descriptor.charAt(pos[0]) != ')')
+			parameters.add(parse(descriptor, pos));
+		pos[0]++;
+		return new Executable(parameters, parse(descriptor, pos));
+	}
+
+	private TypeMirror parse(String descriptor, int[] pos) {
+		char c = descriptor.charAt(pos[0]++);
+		switch (c) {
+		case 'Z': return primitives.get(TypeKind.BOOLEAN);
+		case 'B': return primitives.get(TypeKind.BYTE);
+		case 'C': return primitives.get(TypeKind.CHAR);
+		case 'S': return primitives.get(TypeKind.SHORT);
+		case 'I': return primitives.get(TypeKind.INT);
+		case 'J': return primitives.get(TypeKind.LONG);
+		case 'F': return primitives.get(TypeKind.FLOAT);
+		case 'D': return primitives.get(TypeKind.DOUBLE);
+		case 'V': return noTypes.get(TypeKind.VOID);
+		case '[': return new Arr(parse(descriptor, pos));
+		case 'L': {
+			int end = descriptor.indexOf(';', pos[0]);
+			String name = descriptor.substring(pos[0], end);
+			pos[0] = end + 1;
+			return getDeclaredType(name);
+		}
+		default:
+			throw new IllegalArgumentException("bad descriptor " + descriptor);
+		}
+	}
+
+	/*
+	 * The type of the class with the given internal name; the class itself is
+	 * only loaded when its element is needed.
+	 */
+	synchronized DeclaredType getDeclaredType(String internalName) {
+		Declared type = declared.get(internalName);
+		if (type == null) {
+			type = new Declared(internalName);
+			declared.put(internalName, type);
+		}
+		return type;
+	}
+
+	public Element asElement(TypeMirror t) {
+		return (t instanceof Declared ? ((Declared) t).asElement() : null);
+	}
+
+	public boolean isSameType(TypeMirror t1, TypeMirror t2) {
+		return t1.equals(t2);
+	}
+
+	public boolean isSubtype(TypeMirror t1, TypeMirror t2) {
+		if (t1.equals(t2))
+			return true;
+		if (t1.getKind() == TypeKind.ARRAY) {
+			if (t2.getKind() == TypeKind.ARRAY) {
+				TypeMirror c1 = ((ArrayType) t1).getComponentType();
+				TypeMirror c2 = ((ArrayType) t2).getComponentType();
+				return !c1.getKind().isPrimitive() && !c2.getKind().isPrimitive() && isSubtype(c1, c2);
+			}
+			String name = (t2 instanceof Declared ? ((Declared) t2).internalName : null);
+			return "java/lang/Object".equals(name) || "java/lang/Cloneable".equals(name) || "java/io/Serializable".equals(name);
+		}
+		if (t1.getKind() != TypeKind.DECLARED || t2.getKind() != TypeKind.DECLARED)
+			return false;
+		if (((Declared) t2).internalName.equals("java/lang/Object"))
+			return true;
+		for (TypeMirror supertype : directSupertypes(t1)) {
+			if (isSubtype(supertype, t2))
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isAssignable(TypeMirror t1, TypeMirror t2) {
+		return isSubtype(t1, t2);
+	}
+
+	public boolean contains(TypeMirror t1, TypeMirror t2) {
+		return isSameType(t1, t2);
+	}
+
+	public boolean isSubsignature(ExecutableType m1, ExecutableType m2) {
+		return m1.getParameterTypes().equals(m2.getParameterTypes());
+	}
+
+	public List<? extends TypeMirror> directSupertypes(TypeMirror t) {
+		if (!(t instanceof Declared))
+			return Collections.emptyList();
+		TypeElement element = ((Declared) t).asElement();
+		List<TypeMirror> supertypes = new ArrayList<TypeMirror>();
+		if (element.getSuperclass().getKind() != TypeKind.NONE)
+			supertypes.add(element.getSuperclass());
+		supertypes.addAll(element.getInterfaces());
+		return supertypes;
+	}
+
+	public TypeMirror erasure(TypeMirror t) {
+		return t;
+	}
+
+	public TypeElement boxedClass(PrimitiveType p) {
+		String name;
+		switch (p.getKind()) {
+		case BOOLEAN: name = "java.lang.Boolean"; break;
+		case BYTE: name = "java.lang.Byte"; break;
+		case CHAR: name = "java.lang.Character"; break;
+		case SHORT: name = "java.lang.Short"; break;
+		case INT: name = "java.lang.Integer"; break;
+		case LONG: name = "java.lang.Long"; break;
+		case FLOAT: name = "java.lang.Float"; break;
+		default: name = "java.lang.Double"; break;
+		}
+		return env.getElementUtils().getTypeElement(name);
+	}
+
+	public PrimitiveType unboxedType(TypeMirror t) {
+		if (t instanceof Declared) {
+			for (PrimitiveType p : primitives.values()) {
+				if (boxedClass(p).asType().equals(t))
+					return p;
+			}
+		}
+		throw new IllegalArgumentException(String.valueOf(t));
+	}
+
+	public TypeMirror capture(TypeMirror t) {
+		return t;
+	}
+
+	public PrimitiveType getPrimitiveType(TypeKind kind) {
+		PrimitiveType type = primitives.get(kind);
+		if (type == null)
+			throw new IllegalArgumentException(kind.toString());
+		return type;
+	}
+
+	public NullType getNullType() {
+		throw new UnsupportedOperationException();
+	}
+
+	public NoType getNoType(TypeKind kind) {
+		NoType type = noTypes.get(kind);
+		if (type == null)
+			throw new IllegalArgumentException(kind.toString());
+		return type;
+	}
+
+	public ArrayType getArrayType(TypeMirror componentType) {
+		return new Arr(componentType);
+	}
+
+	public WildcardType getWildcardType(TypeMirror extendsBound, TypeMirror superBound) {
+		throw new UnsupportedOperationException();
+	}
+
+	public DeclaredType getDeclaredType(TypeElement typeElem, TypeMirror... typeArgs) {
+		return (DeclaredType) typeElem.asType();
+	}
+
+	public DeclaredType getDeclaredType(DeclaredType containing, TypeElement typeElem, TypeMirror... typeArgs) {
+		return (DeclaredType) typeElem.asType();
+	}
+
+	public TypeMirror asMemberOf(DeclaredType containing, Element element) {
+		return element.asType();
+	}
+
+	/*
+	 * Types have no annotations.
+	 */
+	private static abstract class Type implements TypeMirror {
+		Type(TypeKind kind) {
+			this.kind = kind;
+		}
+
+		public TypeKind getKind() {
+			return kind;
+		}
+
+		public List<? extends AnnotationMirror> getAnnotationMirrors() {
+			return Collections.emptyList();
+		}
+
+		public <A extends Annotation> A getAnnotation(Class<A> annotationType) {
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public <A extends Annotation> A[] getAnnotationsByType(Class<A> annotationType) {
+			return (A[]) Array.newInstance(annotationType, 0);
+		}
+
+		final TypeKind kind;
+	}
+
+	private static final class Primitive extends Type implements PrimitiveType {
+		Primitive(TypeKind kind) {
+			super(kind);
+		}
+
+		public <R, P> R accept(TypeVisitor<R, P> v, P p) {
+			return v.visitPrimitive(this, p);
+		}
+
+		@Override
+		public String toString() {
+			return kind.name().toLowerCase();
+		}
+	}
+
+	private static final class None extends Type implements NoType {
+		None(TypeKind kind) {
+			super(kind);
+		}
+
+		public <R, P> R accept(TypeVisitor<R, P> v, P p) {
+			return v.visitNoType(this, p);
+		}
+
+		@Override
+		public String toString() {
+			return kind.name().toLowerCase();
+		}
+	}
+
+	private static final class Arr extends Type implements ArrayType {
+		Arr(TypeMirror componentType) {
+			super(TypeKind.ARRAY);
+			this.componentType = componentType;
+		}
+
+		public TypeMirror getComponentType() {
+			return componentType;
+		}
+
+		public <R, P> R accept(TypeVisitor<R, P> v, P p) {
+			return v.visitArray(this, p);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Arr && ((Arr) obj).componentType.equals(componentType);
+		}
+
+		@Override
+		public int hashCode() {
+			return componentType.hashCode() * 31;
+		}
+
+		@Override
+		public String toString() {
+			return componentType + "[]";
+		}
+
+		private final TypeMirror componentType;
+	}
+
+	private final class Declared extends Type implements DeclaredType {
+		Declared(String internalName) {
+			super(TypeKind.DECLARED);
+			this.internalName = internalName;
+		}
+
+		public TypeElement asElement() {
+			TypeElement element = env.getTypeElementByInternalName(internalName);
+			if (element == null)
+				throw new MissingClassException(internalName.replace('/', '.'));
+			return element;
+		}
+
+		public TypeMirror getEnclosingType() {
+			return getNoType(TypeKind.NONE);
+		}
+
+		public List<? extends TypeMirror> getTypeArguments() {
+			return Collections.emptyList();
+		}
+
+		public <R, P> R accept(TypeVisitor<R, P> v, P p) {
+			return v.visitDeclared(this, p);
+		}
+
+		/* Instances are unique per name, see getDeclaredType */
+
+		/*
+		 * The canonical name, as javac prints it: a.b.C.D
+		 */
+		@Override
+		public String toString() {
+			TypeElement element = env.getTypeElementByInternalName(internalName);
+			if (element != null)
+				return element.getQualifiedName().toString();
+			return internalName.replace('/', '.').replace('$', '.');
+		}
+
+		final String internalName;
+	}
+
+	private final class Executable extends Type implements ExecutableType {
+		Executable(List<TypeMirror> parameterTypes, TypeMirror returnType) {
+			super(TypeKind.EXECUTABLE);
+			this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+			this.returnType = returnType;
+		}
+
+		public List<? extends TypeVariable> getTypeVariables() {
+			return Collections.emptyList();
+		}
+
+		public TypeMirror getReturnType() {
+			return returnType;
+		}
+
+		public List<? extends TypeMirror> getParameterTypes() {
+			return parameterTypes;
+		}
+
+		public TypeMirror getReceiverType() {
+			return getNoType(TypeKind.NONE);
+		}
+
+		public List<? extends TypeMirror> getThrownTypes() {
+			return Collections.emptyList();
+		}
+
+		public <R, P> R accept(TypeVisitor<R, P> v, P p) {
+			return v.visitExecutable(this, p);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(");
+			String sep = "";
+			for (TypeMirror t : parameterTypes) {
+				sb.append(sep).append(t);
+				sep = ",";
+			}
+			return sb.append(")").append(returnType).toString();
+		}
+
+		private final List<TypeMirror> parameterTypes;
+		private final TypeMirror returnType;
+	}
+
+	private final ClassFileEnvironment env;
+	private final Map<TypeKind, PrimitiveType> primitives = new EnumMap<TypeKind, PrimitiveType>(TypeKind.class);
+	private final Map<TypeKind, NoType> noTypes = new EnumMap<TypeKind, NoType>(TypeKind.class);
+	private final Map<String, Declared> declared = new HashMap<String, Declared>();
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import static com.jni.tools.classfile.ClassFile.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ElementVisitor;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.Name;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * A field or a method parameter read from a class file.
+ */
+final class ClassFileVariableElement extends ClassFileElement implements VariableElement {
+	ClassFileVariableElement(ClassFileEnvironment env, ClassFileTypeElement owner, Member field) {
+		super(env, field.access, field.annotations);
+		this.owner = owner;
+		this.name = field.name;
+		this.type = env.getTypeUtils().getType(field.descriptor);
+		this.kind = ((field.access & ACC_ENUM) != 0 ? ElementKind.ENUM_CONSTANT : ElementKind.FIELD);
+		this.constantValue = ((field.access & ACC_FINAL) != 0 ? field.constantValue : null);
+	}
+
+	ClassFileVariableElement(ClassFileEnvironment env, ClassFileExecutableElement owner, String name, TypeMirror type) {
+		super(env, 0, Collections.<String, Map<String, Object>>emptyMap());
+		this.owner = owner;
+		this.name = name;
+		this.type = type;
+		this.kind = ElementKind.PARAMETER;
+		this.constantValue = null;
+	}
+
+	public TypeMirror asType() {
+		return type;
+	}
+
+	public ElementKind getKind() {
+		return kind;
+	}
+
+	@Override
+	void addModifiers(Set<Modifier> modifiers) {
+		if ((access & ACC_VOLATILE) != 0)
+			modifiers.add(Modifier.VOLATILE);
+		if ((access & ACC_TRANSIENT) != 0)
+			modifiers.add(Modifier.TRANSIENT);
+	}
+
+	public Name getSimpleName() {
+		return new ClassFileName(name);
+	}
+
+	public Element getEnclosingElement() {
+		return owner;
+	}
+
+	public List<? extends Element> getEnclosedElements() {
+		return Collections.emptyList();
+	}
+
+	public Object getConstantValue() {
+		return constantValue;
+	}
+
+	public <R, P> R accept(ElementVisitor<R, P> v, P p) {
+		return v.visitVariable(this, p);
+	}
+
+	private final Element owner;
+	private final String name;
+	private final TypeMirror type;
+	private final ElementKind kind;
+	private final Object constantValue;
+}
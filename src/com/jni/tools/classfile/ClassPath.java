@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Directories and jars holding class files, looked up by internal name
+ * (a/b/C$D) or scanned from end to end.  Platform classes come from the
+ * running JVM, so no -bootclasspath is needed for java.lang.String and
+ * friends.  Jars stay open until close().
+ */
+public class ClassPath implements Closeable {
+	/*
+	 * Receives the bytes of a class file while scanning; the buffer is reused
+	 * for the next class.
+	 */
+	public interface Visitor {
+		void visit(byte[] bytes, int length) throws IOException;
+	}
+
+	public ClassPath(Iterable<? extends File> roots) {
+		if (roots != null) {
+			for (File root : roots)
+				this.roots.add(root);
+		}
+	}
+
+	/*
+	 * Returns the class file with the given internal name, or null.
+	 */
+	byte[] find(String name) throws IOException {
+		String path = name + ".class";
+		for (File root : roots) {
+			if (root.isDirectory()) {
+				File file = new File(root, path.replace('/', File.separatorChar));
+				if (file.isFile()) {
+					InputStream in = new FileInputStream(file);
+					try {
+						return readFully(in, (int) file.length());
+					} finally {
+						in.close();
+					}
+				}
+			} else {
+				ZipFile zip = open(root);
+				ZipEntry entry = (zip == null ? null : zip.getEntry(path));
+				if (entry != null) {
+					InputStream in = zip.getInputStream(entry);
+					try {
+						return readFully(in, (int) entry.getSize());
+					} finally {
+						in.close();
+					}
+				}
+			}
+		}
+
+		/* .class resources are never encapsulated, even in named modules */
+		InputStream in = ClassLoader.getSystemResourceAsStream(path);
+		if (in != null) {
+			try {
+				return readFully(in, -1);
+			} finally {
+				in.close();
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Hands every class file of every root to the visitor, one at a time, in a
+	 * single buffer.
+	 */
+	public void scan(Visitor visitor) throws IOException {
+		for (File root : roots) {
+			if (root.isDirectory()) {
+				scanDirectory(root, visitor);
+			} else {
+				ZipFile zip = open(root);
+				if (zip == null)
+					continue;
+				for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+					ZipEntry entry = e.nextElement();
+					if (!isClassFile(entry.getName()))
+						continue;
+					InputStream in = zip.getInputStream(entry);
+					try {
+						int length = read(in, (int) entry.getSize());
+						visitor.visit(buffer, length);
+					} finally {
+						in.close();
+					}
+				}
+			}
+		}
+	}
+
+	private void scanDirectory(File dir, Visitor visitor) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) {
+				scanDirectory(file, visitor);
+			} else if (isClassFile(file.getName())) {
+				InputStream in = new FileInputStream(file);
+				try {
+					int length = read(in, (int) file.length());
+					visitor.visit(buffer, length);
+				} finally {
+					in.close();
+				}
+			}
+		}
+	}
+
+	/* module-info and package-info have nothing for us */
+	private static boolean isClassFile(String name) {
+		return name.endsWith(".class") && !name.endsWith("-info.class");
+	}
+
+	private ZipFile open(File root) throws IOException {
+		ZipFile zip = jars.get(root);
+		if (zip == null && !jars.containsKey(root)) {
+			/* a missing path element is ignored, like javac does */
+			zip = (root.isFile() ? new ZipFile(root) : null);
+			jars.put(root, zip);
+		}
+		return zip;
+	}
+
+	/*
+	 * Lookups may happen while a visitor still works on the scan buffer.
+	 */
+	private static byte[] readFully(InputStream in, int size) throws IOException {
+		byte[] bytes = new byte[size > 0 ? size : 8 * 1024];
+		int length = 0;
+		while (true) {
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			int n = in.read(bytes, length, bytes.length - length);
+			if (n < 0)
+				return (length == bytes.length ? bytes : Arrays.copyOf(bytes, length));
+			length += n;
+		}
+	}
+
+	/*
+	 * Reads the stream into the shared buffer, growing it as needed; size is
+	 * only a hint.
+	 */
+	private int read(InputStream in, int size) throws IOException {
+		if (size > buffer.length)
+			buffer = new byte[Math.max(size, buffer.length * 2)];
+		int length = 0;
+		while (true) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			int n = in.read(buffer, length, buffer.length - length);
+			if (n < 0)
+				return length;
+			length += n;
+		}
+	}
+
+	public void close() throws IOException {
+		IOException error = null;
+		for (ZipFile zip : jars.values()) {
+			try {
+				if (zip != null)
+					zip.close();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		jars.clear();
+		if (error != null)
+			throw error;
+	}
+
+	private final List<File> roots = new ArrayList<File>();
+	private final Map<File, ZipFile> jars = new LinkedHashMap<File, ZipFile>();
+	private byte[] buffer = new byte[64 * 1024];
+}
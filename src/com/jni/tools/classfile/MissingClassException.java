@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.classfile;
+
+/**
+ * Thrown when a class that is needed, such as the type of a method parameter,
+ * is on neither the class path nor the platform.  The class-file counterpart
+ * of javac's CompletionFailure.
+ */
+public class MissingClassException extends RuntimeException {
+	private static final long serialVersionUID = -3719408135925347521L;
+
+	MissingClassException(String className) {
+		super(className);
+		this.className = className;
+	}
+
+	/*
+	 * The binary name of the class, a.b.C$D.
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	private final String className;
+}
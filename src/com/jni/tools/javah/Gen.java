@@ -0,0 +1,976 @@
+/*
+ * Copyright (c) 2002, 2009, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package com.jni.tools.javah;
+
+import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * An abstraction for generating support files required by native methods.
+ * Subclasses are for specific native interfaces. At the time of its
+ * original writing, this interface is rich enough to support JNI and the
+ * old 1.0-style native method interface.
+ *
+ * <p><b>This is NOT part of any supported API.
+ * If you write code that depends on this, you do so at your own
+ * risk.  This code and its internal interfaces are subject to change
+ * or deletion without notice.</b></p>
+ *
+ * @author  Sucheta Dambalkar(Revised)
+ */
+public abstract class Gen {
+	protected String lineSeparator = System.getProperty("line.separator");
+
+	protected ProcessingEnvironment processingEnvironment;
+	protected Types types;
+	protected Elements elems;
+	protected Mangle mangler;
+	protected Util util;
+
+	protected Gen(Util util) {
+		this.util = util;
+	}
+
+	/*
+	 * List of classes for which we must generate output.
+	 */
+	protected Set<TypeElement> classes;
+	protected String pch;
+	protected int unityFiles = 0;
+	protected int threads = 1;
+	protected boolean prune = true;
+	static private final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+	/*
+	 * Manifest entry for the umbrella header and unity files.
+	 */
+	static private final String UNITY_ENTRY = "<unity>";
+
+
+	/**
+	 * Override this abstract method, generating content for the class declaration (i.e. header)
+	 * of the named class into the outputstream.
+	 */
+	protected abstract void writeDeclaration(OutputStream o, TypeElement clazz) throws Util.Exit;
+
+	/**
+	 * Override this abstract method, generating content for the class definition (i.e. cpp)
+	 * of the named class into the outputstream.
+	 */
+	protected abstract void writeDefinition(OutputStream o, TypeElement clazz) throws Util.Exit;
+
+	/**
+	 * Override this abstract method, describing everything about the named
+	 * class that affects its generated files (annotations, signatures and
+	 * the generator version).  Classes whose description hashes the same
+	 * as in the previous run are not generated again.
+	 */
+	protected abstract String describe(TypeElement clazz) throws Util.Exit;
+
+	/**
+	 * Override this method to generate no cpp file for the named class, when
+	 * its header holds everything.
+	 */
+	protected boolean hasDefinition(TypeElement clazz) throws Util.Exit {
+		return true;
+	}
+
+	/**
+	 * Override this method to name the Java classes generated along with the
+	 * named class, for the native code to call.  Their sources go under their
+	 * package path in the output directory, or are created through the Filer
+	 * (see runSources) so that they are compiled with the annotated classes.
+	 */
+	protected List<String> getSources(TypeElement clazz) throws Util.Exit {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Override this method to name the other classes whose changes may change
+	 * the files of the named class (see getDependencyNames).
+	 */
+	protected Set<TypeElement> getDependencies(TypeElement clazz) throws Util.Exit {
+		return Collections.emptySet();
+	}
+
+	/**
+	 * Override this method, generating the named Java class of getSources
+	 * into the outputstream.
+	 */
+	protected void writeSource(OutputStream o, TypeElement clazz, String className) throws Util.Exit {
+	}
+
+	/**
+	 * Override this method to provide a list of #include statements
+	 * required by the native interface.
+	 */
+	protected abstract String getIncludes();
+
+	/*
+	 * Output location.
+	 */
+	protected JavaFileManager fileManager;
+
+	public void setFileManager(JavaFileManager fm) {
+		fileManager = fm;
+	}
+
+	/*
+	 * When running inside a normal compile, files can instead be created through
+	 * the Filer so that the build tool knows about them.
+	 */
+	protected Filer filer;
+
+	public void setFiler(Filer filer) {
+		this.filer = filer;
+	}
+
+	public void setClasses(Set<TypeElement> classes) {
+		this.classes = classes;
+	}
+
+	/*
+	 * The qualified names of the dependencies of each class of the last run.
+	 */
+	protected Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+	/**
+	 * The qualified names of the dependencies of each class the last run
+	 * generated, for a later partial run to regenerate the dependents of the
+	 * classes it is given.
+	 */
+	public Map<String, Set<String>> getDependencyNames() {
+		return dependencies;
+	}
+	
+	public void setPrecompiledHeader(String pch) {
+		this.pch = pch;
+	}
+
+	/**
+	 * Number of threads used to compare and write the generated files.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * By default the classes given are all the classes generated into the
+	 * output directory, and files of any other class recorded in the manifest
+	 * are deleted.  A partial run (prune off) only replaces what it knows about:
+	 * the given classes and the classes nested in their outermost classes.
+	 */
+	public void setPrune(boolean prune) {
+		this.prune = prune;
+	}
+
+	/**
+	 * When greater than zero, the definitions of all classes are aggregated
+	 * into this many "unity" cpp files (plus one umbrella header including
+	 * every class header) instead of one cpp file per class.
+	 */
+	public void setUnityFiles(int count) {
+		this.unityFiles = count;
+	}
+
+	public void setProcessingEnvironment(ProcessingEnvironment pEnv) {
+		processingEnvironment = pEnv;
+		elems = pEnv.getElementUtils();
+		types = pEnv.getTypeUtils();
+		mangler = new Mangle(elems, types);
+	}
+
+	/*
+	 * Smartness with generated files.
+	 */
+	protected boolean force = false;
+
+	public void setForce(boolean state) {
+		force = state;
+	}
+
+	/**
+	 * We explicitly need to write ASCII files because that is what C
+	 * compilers understand.
+	 */
+	protected PrintWriter wrapWriter(OutputStream o) throws Util.Exit {
+		try {
+			return new PrintWriter(new OutputStreamWriter(o, "ISO8859_1"), true);
+		} catch (UnsupportedEncodingException use) {
+			util.bug("encoding.iso8859_1.not.found");
+			return null; /* dead code */
+		}
+	}
+
+	/**
+	 * Java sources, unlike the C++ files, are compiled by javac, which reads
+	 * them as UTF-8 (or is told so).
+	 */
+	protected PrintWriter wrapSourceWriter(OutputStream o) {
+		return new PrintWriter(new OutputStreamWriter(o, Charset.forName("UTF-8")), true);
+	}
+
+	/**
+	 * After initializing state of an instance, use this method to start
+	 * processing.
+	 *
+	 * Buffer size chosen as an approximation from a single sampling of:
+	 *         expr `du -sk` / `ls *.h | wc -l`
+	 */
+	public void run() throws IOException, ClassNotFoundException, Util.Exit {
+		/*
+		 * Emission stays on this thread since the javac symbol table is not
+		 * thread safe; only comparing and writing the files is handed to the pool.
+		 */
+		if (filer != null) {
+			runWithFiler();
+			return;
+		}
+
+		/* The unity files need every class, which a partial run does not have */
+		if (!prune && unityFiles > 0)
+			util.error("unity.needs.all.classes");
+
+		Manifest previous = Manifest.read(getFileObject(manifestFileName()));
+		Manifest current = new Manifest();
+		String options = getClass().getName() + " pch=" + pch + " unity=" + unityFiles + lineSeparator;
+
+		OutputQueue queue = new OutputQueue();
+		try {
+			/* Each class goes to its own files, unless its model did not change... */
+			StringBuilder unityModel = new StringBuilder(options);
+			for (TypeElement type : classes) {
+				String name = type.getQualifiedName().toString();
+				String hash = Manifest.hash(options + describe(type));
+				Set<String> uses = new LinkedHashSet<String>();
+				for (TypeElement dependency : getDependencies(type))
+					uses.add(dependency.getQualifiedName().toString());
+				dependencies.put(name, uses);
+				List<String> files = new ArrayList<String>();
+				files.add(baseFileName(type) + ".h");
+				if (unityFiles == 0 && hasDefinition(type))
+					files.add(baseFileName(type) + ".cpp");
+				for (String source : getSources(type))
+					files.add(sourceFileName(source));
+				current.put(name, hash, files);
+				unityModel.append(name).append(' ').append(hash).append(lineSeparator);
+
+				if (isUpToDate(previous, name, hash, files)) {
+					queue.log("[No need to regenerate class " + name + "]");
+					continue;
+				}
+
+				/* The header file and declaration */
+				queue.add(emitHeader(type));
+				/* The cpp file and definition, unless aggregated below */
+				if (unityFiles == 0 && hasDefinition(type))
+					queue.add(emitCpp(type));
+				/* The Java classes the native code calls */
+				for (String source : getSources(type))
+					queue.add(emitSource(type, source));
+			}
+
+			/* ...except definitions, which are aggregated into the unity files */
+			if (unityFiles > 0) {
+				String hash = Manifest.hash(unityModel.toString());
+				List<String> files = new ArrayList<String>();
+				files.add(umbrellaFileName());
+				for (int i = 0; i < unityFiles; i++)
+					files.add(unityFileName(i));
+				current.put(UNITY_ENTRY, hash, files);
+
+				if (!isUpToDate(previous, UNITY_ENTRY, hash, files)) {
+					queue.add(emitUmbrellaHeader());
+					List<TypeElement> all = new ArrayList<TypeElement>(classes);
+					for (int i = 0; i < unityFiles; i++)
+						queue.add(emitUnityCpp(all, i));
+				}
+			}
+			queue.finish();
+		} finally {
+			queue.shutdown();
+		}
+
+		/*
+		 * A partial run only knows about the classes it was given (and the classes
+		 * nested in them); entries of other classes are carried over untouched.
+		 */
+		if (!prune) {
+			Set<String> scope = new HashSet<String>();
+			for (TypeElement type : classes)
+				scope.add(outermostClass(type).getQualifiedName().toString());
+			for (String name : previous.names()) {
+				if (current.get(name) == null && !scope.contains(name) && !isNestedIn(name, scope))
+					current.put(name, previous.get(name).hash, previous.get(name).files);
+			}
+		}
+
+		/* Delete files of classes (or unity files) that are no longer generated */
+		Set<String> live = current.files();
+		for (String filename : previous.files()) {
+			if (!live.contains(filename)) {
+				FileObject file = getFileObject(filename);
+				if (file.delete() && util.verbose)
+					util.log("[Deleting stale file " + file + "]");
+			}
+		}
+
+		/* Only record the new state once every file has been written */
+		Output manifest = new Output(getFileObject(manifestFileName()), current.toByteArray());
+		writeIfChanged(manifest);
+		logEvent(manifest);
+	}
+
+	private Element[] outermostClasses() {
+		Set<TypeElement> outermost = new LinkedHashSet<TypeElement>();
+		for (TypeElement type : classes)
+			outermost.add(outermostClass(type));
+		return outermost.toArray(new Element[outermost.size()]);
+	}
+
+	private static TypeElement outermostClass(TypeElement type) {
+		while (type.getEnclosingElement() instanceof TypeElement)
+			type = (TypeElement) type.getEnclosingElement();
+		return type;
+	}
+
+	private static boolean isNestedIn(String name, Set<String> scope) {
+		for (int i = name.lastIndexOf('.'); i > 0; i = name.lastIndexOf('.', i - 1)) {
+			if (scope.contains(name.substring(0, i)))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Files created through the Filer are new for this compilation, and the build
+	 * tool owns them: no manifest, no comparing, no pruning.  The Java sources
+	 * were created by runSources in earlier rounds.
+	 */
+	private void runWithFiler() throws IOException, ClassNotFoundException, Util.Exit {
+		List<Output> outputs = new ArrayList<Output>();
+		for (TypeElement type : classes) {
+			outputs.add(emitHeader(type));
+			if (unityFiles == 0 && hasDefinition(type))
+				outputs.add(emitCpp(type));
+		}
+		if (unityFiles > 0) {
+			outputs.add(emitUmbrellaHeader());
+			List<TypeElement> all = new ArrayList<TypeElement>(classes);
+			for (int i = 0; i < unityFiles; i++)
+				outputs.add(emitUnityCpp(all, i));
+		}
+
+		writeAll(outputs);
+	}
+
+	/**
+	 * With a Filer, creates the Java sources of the classes in the round that
+	 * found them, since sources created in the last round are not processed.
+	 * Each source is created once per compilation.
+	 */
+	public void runSources() throws IOException, Util.Exit {
+		if (filer == null)
+			return;
+		List<Output> outputs = new ArrayList<Output>();
+		for (TypeElement type : classes) {
+			for (String source : getSources(type)) {
+				if (createdSources.add(source))
+					outputs.add(emitSource(type, source));
+			}
+		}
+		writeAll(outputs);
+	}
+
+	private void writeAll(List<Output> outputs) throws IOException {
+		for (Output output : outputs) {
+			OutputStream out = output.file.openOutputStream();
+			out.write(output.content);
+			out.close();
+			if (util.verbose)
+				util.log("[Writing file " + output.file.getName() + "]");
+		}
+	}
+
+	private final Set<String> createdSources = new HashSet<String>();
+
+	/*
+	 * A class can be skipped when its hash is unchanged since the last run and
+	 * all its files are still there.  Force always generates.
+	 */
+	private boolean isUpToDate(Manifest previous, String name, String hash, List<String> files) throws IOException {
+		if (force)
+			return false;
+		Manifest.Entry entry = previous.get(name);
+		if (entry == null || !entry.hash.equals(hash) || !entry.files.equals(files))
+			return false;
+		for (String filename : files) {
+			if (getFileObject(filename).getLastModified() == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Generate the declaration for the given type into a C++ header file.
+	 */
+	private Output emitHeader(TypeElement clazz) throws IOException, ClassNotFoundException, Util.Exit {
+		String filename = baseFileName(clazz) + ".h";
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+		writeHeaderBegin(bout);
+		writeDeclaration(bout, clazz);
+		return new Output(getFileObject(filename, outermostClass(clazz)), bout.toByteArray());
+	}
+
+	/*
+	 * Generate the definition for the given type into a C++ code file.
+	 */
+	private Output emitCpp(TypeElement clazz) throws IOException, ClassNotFoundException, Util.Exit {
+		String filename = baseFileName(clazz) + ".cpp";
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+		writeCppBegin(bout, clazz);
+		writeDefinition(bout, clazz);
+		return new Output(getFileObject(filename, outermostClass(clazz)), bout.toByteArray());
+	}
+	
+	/*
+	 * Generate the named Java class for the given type.
+	 */
+	private Output emitSource(TypeElement clazz, String className) throws IOException, Util.Exit {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+		PrintWriter pw = wrapSourceWriter(bout);
+		pw.println(getFileTop());
+		writeSource(bout, clazz, className);
+		FileObject file = (filer != null
+				? filer.createSourceFile(className, outermostClass(clazz))
+				: getFileObject(sourceFileName(className)));
+		return new Output(file, bout.toByteArray());
+	}
+
+	private static String sourceFileName(String className) {
+		return className.replace('.', '/') + ".java";
+	}
+
+	/*
+	 * Generate a single header including the header of every class.
+	 */
+	private Output emitUmbrellaHeader() throws IOException, Util.Exit {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+		PrintWriter pw = wrapWriter(bout);
+		pw.println(getFileTop());
+		pw.println("#pragma once");
+		pw.println();
+		for (TypeElement type : classes)
+			pw.println("#include \"" + baseFileName(type) + ".h\"");
+		return new Output(getFileObject(umbrellaFileName(), outermostClasses()), bout.toByteArray());
+	}
+
+	/*
+	 * Generate unity file number index out of unityFiles contiguous chunks of all
+	 * classes.  The number of files is always unityFiles (some may be empty) so that
+	 * build scripts can list them statically.
+	 */
+	private Output emitUnityCpp(List<TypeElement> all, int index) throws IOException, Util.Exit {
+		int begin = (int) ((long) all.size() * index / unityFiles);
+		int end = (int) ((long) all.size() * (index + 1) / unityFiles);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
+		PrintWriter pw = wrapWriter(bout);
+		pw.println(getFileTop());
+		if (pch != null)
+			pw.println("#include \"" + pch + "\"");
+		pw.println("#include \"" + umbrellaFileName() + "\"");
+		pw.println();
+		for (TypeElement type : all.subList(begin, end))
+			writeDefinition(bout, type);
+		return new Output(getFileObject(unityFileName(index), outermostClasses()), bout.toByteArray());
+	}
+
+	protected String manifestFileName() {
+		return "ManagedPeers.manifest";
+	}
+
+	protected String umbrellaFileName() {
+		return "ManagedPeers.h";
+	}
+
+	protected String unityFileName(int index) {
+		return "ManagedPeers" + index + ".cpp";
+	}
+
+	/*
+	 * A generated file waiting to be compared with, and possibly written
+	 * over, the existing file.
+	 */
+	private static class Output {
+		Output(FileObject file, byte[] content) {
+			this.file = file;
+			this.content = content;
+		}
+
+		final FileObject file;
+		final byte[] content;
+		String event;
+	}
+
+	/*
+	 * Writes outputs in the order they are added.  With more than one thread the
+	 * files are compared and written on a pool while emission continues, and the
+	 * verbose log and any error are reported in the order the outputs were added,
+	 * so the result does not depend on scheduling.
+	 */
+	private class OutputQueue {
+		OutputQueue() {
+			if (threads > 1)
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "javah-writer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+
+		void add(final Output output) throws IOException {
+			if (pool == null) {
+				writeIfChanged(output);
+				logEvent(output);
+				return;
+			}
+
+			pending.add(output);
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					writeIfChanged(output);
+					return null;
+				}
+			}));
+		}
+
+		/*
+		 * Verbose message kept in order with the events of the outputs.
+		 */
+		void log(String message) {
+			if (!util.verbose)
+				return;
+			if (pool == null) {
+				util.log(message);
+				return;
+			}
+
+			pending.add(message);
+			futures.add(null);
+		}
+
+		void finish() throws IOException {
+			for (int i = 0; i < futures.size(); i++) {
+				if (futures.get(i) == null) {
+					util.log((String) pending.get(i));
+					continue;
+				}
+				try {
+					futures.get(i).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException) cause;
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					throw (Error) cause;
+				}
+				logEvent((Output) pending.get(i));
+			}
+		}
+
+		void shutdown() {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+
+		private ExecutorService pool;
+		private final List<Object> pending = new ArrayList<Object>();
+		private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+	}
+
+	private void logEvent(Output output) {
+		if (util.verbose)
+			util.log(output.event + output.file + "]");
+	}
+
+	/*
+	 * Write content to the named file in the output directory the way the
+	 * generated files are written, for tools driving the generator by hand.
+	 */
+	protected void writeIfChanged(String filename, byte[] content) throws IOException {
+		writeIfChanged(new Output(getFileObject(filename), content));
+	}
+
+	/*
+	 * Write the contents of the output to its file.  Writing
+	 * is done if either the file doesn't exist or if the contents are
+	 * different.  May be called from several threads at once, so it only
+	 * records the event for the caller to log.
+	 */
+	private void writeIfChanged(Output output) throws IOException {
+		byte[] b = output.content;
+		FileObject file = output.file;
+		Path path = toPath(file);
+		boolean mustWrite = false;
+		String event = "[No need to update file ";
+
+		if (force) {
+			mustWrite = true;
+			event = "[Forcefully writing file ";
+		} else {
+			try {
+				boolean same;
+				if (path != null) {
+					same = sameContent(path, b);
+				} else {
+					// regrettably, there's no API to get the length in bytes
+					// for a FileObject, so we can't short-circuit reading the
+					// file here
+					same = Arrays.equals(readBytes(file.openInputStream()), b);
+				}
+				if (!same) {
+					mustWrite = true;
+					event = "[Overwriting file ";
+				}
+			} catch (FileNotFoundException e) {
+				mustWrite = true;
+				event = "[Creating file ";
+			} catch (NoSuchFileException e) {
+				mustWrite = true;
+				event = "[Creating file ";
+			}
+		}
+
+		output.event = event;
+
+		if (mustWrite) {
+			if (path != null) {
+				replace(path, b);
+			} else {
+				OutputStream out = file.openOutputStream();
+				out.write(b); /* No buffering, just one big write! */
+				out.close();
+			}
+		}
+	}
+
+	/*
+	 * Files in the default file system are compared and written through NIO;
+	 * anything else goes through the FileObject streams.
+	 */
+	private static Path toPath(FileObject file) {
+		try {
+			URI uri = file.toUri();
+			if ("file".equals(uri.getScheme()))
+				return Paths.get(uri);
+		} catch (RuntimeException e) {
+			/* fall back to the streams */
+		}
+		return null;
+	}
+
+	/*
+	 * Compare the file against b, checking the size first and then the content
+	 * a chunk at a time so that large files need not be read all at once.  The
+	 * file is not memory mapped: a mapping cannot be released deterministically,
+	 * and on Windows it would make replacing the file fail.
+	 */
+	private static boolean sameContent(Path path, byte[] b) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			if (channel.size() != b.length)
+				return false;
+
+			ByteBuffer chunk = ByteBuffer.allocate(Math.min(b.length, COMPARE_CHUNK_SIZE));
+			int offset = 0;
+			while (offset < b.length) {
+				chunk.clear();
+				chunk.limit(Math.min(chunk.capacity(), b.length - offset));
+				while (chunk.hasRemaining()) {
+					if (channel.read(chunk, offset + chunk.position()) < 0)
+						return false; /* truncated underneath us */
+				}
+				chunk.flip();
+				if (!chunk.equals(ByteBuffer.wrap(b, offset, chunk.limit())))
+					return false;
+				offset += chunk.limit();
+			}
+			return true;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Write b to a temporary file next to path and move it into place, so that
+	 * a killed build (or a concurrent one) never sees a partially written file.
+	 */
+	private static void replace(Path path, byte[] b) throws IOException {
+		Path dir = path.getParent();
+		if (dir != null)
+			Files.createDirectories(dir);
+
+		Path temp;
+		OutputStream out;
+		while (true) {
+			temp = path.resolveSibling(path.getFileName() + "." + Long.toHexString(tempCounter.incrementAndGet()) + ".tmp");
+			try {
+				out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				break;
+			} catch (FileAlreadyExistsException e) {
+				/* left behind by a killed run; try the next name */
+			}
+		}
+
+		try {
+			try {
+				out.write(b); /* No buffering, just one big write! */
+			} finally {
+				out.close();
+			}
+
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static final int COMPARE_CHUNK_SIZE = 64 * 1024;
+	private static final AtomicLong tempCounter = new AtomicLong(System.nanoTime());
+
+	private byte[] readBytes(InputStream in) throws IOException {
+		try {
+			byte[] array = new byte[in.available() + 1];
+			int offset = 0;
+			int n;
+			while ((n = in.read(array, offset, array.length - offset)) != -1) {
+				offset += n;
+				if (offset == array.length)
+					array = Arrays.copyOf(array, array.length * 2);
+			}
+
+			return Arrays.copyOf(array, offset);
+		} finally {
+			in.close();
+		}
+	}
+
+	protected String defineForStatic(TypeElement clazz, VariableElement field) throws Util.Exit {
+		CharSequence cnamedoc = clazz.getQualifiedName();
+		CharSequence fnamedoc = field.getSimpleName();
+
+		String cname = mangler.mangle(cnamedoc, Mangle.Type.CLASS);
+		String fname = mangler.mangle(fnamedoc, Mangle.Type.FIELDSTUB);
+
+		if (!field.getModifiers().contains(Modifier.STATIC))
+			util.bug("tried.to.define.non.static");
+
+		if (field.getModifiers().contains(Modifier.FINAL)) {
+			Object value = null;
+
+			value = field.getConstantValue();
+
+			if (value != null) { /* so it is a ConstantExpression */
+				String constString = null;
+				if ((value instanceof Integer) || (value instanceof Byte) || (value instanceof Short)) {
+					/* covers byte, short, int */
+					constString = value.toString() + "L";
+				} else if (value instanceof Boolean) {
+					constString = ((Boolean) value) ? "1L" : "0L";
+				} else if (value instanceof Character) {
+					Character ch = (Character) value;
+					constString = String.valueOf(((int) ch) & 0xffff) + "L";
+				} else if (value instanceof Long) {
+					// Visual C++ supports the i64 suffix, not LL.
+					if (isWindows)
+						constString = value.toString() + "i64";
+					else
+						constString = value.toString() + "LL";
+				} else if (value instanceof Float) {
+					/* bug for bug */
+					float fv = ((Float)value).floatValue();
+					if (Float.isInfinite(fv))
+						constString = ((fv < 0) ? "-" : "") + "Inff";
+					else
+						constString = value.toString() + "f";
+				} else if (value instanceof Double) {
+					/* bug for bug */
+					double d = ((Double)value).doubleValue();
+					if (Double.isInfinite(d))
+						constString = ((d < 0) ? "-" : "") + "InfD";
+					else
+						constString = value.toString();
+				}
+				if (constString != null) {
+					StringBuffer s = new StringBuffer("#undef ");
+					s.append(cname); s.append("_"); s.append(fname); s.append(lineSeparator);
+					s.append("#define "); s.append(cname); s.append("_");
+					s.append(fname); s.append(" "); s.append(constString);
+					return s.toString();
+				}
+
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * File name and file preamble related operations.
+	 */
+	private String getFileTop() {
+		return "/* DO NOT EDIT THIS FILE - it is machine generated */";
+	}
+	
+	private void writeHeaderBegin(OutputStream o) {
+		PrintWriter pw = wrapWriter(o);
+		pw.println(getFileTop());
+		pw.println("#pragma once");
+		pw.println();
+		pw.println(getIncludes());
+		pw.println();
+	}
+
+	private void writeCppBegin(OutputStream o, TypeElement clazz) {
+		PrintWriter pw = wrapWriter(o);
+		pw.println(getFileTop());
+		if (pch != null)
+			pw.println("#include \"" + pch + "\"");
+		pw.println("#include \"" + baseFileName(clazz) + ".h\"");
+		pw.println();
+	}
+
+	protected String baseFileName(TypeElement clazz) {
+		return mangler.mangle(clazz.getSimpleName(), Mangle.Type.CLASS);
+	}
+
+	private FileObject getFileObject(String filename, Element... origins) throws IOException {
+		if (filer != null)
+			return filer.createResource(StandardLocation.SOURCE_OUTPUT, "", filename, origins);
+		return fileManager.getFileForOutput(StandardLocation.SOURCE_OUTPUT, "", filename, null);
+	}
+
+	/**
+	 * Including super classes' fields.
+	 */
+	public List<VariableElement> getAllFields(TypeElement subclazz) {
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		TypeElement cd = null;
+		Stack<TypeElement> s = new Stack<TypeElement>();
+
+		cd = subclazz;
+		while (true) {
+			s.push(cd);
+			TypeElement c = (TypeElement) (types.asElement(cd.getSuperclass()));
+			if (c == null)
+				break;
+			cd = c;
+		}
+
+		while (!s.empty()) {
+			cd = s.pop();
+			fields.addAll(ElementFilter.fieldsIn(cd.getEnclosedElements()));
+		}
+
+		return fields;
+	}
+
+	// c.f. MethodDoc.signature
+	public String signature(ExecutableElement e) {
+		StringBuffer sb = new StringBuffer("(");
+		String sep = "";
+		for (VariableElement p : e.getParameters()) {
+			sb.append(sep);
+			sb.append(types.erasure(p.asType()).toString());
+			sep = ",";
+		}
+		sb.append(")");
+		return sb.toString();
+	}
+}
+
@@ -23,7 +23,7 @@
  * questions.
  */
 
-package com.sun.tools.javah;
+package com.jni.tools.javah;
 
 /**
  *  <p><b>This is NOT part of any supported API.
@@ -24,7 +24,7 @@
  */
 
 
-package com.sun.tools.javah;
+package com.jni.tools.javah;
 
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
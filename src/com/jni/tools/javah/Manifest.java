@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Jesse Benson
+ * 
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools.javah;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.tools.FileObject;
+
+/**
+ * Records, for every generated class, a hash of everything that goes into
+ * its generated files together with the names of those files.  Kept in the
+ * output directory so that a later run can skip classes whose hash is
+ * unchanged and delete the files of classes that went away.
+ *
+ * <p>One line per entry, sorted by name:
+ * <pre>
+ *     name TAB hash TAB file [TAB file]...
+ * </pre>
+ *
+ * <p><b>This is NOT part of any supported API.
+ * If you write code that depends on this, you do so at your own
+ * risk.  This code and its internal interfaces are subject to change
+ * or deletion without notice.</b></p>
+ */
+class Manifest {
+	private static final String HEADER = "# javah manifest 1";
+
+	static class Entry {
+		Entry(String hash, List<String> files) {
+			this.hash = hash;
+			this.files = files;
+		}
+
+		final String hash;
+		final List<String> files;
+	}
+
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	Entry get(String name) {
+		return entries.get(name);
+	}
+
+	void put(String name, String hash, List<String> files) {
+		entries.put(name, new Entry(hash, files));
+	}
+
+	Set<String> names() {
+		return entries.keySet();
+	}
+
+	/*
+	 * All files named by any entry.
+	 */
+	Set<String> files() {
+		Set<String> files = new LinkedHashSet<String>();
+		for (Entry entry : entries.values())
+			files.addAll(entry.files);
+		return files;
+	}
+
+	/*
+	 * Reads a manifest, or returns an empty one if the file is missing or not
+	 * a manifest we understand; the worst that does is regenerate everything.
+	 */
+	static Manifest read(FileObject file) {
+		Manifest manifest = new Manifest();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(file.openInputStream(), "UTF-8"));
+			try {
+				if (!HEADER.equals(in.readLine()))
+					return manifest;
+
+				String line;
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					if (fields.length < 2)
+						return new Manifest();
+					List<String> files = new ArrayList<String>(Arrays.asList(fields).subList(2, fields.length));
+					manifest.put(fields[0], fields[1], Collections.unmodifiableList(files));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return new Manifest();
+		}
+		return manifest;
+	}
+
+	byte[] toByteArray() {
+		StringBuilder sb = new StringBuilder(HEADER).append('\n');
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			sb.append(entry.getKey()).append('\t').append(entry.getValue().hash);
+			for (String file : entry.getValue().files)
+				sb.append('\t').append(file);
+			sb.append('\n');
+		}
+		try {
+			return sb.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new InternalError("UTF-8 not supported", e);
+		}
+	}
+
+	static String hash(String model) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			byte[] digest = md.digest(model.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new InternalError("SHA-1 not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new InternalError("UTF-8 not supported", e);
+		}
+	}
+}
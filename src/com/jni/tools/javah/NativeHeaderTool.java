@@ -23,7 +23,7 @@
  * questions.
  */
 
-package com.sun.tools.javah; //javax.tools;
+package com.jni.tools.javah; //javax.tools;
 
 import java.io.Writer;
 import java.nio.charset.Charset;
@@ -24,7 +24,7 @@
  */
 
 
-package com.sun.tools.javah;
+package com.jni.tools.javah;
 
 import java.util.*;
 import javax.lang.model.element.Name;
@@ -24,7 +24,7 @@
  */
 
 
-package com.sun.tools.javah;
+package com.jni.tools.javah;
 
 import java.io.PrintWriter;
 import java.text.MessageFormat;
@@ -96,13 +96,13 @@ public class Util {
 
 	private void initMessages() throws Exit {
 		try {
-			m = ResourceBundle.getBundle("com.sun.tools.javah.resources.l10n");
+			m = ResourceBundle.getBundle("com.jni.tools.resources.l10n");
 		} catch (MissingResourceException mre) {
 			fatal("Error loading resources.  Please file a bug report.", mre);
 		}
 	}
 
-	private String getText(String key, Object... args) throws Exit {
+	public String getText(String key, Object... args) throws Exit {
 		if (m == null)
 			initMessages();
 		try {
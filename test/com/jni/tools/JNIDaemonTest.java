@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+package com.jni.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the -watch daemon over a small corpus in a temporary directory and
+ * changes the corpus under it, checking that the peers follow.  It is run
+ * like JNIBenchmark, with the tool's classes (and tools.jar before Java 9)
+ * on the class path:
+ *
+ *   java com.jni.tools.JNIDaemonTest
+ *
+ * and exits with 0 when every check passed.
+ */
+public class JNIDaemonTest {
+	private static final long TIMEOUT_MILLIS = 20000;
+
+	private final File dir;
+	private final File src;
+	private final File classes;
+	private final File gen;
+	private final StringWriter log = new StringWriter();
+	/* the sources written since the last compile */
+	private final List<File> written = new ArrayList<File>();
+	private int port;
+	private Thread daemon;
+	private volatile int rc = -1;
+	private volatile Throwable failure;
+	private int failed;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("jnidaemon").toFile();
+		JNIDaemonTest scan = new JNIDaemonTest(new File(dir, "scan"));
+		scan.scanMode();
+		JNIDaemonTest named = new JNIDaemonTest(new File(dir, "named"));
+		named.dependents();
+
+		int failed = scan.failed + named.failed;
+		System.out.println(failed == 0 ? "PASSED" : "FAILED");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	JNIDaemonTest(File dir) {
+		this.dir = dir;
+		this.src = new File(dir, "src");
+		this.classes = new File(dir, "classes");
+		this.gen = new File(dir, "gen");
+	}
+
+	/*
+	 * -classfile -watch without class names: the daemon generates what the
+	 * scan of the class path finds, then regenerates what changes.
+	 */
+	void scanMode() throws Exception {
+		write("p/Item.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Item {",
+				"	@JNIMethod public int id() { return 0; }",
+				"}");
+		compile();
+
+		start("-classfile", "-watch", classes.getPath(), "-classpath", classes.getPath());
+		check("initial scan", waitFor("ItemManagedPeer.h", "id()"));
+
+		/* a class the scan found changes: a partial run */
+		write("p/Item.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Item {",
+				"	@JNIMethod public int id() { return 0; }",
+				"	@JNIMethod public String label() { return null; }",
+				"}");
+		compile();
+		check("changed class", waitFor("ItemManagedPeer.h", "label()"));
+
+		/* a class the scan did not find: a full run finds it */
+		write("p/Service.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Service {",
+				"	@JNIMethod public Item item() { return null; }",
+				"}");
+		compile();
+		check("new class", waitFor("ServiceManagedPeer.h", "item()"));
+
+		stop();
+	}
+
+	/*
+	 * A change to a class regenerates the classes depending on it, named or
+	 * not: its subclasses, and the classes using it in their signatures.
+	 */
+	void dependents() throws Exception {
+		write("p/Base.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Base {",
+				"	@JNIMethod public int id() { return 0; }",
+				"}");
+		write("p/Derived.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Derived extends Base {",
+				"	@JNIMethod public String label(int style) { return null; }",
+				"}");
+		write("p/Point.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIStruct(\"p\") public class Point {",
+				"	public int x;",
+				"}");
+		write("p/Shape.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Shape {",
+				"	@JNIMethod public Point origin() { return null; }",
+				"}");
+		compile();
+
+		start("-classfile", "-watch", classes.getPath(), "-classpath", classes.getPath(), "p.Derived", "p.Shape");
+		check("initial run", waitFor("DerivedManagedPeer.h", "label(") && waitFor("PointStruct.h", " x"));
+
+		/* the subclass unhides the method its superclass gains */
+		write("p/Base.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIClass(\"p\") public class Base {",
+				"	@JNIMethod public int id() { return 0; }",
+				"	@JNIMethod public String label() { return null; }",
+				"}");
+		compile();
+		check("changed superclass", waitFor("DerivedManagedPeer.h", "BaseManagedPeer::label"));
+
+		/* a struct nobody named follows through the class returning it */
+		write("p/Point.java",
+				"package p;",
+				"import com.jni.annotation.*;",
+				"@JNIStruct(\"p\") public class Point {",
+				"	public int x;",
+				"	public int y;",
+				"}");
+		compile();
+		check("changed struct", waitFor("PointStruct.h", " y"));
+
+		stop();
+	}
+
+	private void start(String... options) throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		port = socket.getLocalPort();
+		socket.close();
+
+		/* the options come before any class names */
+		final List<String> args = new ArrayList<String>(Arrays.asList("-port", Integer.toString(port), "-d", gen.getPath()));
+		args.addAll(Arrays.asList(options));
+		daemon = new Thread("watch") {
+			@Override
+			public void run() {
+				try {
+					JNITask task = new JNITask();
+					task.setLog(new PrintWriter(log, true));
+					rc = task.run(args.toArray(new String[args.size()]));
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		};
+		daemon.start();
+	}
+
+	private void stop() throws InterruptedException {
+		JNITask task = new JNITask();
+		task.setLog(new PrintWriter(log, true));
+		task.run(new String[] { "-trigger", JNIDaemon.STOP, "-port", Integer.toString(port) });
+		daemon.join(TIMEOUT_MILLIS);
+		check("stopped", !daemon.isAlive() && rc == 0);
+	}
+
+	/*
+	 * Waits until the generated file contains the text, or the daemon died.
+	 */
+	private boolean waitFor(String file, String text) throws IOException, InterruptedException {
+		File path = new File(gen, file);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline && daemon.isAlive()) {
+			if (path.exists() && new String(Files.readAllBytes(path.toPath()), Charset.forName("UTF-8")).contains(text))
+				return true;
+			Thread.sleep(50);
+		}
+		return false;
+	}
+
+	private void check(String name, boolean ok) {
+		System.out.println((ok ? "ok     " : "FAILED ") + name);
+		if (!ok) {
+			failed++;
+			if (failure != null)
+				failure.printStackTrace(System.out);
+			System.out.print(log);
+		}
+	}
+
+	private void write(String path, String... lines) throws IOException {
+		File file = new File(src, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), Arrays.asList(lines), Charset.forName("UTF-8"));
+		written.add(file);
+	}
+
+	/*
+	 * Compiles only what was written, so that only its class files change.
+	 */
+	private void compile() throws IOException {
+		classes.mkdirs();
+		String path = classes.getPath() + File.pathSeparator + System.getProperty("java.class.path");
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null);
+		try {
+			List<String> options = Arrays.asList("-proc:none", "-nowarn", "-d", classes.getPath(), "-classpath", path);
+			if (!compiler.getTask(null, fm, null, options, null, fm.getJavaFileObjectsFromFiles(written)).call())
+				throw new IOException("cannot compile the corpus in " + dir);
+		} finally {
+			fm.close();
+		}
+		written.clear();
+	}
+}